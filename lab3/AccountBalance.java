@@ -2,10 +2,16 @@ import java.security.PublicKey;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.InvalidKeyException;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /** 
@@ -30,6 +36,81 @@ public class AccountBalance {
 
     private ArrayList<PublicKey> publicKeyList;
 
+    /**
+     *  for the keys whose entries were removed by compaction, the number of
+     *  their positions in publicKeyList which are stale, until it is rebuilt
+     *  by purgeTombstones. A key added again is appended to the list, so its
+     *  stale positions are always the first ones.
+     **/
+
+    private HashMap<PublicKey,Integer> tombstones = new HashMap<PublicKey,Integer>();
+
+    /**
+     *  the position in publicKeyList where the next compactStep starts
+     **/
+
+    private int compactionCursor;
+
+    /**
+     *  the thread running compaction steps, null unless startCompaction was called
+     **/
+
+    private ScheduledExecutorService compactor;
+
+    /**
+     *  listeners informed about every change of an entry
+     **/
+
+    private ArrayList<AccountBalanceListener> listeners = new ArrayList<AccountBalanceListener>();
+
+    /**
+     *  the state commitment, null unless enableStateCommitment was called
+     **/
+
+    private SparseMerkleTree stateTree;
+
+    /**
+     *  the index of the entries ordered by balance, null unless enableRankIndex was called
+     **/
+
+    private BalanceRankIndex rankIndex;
+
+    /**
+     *  the versions of the entries for snapshots, null unless snapshot was called
+     **/
+
+    private volatile AccountBalanceSnapshot.Versions versions;
+
+    /**
+     *  the credits of the hot accounts not yet folded into their entries, see markHot
+     **/
+
+    private final ConcurrentHashMap<PublicKey,LongAdder> hotCredits = new ConcurrentHashMap<PublicKey,LongAdder>();
+
+    /**
+     *  the sum of all entries, updated on every change
+     **/
+
+    private long totalSupply;
+
+    /**
+     *  the sum of the fees of all transactions processed
+     **/
+
+    private long totalFees;
+
+    /**
+     *  the sum of the fees of the transactions processed since beginBlock
+     **/
+
+    private long blockFees;
+
+    /**
+     *  whether processing a transaction checks that it conserves value
+     **/
+
+    private boolean conservationChecked;
+
 
     /** 
      * Creates a new accountBalance
@@ -49,6 +130,7 @@ public class AccountBalance {
 	publicKeyList = new ArrayList<PublicKey>();	
 	for (PublicKey pbk : accountBalanceBase.keySet()){
 	    publicKeyList.add(pbk);
+	    totalSupply += accountBalanceBase.get(pbk);
 	}
     }
 
@@ -56,6 +138,7 @@ public class AccountBalance {
      */   
     
     public Hashtable<PublicKey,Integer> getAccountBalanceBase(){
+	foldHotCredits();
 	return accountBalanceBase;
     };
 
@@ -72,6 +155,7 @@ public class AccountBalance {
       */   
 
     public ArrayList<PublicKey> getPublicKeysOrdered(){
+	purgeTombstones();
 	return publicKeyList;
     };        
 
@@ -86,10 +170,7 @@ public class AccountBalance {
      */
 
     public void addAccount(PublicKey publicKey, int balance) {
-	accountBalanceBase.put(publicKey, balance);
-	if (! publicKeyList.contains(publicKey)){
-	    publicKeyList.add(publicKey);
-	}
+	setBalance(publicKey,balance);
     }
 
     /** 
@@ -109,8 +190,9 @@ public class AccountBalance {
      */
     
     public int getBalance(PublicKey publicKey) {
-	if (hasPublicKey(publicKey)){
-		return accountBalanceBase.get(publicKey);
+	Integer balance = getEntry(publicKey);
+	if (balance != null){
+		return Math.addExact(balance,getHotCredits(publicKey));
 	    } else
 	    {  return 0;
 	    }
@@ -119,34 +201,508 @@ public class AccountBalance {
 
     /** 
      * set the balance for {@code publicKey} to {@code amount}
+     *
+     *  for a hot account this replaces the credits pending so far
      */
 
     
     public void setBalance(PublicKey publicKey, int amount){
-	accountBalanceBase.put(publicKey,amount);
-	if (! publicKeyList.contains(publicKey)){
+	LongAdder pending = hotCredits.get(publicKey);
+	if (pending != null){
+	    pending.add(-pending.sum());
+	}
+	putBalance(publicKey,amount);
+    }
+
+    /* write the entry for publicKey and inform the listeners */
+
+    private void putBalance(PublicKey publicKey, int amount){
+	Integer oldAmount = putEntry(publicKey,amount);
+	fireBalanceChanged(publicKey,oldAmount,amount);
+    }
+
+    /** 
+     * the stored entry for {@code publicKey} without pending credits, or null.
+     *   Together with putEntry and hasPublicKey this is where the entries
+     *   are kept, which a subclass may keep elsewhere, see TieredAccountBalance.
+     */
+
+    protected Integer getEntry(PublicKey publicKey){
+	return accountBalanceBase.get(publicKey);
+    }
+
+    /** 
+     * store {@code amount} as the entry for {@code publicKey}
+     *   and return the previous entry, or null
+     */
+
+    protected Integer putEntry(PublicKey publicKey, int amount){
+	Integer oldAmount = accountBalanceBase.put(publicKey,amount);
+	if (oldAmount == null){
+	    /* added again after compaction: a new key, like in AccountBalanceSnapshot */
 	    publicKeyList.add(publicKey);
-	}	
-	    };
+	}
+	return oldAmount;
+    }
+
+    /* the stored balance of publicKey, 0 if there is no entry */
+
+    private int getStoredBalance(PublicKey publicKey){
+	Integer balance = getEntry(publicKey);
+	return balance == null ? 0 : balance;
+    }
+
+
+    /** 
+     * Compaction: remove the entries with balance 0 of accounts which are
+     *   not hot, informing the listeners with newBalance null. getBalance
+     *   still returns 0 for them, and setBalance adds them again.
+     *
+     *   A removed key is only marked as a tombstone in the list of keys in
+     *   order; the list is rebuilt in one pass once a compaction pass over
+     *   it is complete, or when it is asked for.
+     *
+     *   compactStep looks at the next {@code n} keys of the list, starting
+     *   where the previous step stopped, and returns the number of entries
+     *   removed, so that compaction can be done a bit at a time between
+     *   transactions.
+     */
+
+    public int compactStep(int n){
+	int removed = 0;
+	for (int i = 0; i < n && !publicKeyList.isEmpty(); i++){
+	    if (compactionCursor >= publicKeyList.size()){
+		purgeTombstones();
+		compactionCursor = 0;
+		if (publicKeyList.isEmpty()){
+		    break;
+		}
+	    }
+	    PublicKey publicKey = publicKeyList.get(compactionCursor++);
+	    Integer balance = getEntry(publicKey);
+	    if (balance != null && balance == 0 && !hotCredits.containsKey(publicKey)){
+		accountBalanceBase.remove(publicKey);
+		tombstones.merge(publicKey,1,Integer::sum);
+		fireBalanceChanged(publicKey,balance,null);
+		removed++;
+	    }
+	}
+	return removed;
+    }
+
+    /** 
+     * remove all entries with balance 0 of accounts which are not hot,
+     *   see compactStep, and return the number removed
+     */
+
+    public int compact(){
+	compactionCursor = 0;
+	int removed = compactStep(publicKeyList.size());
+	purgeTombstones();
+	return removed;
+    }
+
+    /* rebuild publicKeyList without the stale positions in one pass,
+       keeping the cursor at the same key */
+
+    private void purgeTombstones(){
+	if (tombstones.isEmpty()){
+	    return;
+	}
+	int size = publicKeyList.size();
+	int kept = 0;
+	int cursor = compactionCursor;
+	for (int i = 0; i < size; i++){
+	    if (i == compactionCursor){
+		cursor = kept;
+	    }
+	    PublicKey publicKey = publicKeyList.get(i);
+	    Integer stale = tombstones.get(publicKey);
+	    if (stale == null){
+		publicKeyList.set(kept++,publicKey);
+	    } else if (stale == 1){
+		tombstones.remove(publicKey);
+	    } else {
+		tombstones.put(publicKey,stale - 1);
+	    }
+	}
+	compactionCursor = Math.min(cursor,kept);
+	publicKeyList.subList(kept,size).clear();
+	publicKeyList.trimToSize();
+	tombstones = new HashMap<PublicKey,Integer>();
+    }
+
+    /** 
+     * run a compactStep of {@code stepSize} keys every {@code periodMillis}
+     *   milliseconds in a background thread. Each step synchronizes on the
+     *   accountBalance, so all threads using it must do so as well, as for
+     *   any concurrent use.
+     */
+
+    public synchronized void startCompaction(long periodMillis,int stepSize){
+	if (compactor == null){
+	    compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		    Thread thread = new Thread(runnable,"account-compaction");
+		    thread.setDaemon(true);
+		    return thread;
+		});
+	    compactor.scheduleWithFixedDelay(() -> {
+		    synchronized (this){
+			compactStep(stepSize);
+		    }
+		},periodMillis,periodMillis,TimeUnit.MILLISECONDS);
+	}
+    }
+
+    /** 
+     * stop the background compaction started by startCompaction
+     */
+
+    public synchronized void stopCompaction(){
+	if (compactor != null){
+	    compactor.shutdownNow();
+	    compactor = null;
+	}
+    }
+
+
+    /** 
+     * Make {@code publicKey} a hot account, adding an entry if there is none.
+     *
+     *   Credits to a hot account by addToBalance only add to a LongAdder,
+     *   so any number of threads may credit it concurrently, with each other
+     *   and with the thread changing the accountBalance, without taking a
+     *   lock. The pending credits are folded into the entry when the account
+     *   is debited or set, or by foldHotCredits. getBalance includes them,
+     *   the listeners see them when they are folded.
+     */
+
+    public void markHot(PublicKey publicKey){
+	if (!hasPublicKey(publicKey)){
+	    setBalance(publicKey,0);
+	}
+	hotCredits.putIfAbsent(publicKey,new LongAdder());
+    }
+
+    /** 
+     * Make {@code publicKey} an ordinary account again, folding its pending
+     *   credits. It must not be credited concurrently.
+     */
+
+    public void unmarkHot(PublicKey publicKey){
+	LongAdder pending = hotCredits.remove(publicKey);
+	if (pending != null){
+	    foldHotCredits(publicKey,pending);
+	}
+    }
+
+    /** 
+     * @return true if {@code publicKey} is a hot account
+     */
+
+    public boolean isHot(PublicKey publicKey){
+	return hotCredits.containsKey(publicKey);
+    }
+
+    /* the credits pending for publicKey, 0 unless it is a hot account;
+       throws an ArithmeticException if they exceed an int */
+
+    private int getHotCredits(PublicKey publicKey){
+	LongAdder pending = hotCredits.get(publicKey);
+	return pending == null ? 0 : Math.toIntExact(pending.sum());
+    }
+
+    /* add the credits pending in pending to the entry for publicKey.
+       Credits made concurrently stay pending, since only the amount
+       read is taken out of pending. If the balance would exceed an int,
+       an ArithmeticException is thrown and the credits stay pending. */
+
+    private void foldHotCredits(PublicKey publicKey,LongAdder pending){
+	long credits = pending.sum();
+	if (credits != 0){
+	    int balance = Math.toIntExact(getStoredBalance(publicKey) + credits);
+	    pending.add(-credits);
+	    putBalance(publicKey,balance);
+	}
+    }
+
+    /** 
+     * fold the pending credits of all hot accounts into their entries,
+     *   informing the listeners
+     */
+
+    public void foldHotCredits(){
+	for (Map.Entry<PublicKey,LongAdder> entry : hotCredits.entrySet()){
+	    foldHotCredits(entry.getKey(),entry.getValue());
+	}
+    }
+
+
+    /** 
+     * add a listener which is informed about every change of an entry
+     */
+
+    public void addListener(AccountBalanceListener listener){
+	listeners.add(listener);
+    }
+
+    /** 
+     * remove a listener
+     */
+
+    public void removeListener(AccountBalanceListener listener){
+	listeners.remove(listener);
+    }
+
+    /* inform all listeners about a change of the entry for publicKey,
+       and update the total supply */
+
+    protected void fireBalanceChanged(PublicKey publicKey,Integer oldAmount,Integer newAmount){
+	totalSupply += (newAmount == null ? 0 : newAmount) - (oldAmount == null ? 0 : oldAmount);
+	for (AccountBalanceListener listener : listeners){
+	    listener.balanceChanged(publicKey,oldAmount,newAmount);
+	}
+    }
+
+
+    /** 
+     * the sum of all balances, including the pending credits of hot accounts.
+     *   It is maintained on every change, so this takes O(1) plus the
+     *   number of hot accounts.
+     */
+
+    public long getTotalSupply(){
+	long supply = totalSupply;
+	for (LongAdder pending : hotCredits.values()){
+	    supply += pending.sum();
+	}
+	return supply;
+    }
+
+    /** 
+     * set the total supply, for a subclass whose entries exist before
+     *   it is created without being set by setBalance
+     */
+
+    protected void setTotalSupply(long totalSupply){
+	this.totalSupply = totalSupply;
+    }
+
+    /** 
+     * the sum of the fees (inputs minus outputs) of all transactions
+     *   processed by processTransaction
+     */
+
+    public long getTotalFees(){
+	return totalFees;
+    }
+
+    /** 
+     * start a new block: the fees of the transactions processed from now
+     *   on are summed up in getBlockFees
+     */
+
+    public void beginBlock(){
+	blockFees = 0;
+    }
+
+    /** 
+     * the sum of the fees of the transactions processed since beginBlock
+     */
+
+    public long getBlockFees(){
+	return blockFees;
+    }
+
+    /** 
+     * end the current block and return the sum of its fees
+     */
+
+    public long endBlock(){
+	long fees = blockFees;
+	blockFees = 0;
+	return fees;
+    }
+
+    /** 
+     * Switch checking of conservation on or off. When it is on, processing
+     *   a transaction throws an IllegalStateException if its outputs exceed
+     *   its inputs, before anything is changed, or if afterwards the total
+     *   supply has not decreased by exactly its fee. The check takes O(1),
+     *   but is only meaningful while hot accounts are not credited concurrently.
+     */
+
+    public void setConservationChecked(boolean conservationChecked){
+	this.conservationChecked = conservationChecked;
+    }
+
+    /** 
+     * add {@code fees} to the total and block fees; used by code applying
+     *   transactions without processTransaction, such as ParallelBlockExecutor
+     *   and ShardedAccountBalance, which do not check conservation
+     */
+
+    protected void addFees(long fees){
+	totalFees += fees;
+	blockFees += fees;
+    }
+
+    /* check the fee of a transaction about to be processed
+       and return the total supply before it is processed */
+
+    private long checkFee(long fee){
+	if (conservationChecked && fee < 0){
+	    throw new IllegalStateException("transaction creates " + (-fee) + " out of nothing");
+	}
+	return getTotalSupply();
+    }
+
+    /* add the fee of a processed transaction to the totals,
+       supplyBefore being the total supply before it was processed */
+
+    private void recordFee(long supplyBefore,long fee){
+	addFees(fee);
+	if (conservationChecked){
+	    long supply = getTotalSupply();
+	    if (supply != supplyBefore - fee){
+		throw new IllegalStateException("total supply changed from " + supplyBefore + " to "
+						+ supply + " for a transaction with fee " + fee);
+	    }
+	}
+    }
+
+
+    /** 
+     * Start maintaining a state commitment, a SparseMerkleTree over all
+     *   entries keyed by the fingerprints of the public keys.
+     *
+     *   Building it costs one pass over the accountBalance, afterwards
+     *   every change updates only the path to the changed entry.
+     */
+
+    public void enableStateCommitment(){
+	if (stateTree == null){
+	    stateTree = new SparseMerkleTree(this);
+	    addListener(stateTree);
+	}
+    }
+
+    /** 
+     * the root of the state commitment; two accountBalances have the same
+     *   entries if and only if they have the same root.
+     */
+
+    public Hash getStateRoot(){
+	foldHotCredits();
+	enableStateCommitment();
+	return stateTree.getRoot();
+    }
+
+    /** 
+     * the proof of the balance of {@code publicKey} w.r.t. getStateRoot()
+     */
+
+    public StateProof getAccountProof(PublicKey publicKey){
+	foldHotCredits();
+	enableStateCommitment();
+	return stateTree.getProof(publicKey);
+    }
+
+
+    /** 
+     * Start maintaining a BalanceRankIndex, which orders the entries by
+     *   balance and is updated on every change.
+     *   Building it costs O(n log n), afterwards each change O(log n).
+     */
+
+    public BalanceRankIndex enableRankIndex(){
+	foldHotCredits();
+	if (rankIndex == null){
+	    rankIndex = new BalanceRankIndex(this);
+	}
+	return rankIndex;
+    }
+
+    /** 
+     * the {@code n} public keys with the largest balances, largest first
+     */
+
+    public ArrayList<PublicKey> getTopAccounts(int n){
+	return enableRankIndex().getTop(n);
+    }
+
+    /** 
+     * the public keys with balance between {@code low} and {@code high}
+     *   (inclusive), smallest balance first
+     */
+
+    public ArrayList<PublicKey> getAccountsInRange(int low,int high){
+	return enableRankIndex().getRange(low,high);
+    }
 	
 
+    /** 
+     * an immutable view of the current entries, see AccountBalanceSnapshot.
+     *
+     *   The first call costs one pass over the accountBalance, afterwards
+     *   a snapshot is taken in O(1) and each change costs O(log n) more.
+     *   As any other method it must not run concurrently with changes.
+     */
+
+    public AccountBalanceSnapshot snapshot(){
+	foldHotCredits();
+	if (versions == null){
+	    versions = new AccountBalanceSnapshot.Versions(this);
+	    addListener(versions);
+	}
+	return versions.snapshot();
+    }
+
+
+    /** 
+     * a new AccountBalanceOverlay on this accountBalance, recording changes
+     *   without applying them until it is committed
+     */
+
+    public AccountBalanceOverlay overlay(){
+	return new AccountBalanceOverlay(this);
+    }
+
+
     /** 
      * Imcrements Adds amount to balance for {@code publicKey}
      * 
      *  if there was no entry for {@code publicKey} add one with 
      *       {@code balance}
+     *
+     *  for a hot account the amount is only added to its pending credits
      */
     
     public void addToBalance(PublicKey publicKey, int amount) {
+	LongAdder pending = hotCredits.get(publicKey);
+	if (pending != null){
+	    pending.add(amount);
+	    return;
+	}
 	setBalance(publicKey,getBalance(publicKey) + amount);
     }
 
 
     /** 
      * Subtracts amount from balance for {@code publicKey}
+     *
+     *  for a hot account its pending credits are folded in the same change
      */
     
     public void subtractFromBalance(PublicKey publicKey, int amount) {
+	LongAdder pending = hotCredits.get(publicKey);
+	if (pending != null){
+	    long credits = pending.sum();
+	    int balance = Math.toIntExact(getStoredBalance(publicKey) + credits - amount);
+	    pending.add(-credits);
+	    putBalance(publicKey,balance);
+	    return;
+	}
 	setBalance(publicKey,getBalance(publicKey) - amount);
     }
 
@@ -249,8 +805,135 @@ public class AccountBalance {
      */    
     
     public void processTransaction(Transaction tx){
+	long fee = (long) tx.toTxInputs().toSum() - tx.toTxOutputs().toSum();
+	long supplyBefore = checkFee(fee);
 	subtractTxInputList(tx.toTxInputs());
 	addTxOutputList(tx.toTxOutputs());
+	recordFee(supplyBefore,fee);
+    };
+
+
+    /** 
+     * Check a transaction stored in a TransactionView is valid,
+     *   as checkTransactionValid(Transaction)
+     */    
+
+    public boolean checkTransactionValid(TransactionView tx){
+	return tx.checkTransactionAmountsValid() && tx.checkSignaturesValid()
+	    && checkTransactionCanBeDeducted(tx);
+    };
+
+
+    /** 
+     * Check the inputs of a transaction stored in a TransactionView can be
+     *   deducted from the accountBalance, without checking signatures and amounts
+     */    
+
+    public boolean checkTransactionCanBeDeducted(TransactionView tx){
+	for (Map.Entry<PublicKey,Integer> debit : tx.getDebits().entrySet()){
+	    if (getBalance(debit.getKey()) < debit.getValue()){
+		return false;
+	    }
+	}
+	return true;
+    };
+
+
+    /** 
+     * Process a transaction stored in a TransactionView,
+     *   as processTransaction(Transaction)
+     */    
+
+    public void processTransaction(TransactionView tx){
+	long fee = tx.getInputSum() - tx.getOutputSum();
+	long supplyBefore = checkFee(fee);
+	for (int i = 0; i < tx.getInputCount(); i++){
+	    subtractFromBalance(tx.getSender(i),tx.getInputAmount(i));
+	}
+	for (int i = 0; i < tx.getOutputCount(); i++){
+	    addToBalance(tx.getRecipient(i),tx.getOutputAmount(i));
+	}
+	recordFee(supplyBefore,fee);
+    };
+
+
+    /** 
+     * Check a SealedTransaction is valid, as checkTransactionValid(Transaction).
+     *   Its signatures are checked only the first time.
+     */    
+
+    public boolean checkTransactionValid(SealedTransaction tx){
+	if (!tx.checkTransactionAmountsValid() || !tx.checkSignaturesValid()){
+	    return false;
+	}
+	for (Map.Entry<PublicKey,Integer> debit : tx.getDebits().entrySet()){
+	    if (getBalance(debit.getKey()) < debit.getValue()){
+		return false;
+	    }
+	}
+	return true;
+    };
+
+
+    /** 
+     * Process a SealedTransaction, as processTransaction(Transaction)
+     */    
+
+    public void processTransaction(SealedTransaction tx){
+	long supplyBefore = checkFee(tx.getFee());
+	for (TxInput entry : tx.getInputs()){
+	    subtractFromBalance(entry.getSender(),entry.getAmount());
+	}
+	for (TxOutput entry : tx.getOutputs()){
+	    addToBalance(entry.getRecipient(),entry.getAmount());
+	}
+	recordFee(supplyBefore,tx.getFee());
+    };
+
+
+    /** 
+     * Process a transaction unless it has been processed before.
+     *
+     *   The id of the transaction is looked up in {@code replayFilter} first,
+     *   so a transaction which is submitted again is rejected without
+     *   checking its signatures. Otherwise it is checked and, if valid,
+     *   processed and its id recorded.
+     *
+     *   returns true if the transaction was processed
+     */    
+
+    public boolean processTransactionOnce(Transaction tx,ReplayFilter replayFilter){
+	Hash txId = tx.getTxId();
+	if (replayFilter.isDuplicate(txId)){
+	    return false;
+	}
+	if (!checkTransactionValid(tx)){
+	    return false;
+	}
+	processTransaction(tx);
+	replayFilter.record(txId);
+	return true;
+    };
+
+
+    /** 
+     * as processTransactionOnce(Transaction,ReplayFilter) for a transaction
+     *   stored in a TransactionView, except that its signatures are not
+     *   checked: the caller must have checked them, so that this can be
+     *   done before taking a lock, as in TransactionServer.
+     */    
+
+    public boolean processTransactionOnce(TransactionView tx,ReplayFilter replayFilter){
+	Hash txId = tx.getTxId();
+	if (replayFilter.isDuplicate(txId)){
+	    return false;
+	}
+	if (!tx.checkTransactionAmountsValid() || !checkTransactionCanBeDeducted(tx)){
+	    return false;
+	}
+	processTransaction(tx);
+	replayFilter.record(txId);
+	return true;
     };
 
     
@@ -259,7 +942,7 @@ public class AccountBalance {
      */
 
     public void print(PublicKeyMap pubKeyMap) {
-	for (PublicKey publicKey : publicKeyList ) {
+	for (PublicKey publicKey : getPublicKeysOrdered() ) {
 	    Integer value = getBalance(publicKey);
 	    System.out.println("The balance for " +
 			       pubKeyMap.getUser(publicKey) + " is " + value); 
@@ -482,6 +1165,159 @@ public class AccountBalance {
         System.out.println("C3: "+ accounts.getBalance(carolWallet.getPublicKey("C3")));
         System.out.println("D1: "+ accounts.getBalance(davidWallet.getPublicKey("D1")));
 
+        // =========================== CASE 18 ===========================
+        // Submitting the same transaction twice
+        System.out.println("\n========== Test 18 ==========\n");
+        accounts.addToBalance(aliceWallet.getPublicKey("A2"),10);
+        TxOutputList tx3_out = new TxOutputList(bobWallet.getPublicKey("B1"),5);
+        TxInputList tx3_input = new TxInputList(aliceWallet.getPublicKey("A2"),5,tx3_out,aliceWallet);
+        Transaction tx3 = new Transaction(tx3_input,tx3_out);
+        ReplayFilter replayFilter = new ReplayFilter(60000,1000);
+        System.out.println("First submission processed (expected true) = "
+                + accounts.processTransactionOnce(tx3,replayFilter));
+        System.out.println("Second submission processed (expected false) = "
+                + accounts.processTransactionOnce(tx3,replayFilter));
+        System.out.println("A2: "+ accounts.getBalance(aliceWallet.getPublicKey("A2")));
+        System.out.println("B1: "+ accounts.getBalance(bobWallet.getPublicKey("B1")));
+
+        // =========================== CASE 19 ===========================
+        // State commitment
+        System.out.println("\n========== Test 19 ==========\n");
+        AccountBalance copy = new AccountBalance();
+        for (PublicKey publicKey : accounts.getPublicKeysOrdered()){
+            copy.addAccount(publicKey,accounts.getBalance(publicKey));
+        }
+        System.out.println("State root = " + accounts.getStateRoot().toShortString());
+        System.out.println("Copy has same root (expected true) = "
+                + accounts.getStateRoot().equals(copy.getStateRoot()));
+        copy.addToBalance(carolWallet.getPublicKey("C3"),1);
+        System.out.println("Copy has same root after changing C3 (expected false) = "
+                + accounts.getStateRoot().equals(copy.getStateRoot()));
+        StateProof proofC1 = accounts.getAccountProof(carolWallet.getPublicKey("C1"));
+        System.out.println("Proof for C1 shows balance " + proofC1.getBalance()
+                + ", valid (expected true) = " + proofC1.verify(accounts.getStateRoot()));
+
+        // =========================== CASE 20 ===========================
+        // Concurrent credits to a hot account
+        System.out.println("\n========== Test 20 ==========\n");
+        PublicKey hotKey = davidWallet.getPublicKey("D1");
+        int hotBefore = accounts.getBalance(hotKey);
+        Hash rootBefore = accounts.getStateRoot();
+        accounts.markHot(hotKey);
+        Thread[] crediting = new Thread[4];
+        for (int i = 0; i < crediting.length; i++){
+            crediting[i] = new Thread(() -> {
+                    for (int j = 0; j < 100000; j++){
+                        accounts.addToBalance(hotKey,1);
+                    }
+                });
+            crediting[i].start();
+        }
+        /* debit the hot account while it is credited, without a lock */
+        int debits = 0;
+        for (Thread thread : crediting){
+            while (thread.isAlive()){
+                if (accounts.getBalance(hotKey) > 0){
+                    accounts.subtractFromBalance(hotKey,1);
+                    debits++;
+                }
+            }
+        }
+        System.out.println("D1 after 400000 credits and " + debits + " debits is exact (expected true) = "
+                + (accounts.getBalance(hotKey) == hotBefore + 400000 - debits));
+        accounts.subtractFromBalance(hotKey,400000 - debits);
+        accounts.unmarkHot(hotKey);
+        System.out.println("Same root after taking the credits back (expected true) = "
+                + rootBefore.equals(accounts.getStateRoot()));
+        accounts.markHot(hotKey);
+        accounts.addToBalance(hotKey,Integer.MAX_VALUE);
+        try {
+            accounts.getBalance(hotKey);
+            System.out.println("Credits beyond an int rejected (expected true) = false");
+        } catch (ArithmeticException e) {
+            System.out.println("Credits beyond an int rejected (expected true) = true");
+        }
+        accounts.addToBalance(hotKey,-Integer.MAX_VALUE);
+        accounts.unmarkHot(hotKey);
+        System.out.println("Same root after taking them back (expected true) = "
+                + rootBefore.equals(accounts.getStateRoot()));
+
+        // =========================== CASE 21 ===========================
+        // Total supply and fees
+        System.out.println("\n========== Test 21 ==========\n");
+        long sum = 0;
+        for (PublicKey publicKey : accounts.getPublicKeys()){
+            sum += accounts.getBalance(publicKey);
+        }
+        System.out.println("Total supply " + accounts.getTotalSupply() + " (expected " + sum + ")");
+        accounts.setConservationChecked(true);
+        accounts.beginBlock();
+        TxOutputList tx4_out = new TxOutputList(bobWallet.getPublicKey("B1"),3);
+        Transaction tx4 = new Transaction(new TxInputList(aliceWallet.getPublicKey("A2"),5,tx4_out,aliceWallet),tx4_out);
+        accounts.processTransaction(tx4);
+        System.out.println("Block fees " + accounts.endBlock() + ", total supply "
+                + accounts.getTotalSupply() + " (expected 2, " + (sum - 2) + ")");
+        TxOutputList tx5_out = new TxOutputList(bobWallet.getPublicKey("B1"),5);
+        Transaction tx5 = new Transaction(new TxInputList(aliceWallet.getPublicKey("A2"),1,tx5_out,aliceWallet),tx5_out);
+        try {
+            accounts.processTransaction(tx5);
+            System.out.println("Transaction creating value detected (expected true) = false");
+        } catch (IllegalStateException e) {
+            System.out.println("Transaction creating value detected (expected true) = true: " + e.getMessage());
+        }
+        accounts.setConservationChecked(false);
+        System.out.println("Total fees (expected 2) = " + accounts.getTotalFees());
+
+        // =========================== CASE 22 ===========================
+        // Compaction of empty accounts
+        System.out.println("\n========== Test 22 ==========\n");
+        AccountBalance compacted = new AccountBalance();
+        compacted.enableStateCommitment();
+        for (PublicKey publicKey : accounts.getPublicKeysOrdered()){
+            compacted.addAccount(publicKey,accounts.getBalance(publicKey));
+        }
+        System.out.println("Removed in three steps of 3 keys (expected 3) = "
+                + (compacted.compactStep(3) + compacted.compactStep(3) + compacted.compactStep(3)));
+        System.out.println("Removed by compact afterwards (expected 0) = " + compacted.compact());
+        System.out.println("Keys left " + compacted.getPublicKeysOrdered().size() + " of "
+                + accounts.getPublicKeysOrdered().size() + " (expected 5 of 8)");
+        System.out.println("B2 balance " + compacted.getBalance(bobWallet.getPublicKey("B2"))
+                + ", has entry " + compacted.hasPublicKey(bobWallet.getPublicKey("B2")) + " (expected 0, false)");
+        AccountBalance live = new AccountBalance();
+        for (PublicKey publicKey : compacted.getPublicKeysOrdered()){
+            live.addAccount(publicKey,compacted.getBalance(publicKey));
+        }
+        System.out.println("State root as if never added (expected true) = "
+                + live.getStateRoot().equals(compacted.getStateRoot()));
+        compacted.addAccount(bobWallet.getPublicKey("B2"),4);
+        System.out.println("B2 added again, keys (expected 6) = " + compacted.getPublicKeysOrdered().size());
+        AccountBalance readded = new AccountBalance();
+        readded.addAccount(aliceWallet.getPublicKey("A1"),0);
+        readded.addAccount(bobWallet.getPublicKey("B1"),5);
+        readded.compactStep(1);
+        readded.addAccount(aliceWallet.getPublicKey("A1"),3);
+        readded.compactStep(1);
+        ArrayList<PublicKey> readdedKeys = readded.getPublicKeysOrdered();
+        System.out.println("A1 added again before the list is rebuilt comes last, once (expected true) = "
+                + (readdedKeys.size() == 2 && readdedKeys.get(1).equals(aliceWallet.getPublicKey("A1"))));
+
+        /* many accounts, most of them emptied, compacted in the background */
+        Wallet manyWallet = SampleWallet.generate(new String[]{ "M1", "M2", "M3", "M4"});
+        AccountBalance many = new AccountBalance();
+        for (int i = 0; i < 4; i++){
+            many.addAccount(manyWallet.getPublicKey("M" + (i + 1)),i % 2);
+        }
+        many.startCompaction(1,1);
+        long deadline = System.currentTimeMillis() + 10000;
+        int left = 4;
+        while (left > 2 && System.currentTimeMillis() < deadline){
+            synchronized (many){
+                left = many.getPublicKeysOrdered().size();
+            }
+        }
+        many.stopCompaction();
+        System.out.println("Accounts left after background compaction (expected 2) = " + left);
+
         // =========================== Final Values ===========================
         // Final account values
         System.out.println("\n======== Final Values ========\n");
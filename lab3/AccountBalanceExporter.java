@@ -0,0 +1,348 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+
+/** AccountBalanceExporter
+ *   writes the entries of an AccountBalance to a WritableByteChannel
+ *   (a file, a socket, ...), either as CSV or in a binary format.
+ *
+ *   All output goes through one large buffer which is reused for every
+ *   export, so there is one write to the channel per buffer full rather
+ *   than per account. The names of the keys are looked up in a snapshot
+ *   of the map from public keys to names taken once per export.
+ *
+ *   An exporter is not thread safe, since it has a single buffer.
+ */
+
+public class AccountBalanceExporter {
+
+    /** default size of the buffer */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /** smallest size of the buffer; records larger than the buffer are written directly */
+    public static final int MIN_BUFFER_SIZE = 64;
+
+    /** first bytes of the binary format */
+    private static final int MAGIC = 0x4c444752; // "LDGR"
+
+    /** version of the binary format */
+    private static final int VERSION = 1;
+
+    /** the longest encoded key importBinary accepts */
+    private static final int MAX_KEY_LENGTH = 1 << 16;
+
+    /** the buffer reused by all exports */
+    private ByteBuffer buffer;
+
+    /** the channel of the current export */
+    private WritableByteChannel channel;
+
+    /** number of bytes written by the current export */
+    private long bytesWritten;
+
+    /**
+     * Create an exporter with a buffer of DEFAULT_BUFFER_SIZE bytes
+     */
+
+    public AccountBalanceExporter(){
+	this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create an exporter with a buffer of {@code bufferSize} bytes,
+     *   at least MIN_BUFFER_SIZE
+     */
+
+    public AccountBalanceExporter(int bufferSize){
+	buffer = ByteBuffer.allocateDirect(Math.max(bufferSize,MIN_BUFFER_SIZE));
+    }
+
+    /* write the buffer to the channel */
+
+    private void flush() throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining()){
+	    bytesWritten += channel.write(buffer);
+	}
+	buffer.clear();
+    }
+
+    /* make sure there is room for n bytes in the buffer,
+       at most its capacity */
+
+    private void ensureRemaining(int n) throws IOException {
+	if (buffer.remaining() < n){
+	    flush();
+	}
+    }
+
+    /* write a record larger than the buffer directly to the channel */
+
+    private void writeDirect(ByteBuffer record) throws IOException {
+	flush();
+	while (record.hasRemaining()){
+	    bytesWritten += channel.write(record);
+	}
+    }
+
+    private void start(WritableByteChannel channel){
+	this.channel = channel;
+	this.bytesWritten = 0;
+	buffer.clear();
+    }
+
+    private ExportStats finish(long accounts,long startNanos) throws IOException {
+	flush();
+	channel = null;
+	return new ExportStats(accounts,bytesWritten,System.nanoTime() - startNanos);
+    }
+
+    /* append a CSV field, quoted if necessary */
+
+    private static void appendField(StringBuilder line,String field){
+	if (field == null){
+	    return;
+	}
+	if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0
+	    && field.indexOf('\r') < 0){
+	    line.append(field);
+	} else {
+	    line.append('"').append(field.replace("\"","\"\"")).append('"');
+	}
+    }
+
+    /**
+     * Write the entries of {@code accountBalance} in the order they were
+     *   added as CSV with columns name, fingerprint of the key and balance.
+     *   The names are taken from {@code pubKeyMap}, the name is empty for
+     *   keys not in it.
+     */
+
+    public ExportStats exportCsv(AccountBalance accountBalance,PublicKeyMap pubKeyMap,
+				 WritableByteChannel channel) throws IOException {
+	return exportCsv(accountBalance.getPublicKeysOrdered(),accountBalance::getBalance,pubKeyMap,channel);
+    }
+
+    /**
+     * Write the entries of {@code snapshot} as CSV, as for an AccountBalance
+     */
+
+    public ExportStats exportCsv(AccountBalanceSnapshot snapshot,PublicKeyMap pubKeyMap,
+				 WritableByteChannel channel) throws IOException {
+	return exportCsv(snapshot.getPublicKeysOrdered(),snapshot::getBalance,pubKeyMap,channel);
+    }
+
+    private ExportStats exportCsv(List<PublicKey> publicKeys,ToIntFunction<PublicKey> balances,
+				  PublicKeyMap pubKeyMap,WritableByteChannel channel) throws IOException {
+	long startNanos = System.nanoTime();
+	start(channel);
+	Map<PublicKey,String> names = pubKeyMap.publicKey2User();
+	StringBuilder line = new StringBuilder(128);
+	buffer.put("name,fingerprint,balance\n".getBytes(StandardCharsets.UTF_8));
+	long accounts = 0;
+	for (PublicKey publicKey : publicKeys){
+	    appendField(line,names.get(publicKey));
+	    line.append(',').append(KeyUtils.fingerprint(publicKey)).append(',')
+		.append(balances.applyAsInt(publicKey)).append('\n');
+	    byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+	    if (bytes.length > buffer.capacity()){
+		writeDirect(ByteBuffer.wrap(bytes));
+	    } else {
+		ensureRemaining(bytes.length);
+		buffer.put(bytes);
+	    }
+	    line.setLength(0);
+	    accounts++;
+	}
+	return finish(accounts,startNanos);
+    }
+
+    /**
+     * Write the entries of {@code accountBalance} in the order they were
+     *   added in binary format:
+     *   the int MAGIC, the int VERSION, the int number of entries, and then
+     *   for each entry the length of the encoded public key as an int, the
+     *   encoded key, and the balance as an int.
+     */
+
+    public ExportStats exportBinary(AccountBalance accountBalance,WritableByteChannel channel)
+	throws IOException {
+	return exportBinary(accountBalance.getPublicKeysOrdered(),accountBalance::getBalance,channel);
+    }
+
+    /**
+     * Write the entries of {@code snapshot} in binary format, as for an AccountBalance
+     */
+
+    public ExportStats exportBinary(AccountBalanceSnapshot snapshot,WritableByteChannel channel)
+	throws IOException {
+	return exportBinary(snapshot.getPublicKeysOrdered(),snapshot::getBalance,channel);
+    }
+
+    private ExportStats exportBinary(List<PublicKey> publicKeys,ToIntFunction<PublicKey> balances,
+				     WritableByteChannel channel) throws IOException {
+	long startNanos = System.nanoTime();
+	start(channel);
+	buffer.putInt(MAGIC);
+	buffer.putInt(VERSION);
+	buffer.putInt(publicKeys.size());
+	long accounts = 0;
+	for (PublicKey publicKey : publicKeys){
+	    byte[] encoded = publicKey.getEncoded();
+	    int length = 2 * Integer.BYTES + encoded.length;
+	    if (length > buffer.capacity()){
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(encoded.length).put(encoded).putInt(balances.applyAsInt(publicKey)).flip();
+		writeDirect(record);
+	    } else {
+		ensureRemaining(length);
+		buffer.putInt(encoded.length);
+		buffer.put(encoded);
+		buffer.putInt(balances.applyAsInt(publicKey));
+	    }
+	    accounts++;
+	}
+	return finish(accounts,startNanos);
+    }
+
+    /* read exactly n bytes from the channel into b */
+
+    private static ByteBuffer readFully(ReadableByteChannel channel,ByteBuffer b) throws IOException {
+	while (b.hasRemaining()){
+	    if (channel.read(b) < 0){
+		throw new IOException("unexpected end of ledger export");
+	    }
+	}
+	b.flip();
+	return b;
+    }
+
+    /**
+     * Read an AccountBalance written by exportBinary; throws an IOException
+     *   if the data read is not such an export
+     */
+
+    public static AccountBalance importBinary(ReadableByteChannel channel) throws IOException {
+	ByteBuffer header = readFully(channel,ByteBuffer.allocate(3 * Integer.BYTES));
+	if (header.getInt() != MAGIC || header.getInt() != VERSION){
+	    throw new IOException("not a ledger export of version " + VERSION);
+	}
+	int count = header.getInt();
+	if (count < 0){
+	    throw new IOException("invalid number of entries " + count + " in ledger export");
+	}
+	AccountBalance result = new AccountBalance();
+	ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+	for (int i = 0; i < count; i++){
+	    length.clear();
+	    int keyLength = readFully(channel,length).getInt();
+	    if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH){
+		throw new IOException("invalid key length " + keyLength + " of entry " + i + " in ledger export");
+	    }
+	    ByteBuffer entry = readFully(channel,ByteBuffer.allocate(keyLength + Integer.BYTES));
+	    byte[] encoded = new byte[keyLength];
+	    entry.get(encoded);
+	    PublicKey publicKey;
+	    try {
+		publicKey = KeyUtils.decodePublicKey(encoded);
+	    } catch (IllegalArgumentException e) {
+		throw new IOException("invalid key of entry " + i + " in ledger export",e);
+	    }
+	    result.addAccount(publicKey,entry.getInt());
+	}
+	return result;
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test() throws NoSuchAlgorithmException, IOException {
+	String[] names = new String[]{ "Alice", "Bob", "Carol, Jr."};
+	Wallet wallet = SampleWallet.generate(names);
+	PublicKeyMap pubKeyMap = wallet.toPublicKeyMap();
+	AccountBalance accountBalance = new AccountBalance();
+	for (int i = 0; i < names.length; i++){
+	    accountBalance.addAccount(wallet.getPublicKey(names[i]),10 * (i + 1));
+	}
+	AccountBalanceExporter exporter = new AccountBalanceExporter(4096);
+
+	ByteArrayOutputStream csv = new ByteArrayOutputStream();
+	ExportStats stats = exporter.exportCsv(accountBalance,pubKeyMap,Channels.newChannel(csv));
+	System.out.println("CSV export: " + stats);
+	System.out.print(csv.toString("UTF-8"));
+	csv.reset();
+	exporter.exportCsv(new AccountBalance(),pubKeyMap,Channels.newChannel(csv));
+	System.out.print("CSV export of empty ledger (expected header only) = " + csv.toString("UTF-8"));
+	Wallet crWallet = SampleWallet.generate(new String[]{ "Carriage\rReturn"});
+	AccountBalance crBalance = new AccountBalance();
+	crBalance.addAccount(crWallet.getPublicKey("Carriage\rReturn"),1);
+	csv.reset();
+	exporter.exportCsv(crBalance,crWallet.toPublicKeyMap(),Channels.newChannel(csv));
+	System.out.println("Name containing \\r quoted (expected true) = "
+			   + csv.toString("UTF-8").contains("\"Carriage\rReturn\""));
+
+	ByteArrayOutputStream binary = new ByteArrayOutputStream();
+	stats = exporter.exportBinary(accountBalance,Channels.newChannel(binary));
+	System.out.println("Binary export: " + stats);
+	AccountBalance imported = importBinary(Channels.newChannel(new ByteArrayInputStream(binary.toByteArray())));
+	System.out.println("Imported ledger has same state (expected true) = "
+			   + imported.getStateRoot().equals(accountBalance.getStateRoot()));
+	byte[] corrupt = binary.toByteArray();
+	ByteBuffer.wrap(corrupt).putInt(3 * Integer.BYTES,-1);
+	try {
+	    importBinary(Channels.newChannel(new ByteArrayInputStream(corrupt)));
+	    System.out.println("Corrupt key length rejected (expected true) = false");
+	} catch (IOException e) {
+	    System.out.println("Corrupt key length rejected (expected true) = true: " + e.getMessage());
+	}
+
+	/* records larger than the buffer are written directly */
+	binary.reset();
+	stats = new AccountBalanceExporter(0).exportBinary(accountBalance,Channels.newChannel(binary));
+	imported = importBinary(Channels.newChannel(new ByteArrayInputStream(binary.toByteArray())));
+	System.out.println("Export with a buffer of " + MIN_BUFFER_SIZE + " bytes: " + stats
+			   + ", same state (expected true) = "
+			   + imported.getStateRoot().equals(accountBalance.getStateRoot()));
+
+	/* a larger ledger written to a file, with generated keys repeated */
+	AccountBalance large = new AccountBalance();
+	KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+	for (int i = 0; i < 20000; i++){
+	    large.addAccount(generator.generateKeyPair().getPublic(),i);
+	}
+	Path file = Files.createTempFile("ledger",".csv");
+	try (FileChannel out = FileChannel.open(file,StandardOpenOption.WRITE)){
+	    stats = new AccountBalanceExporter().exportCsv(large,pubKeyMap,out);
+	}
+	System.out.println("CSV export of 20000 accounts to file: " + stats);
+	System.out.println("Lines in file (expected 20001) = " + Files.readAllLines(file).size());
+	Files.delete(file);
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args) throws NoSuchAlgorithmException, IOException {
+	AccountBalanceExporter.test();
+    }
+}
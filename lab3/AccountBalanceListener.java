@@ -0,0 +1,18 @@
+import java.security.PublicKey;
+
+
+/** AccountBalanceListener
+ *   is informed about every change of an entry of an AccountBalance,
+ *   so that data derived from the balances can be updated incrementally
+ *   rather than recomputed from all entries.
+ */
+
+public interface AccountBalanceListener {
+
+    /**
+     * the balance of {@code publicKey} changed from {@code oldBalance} to
+     *   {@code newBalance}; null stands for "no entry".
+     */
+
+    void balanceChanged(PublicKey publicKey,Integer oldBalance,Integer newBalance);
+}
@@ -0,0 +1,290 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/** AccountBalanceOverlay
+ *   an AccountBalance recording changes on top of a parent AccountBalance
+ *   without changing it, obtained by AccountBalance.overlay().
+ *
+ *   Only the entries changed in the overlay are stored in it, all other
+ *   reads go to the parent, so creating an overlay costs O(1) however large
+ *   the parent is. The changes are either written to the parent by commit()
+ *   or dropped by discard(), both in time proportional to the number of
+ *   entries changed. Overlays can be nested: the parent of an overlay may
+ *   itself be an overlay.
+ *
+ *   This allows a dry run of transactions, e.g. checking and processing a
+ *   sequence of transactions on an overlay to find out which of them can
+ *   be processed in order, without copying the accountBalance.
+ *
+ *   The overlay sees changes of the parent made after it was created for
+ *   entries it has not changed itself. For the entries it has changed it
+ *   remembers the balance of the parent when it first changed them, and
+ *   commit adds the difference to the current balance of the parent, so
+ *   changes of the parent meanwhile, including credits to hot accounts,
+ *   are kept. Listeners of the parent are informed about changes of the
+ *   overlay only when they are committed.
+ */
+
+public class AccountBalanceOverlay extends AccountBalance {
+
+    /** the accountBalance the overlay is on */
+    private final AccountBalance parent;
+
+    /** the entries changed in the overlay, in the order they were first changed */
+    private LinkedHashMap<PublicKey,Integer> changes = new LinkedHashMap<PublicKey,Integer>();
+
+    /** the keys not in the parent added in the overlay, in order */
+    private ArrayList<PublicKey> added = new ArrayList<PublicKey>();
+
+    /** the balance of the parent of each changed entry when the overlay first changed it */
+    private HashMap<PublicKey,Integer> read = new HashMap<PublicKey,Integer>();
+
+    /** the change of the total supply and the fees of the overlay up to the last commit or discard */
+    private long supplyCommitted;
+    private long feesCommitted;
+
+    /**
+     * Create an overlay on {@code parent}
+     */
+
+    public AccountBalanceOverlay(AccountBalance parent){
+	this.parent = parent;
+    }
+
+    /** the accountBalance the overlay is on */
+
+    public AccountBalance getParent(){
+	return parent;
+    }
+
+    /** the number of entries changed in the overlay */
+
+    public int getChangeCount(){
+	return changes.size();
+    }
+
+    @Override
+    public boolean hasPublicKey(PublicKey publicKey){
+	return changes.containsKey(publicKey) || parent.hasPublicKey(publicKey);
+    }
+
+    @Override
+    public int getBalance(PublicKey publicKey){
+	Integer balance = changes.get(publicKey);
+	return balance != null ? balance : parent.getBalance(publicKey);
+    }
+
+    @Override
+    public void setBalance(PublicKey publicKey,int amount){
+	Integer oldAmount = changes.put(publicKey,amount);
+	if (oldAmount == null){
+	    read.put(publicKey,parent.getBalance(publicKey));
+	    if (parent.hasPublicKey(publicKey)){
+		oldAmount = parent.getBalance(publicKey);
+	    } else {
+		added.add(publicKey);
+	    }
+	}
+	fireBalanceChanged(publicKey,oldAmount,amount);
+    }
+
+    /**
+     * hot accounts are not supported by overlays, whose getBalance does not
+     *   include pending credits
+     */
+
+    @Override
+    public void markHot(PublicKey publicKey){
+	throw new UnsupportedOperationException("an overlay has no hot accounts");
+    }
+
+    /**
+     * the total supply of the parent changed by the changes of the overlay
+     */
+
+    @Override
+    public long getTotalSupply(){
+	return parent.getTotalSupply() + super.getTotalSupply() - supplyCommitted;
+    }
+
+    /**
+     * the fees of the parent and of the transactions processed in the overlay
+     */
+
+    @Override
+    public long getTotalFees(){
+	return parent.getTotalFees() + super.getTotalFees() - feesCommitted;
+    }
+
+    /**
+     * the keys of the parent followed by the keys added in the overlay;
+     *   this takes O(n)
+     */
+
+    @Override
+    public ArrayList<PublicKey> getPublicKeysOrdered(){
+	ArrayList<PublicKey> result = new ArrayList<PublicKey>(parent.getPublicKeysOrdered());
+	result.addAll(added);
+	return result;
+    }
+
+    /**
+     * the keys with an entry; this takes O(n)
+     */
+
+    @Override
+    public Set<PublicKey> getPublicKeys(){
+	Set<PublicKey> result = new HashSet<PublicKey>(parent.getPublicKeys());
+	result.addAll(added);
+	return result;
+    }
+
+    /**
+     * a copy of all entries as seen through the overlay; this takes O(n)
+     */
+
+    @Override
+    public Hashtable<PublicKey,Integer> getAccountBalanceBase(){
+	Hashtable<PublicKey,Integer> result = new Hashtable<PublicKey,Integer>(parent.getAccountBalanceBase());
+	result.putAll(changes);
+	return result;
+    }
+
+    /* forget the changes of the totals made so far */
+
+    private void resetTotals(){
+	supplyCommitted = super.getTotalSupply();
+	feesCommitted = super.getTotalFees();
+    }
+
+    /**
+     * add the changes to the balances of the parent, in the order they were
+     *   made, and the fees of the processed transactions to its fees, and
+     *   start again with no changes.
+     *
+     *   Each entry changes by the amount it changed in the overlay, so changes
+     *   of the parent since then are kept. If the parent has changed such
+     *   that a balance decreased in the overlay would become negative, an
+     *   IllegalStateException is thrown and nothing is changed.
+     */
+
+    public void commit(){
+	for (Map.Entry<PublicKey,Integer> entry : changes.entrySet()){
+	    PublicKey publicKey = entry.getKey();
+	    long delta = (long) entry.getValue() - read.get(publicKey);
+	    if (delta < 0 && parent.getBalance(publicKey) + delta < 0){
+		throw new IllegalStateException("the parent has changed, committing would overdraw an account");
+	    }
+	}
+	LinkedHashMap<PublicKey,Integer> committed = changes;
+	HashMap<PublicKey,Integer> committedRead = read;
+	long fees = super.getTotalFees() - feesCommitted;
+	discard();
+	for (Map.Entry<PublicKey,Integer> entry : committed.entrySet()){
+	    PublicKey publicKey = entry.getKey();
+	    int delta = entry.getValue() - committedRead.get(publicKey);
+	    if (delta > 0){
+		parent.addToBalance(publicKey,delta);
+	    } else if (delta < 0){
+		parent.subtractFromBalance(publicKey,-delta);
+	    } else if (!parent.hasPublicKey(publicKey)){
+		parent.setBalance(publicKey,entry.getValue());
+	    }
+	}
+	parent.addFees(fees);
+    }
+
+    /**
+     * drop all changes
+     */
+
+    public void discard(){
+	changes = new LinkedHashMap<PublicKey,Integer>();
+	added = new ArrayList<PublicKey>();
+	read = new HashMap<PublicKey,Integer>();
+	resetTotals();
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKeyMap pubKeyMap = wallet.toPublicKeyMap();
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,50);
+	accountBalance.addAccount(pubKeyB,10);
+
+	AccountBalanceOverlay overlay = accountBalance.overlay();
+	TxOutputList txol = new TxOutputList(pubKeyC,30);
+	Transaction tx = new Transaction(new TxInputList(pubKeyA,30,txol,wallet),txol);
+	overlay.processTransaction(tx);
+	System.out.println("In overlay Alice " + overlay.getBalance(pubKeyA) + ", Carol "
+			   + overlay.getBalance(pubKeyC) + " (expected 20, 30)");
+	System.out.println("In parent Alice " + accountBalance.getBalance(pubKeyA) + ", Carol "
+			   + accountBalance.getBalance(pubKeyC) + " (expected 50, 0)");
+	System.out.println("Same transaction again valid in overlay (expected false) = "
+			   + overlay.checkTransactionValid(tx));
+
+	AccountBalanceOverlay nested = overlay.overlay();
+	nested.addToBalance(pubKeyB,5);
+	nested.discard();
+	System.out.println("After discarding nested overlay Bob (expected 10) = " + overlay.getBalance(pubKeyB));
+	nested.addToBalance(pubKeyB,7);
+	nested.commit();
+	System.out.println("After committing nested overlay Bob in overlay " + overlay.getBalance(pubKeyB)
+			   + ", in parent " + accountBalance.getBalance(pubKeyB) + " (expected 17, 10)");
+
+	System.out.println("Total supply in overlay " + overlay.getTotalSupply() + ", in parent "
+			   + accountBalance.getTotalSupply() + " (expected 67, 60)");
+	/* the parent changes while the overlay is open */
+	accountBalance.addToBalance(pubKeyA,5);
+	overlay.commit();
+	System.out.println("After committing overlay (expected Alice 25, Bob 17, Carol 30):");
+	accountBalance.print(pubKeyMap);
+	System.out.println("Changes left in overlay (expected 0) = " + overlay.getChangeCount());
+
+	overlay.subtractFromBalance(pubKeyB,17);
+	accountBalance.subtractFromBalance(pubKeyB,10);
+	try {
+	    overlay.commit();
+	    System.out.println("Overdraft detected (expected true) = false");
+	} catch (IllegalStateException e) {
+	    System.out.println("Overdraft detected (expected true) = true, Bob in parent (expected 7) = "
+			       + accountBalance.getBalance(pubKeyB));
+	}
+	overlay.discard();
+
+	accountBalance.markHot(pubKeyC);
+	overlay.addToBalance(pubKeyC,1);
+	accountBalance.addToBalance(pubKeyC,2);
+	overlay.commit();
+	System.out.println("Credits to a hot account kept, Carol (expected 33) = " + accountBalance.getBalance(pubKeyC));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	AccountBalanceOverlay.test();
+    }
+}
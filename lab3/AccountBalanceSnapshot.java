@@ -0,0 +1,214 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+
+
+/** AccountBalanceSnapshot
+ *   the entries of an AccountBalance at one point in time, unaffected by
+ *   later changes.
+ *
+ *   An AccountBalance with snapshots enabled keeps, besides its Hashtable,
+ *   a PersistentHashMap of its entries which is replaced by a new version
+ *   on every change, sharing all unchanged nodes with the previous one.
+ *   Taking a snapshot just takes the current version, so it costs O(1)
+ *   and does not stop the writer; a version no longer referenced by any
+ *   snapshot is reclaimed by the garbage collector.
+ *
+ *   Each entry also carries a number counting the keys in the order they
+ *   were added, so that getPublicKeysOrdered gives the same order as
+ *   AccountBalance.getPublicKeysOrdered.
+ */
+
+public class AccountBalanceSnapshot {
+
+    /* an entry of the snapshot */
+
+    static final class Entry {
+	final int balance;
+	final long ordinal;
+
+	Entry(int balance,long ordinal){
+	    this.balance = balance;
+	    this.ordinal = ordinal;
+	}
+    }
+
+    /**
+     * the listener maintaining the current version of the entries of an
+     *   AccountBalance, see AccountBalance.snapshot
+     */
+
+    static final class Versions implements AccountBalanceListener {
+
+	/** the current version */
+	private volatile PersistentHashMap<PublicKey,Entry> current;
+
+	/** the number given to the next key added */
+	private long nextOrdinal;
+
+	Versions(AccountBalance accountBalance){
+	    PersistentHashMap<PublicKey,Entry> entries = PersistentHashMap.empty();
+	    for (PublicKey publicKey : accountBalance.getPublicKeysOrdered()){
+		entries = entries.plus(publicKey,new Entry(accountBalance.getBalance(publicKey),nextOrdinal++));
+	    }
+	    current = entries;
+	}
+
+	@Override
+	public void balanceChanged(PublicKey publicKey,Integer oldBalance,Integer newBalance){
+	    if (newBalance == null){
+		current = current.minus(publicKey);
+	    } else {
+		Entry old = current.get(publicKey);
+		long ordinal = old != null ? old.ordinal : nextOrdinal++;
+		current = current.plus(publicKey,new Entry(newBalance,ordinal));
+	    }
+	}
+
+	AccountBalanceSnapshot snapshot(){
+	    return new AccountBalanceSnapshot(current);
+	}
+    }
+
+    /** the entries */
+    private final PersistentHashMap<PublicKey,Entry> entries;
+
+    private AccountBalanceSnapshot(PersistentHashMap<PublicKey,Entry> entries){
+	this.entries = entries;
+    }
+
+    /** true if there is an entry for {@code publicKey} */
+
+    public boolean hasPublicKey(PublicKey publicKey){
+	return entries.containsKey(publicKey);
+    }
+
+    /** the balance of {@code publicKey}, zero if there is no entry */
+
+    public int getBalance(PublicKey publicKey){
+	Entry entry = entries.get(publicKey);
+	return entry == null ? 0 : entry.balance;
+    }
+
+    /** the number of entries */
+
+    public int size(){
+	return entries.size();
+    }
+
+    /** the public keys with an entry */
+
+    public Set<PublicKey> getPublicKeys(){
+	return entries.keySet();
+    }
+
+    /** the public keys in the order they were added, this takes O(n log n) */
+
+    public ArrayList<PublicKey> getPublicKeysOrdered(){
+	ArrayList<Map.Entry<PublicKey,Entry>> sorted = new ArrayList<Map.Entry<PublicKey,Entry>>(entries.entrySet());
+	sorted.sort(Comparator.comparingLong(e -> e.getValue().ordinal));
+	ArrayList<PublicKey> result = new ArrayList<PublicKey>(sorted.size());
+	for (Map.Entry<PublicKey,Entry> e : sorted){
+	    result.add(e.getKey());
+	}
+	return result;
+    }
+
+    /** the sum of all balances */
+
+    public long getTotal(){
+	long result = 0;
+	for (Entry entry : entries.values()){
+	    result += entry.balance;
+	}
+	return result;
+    }
+
+    /** Prints the snapshot, as AccountBalance.print */
+
+    public void print(PublicKeyMap pubKeyMap){
+	for (PublicKey publicKey : getPublicKeysOrdered()){
+	    System.out.println("The balance for " +
+			       pubKeyMap.getUser(publicKey) + " is " + getBalance(publicKey));
+	}
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, IOException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKeyMap pubKeyMap = wallet.toPublicKeyMap();
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,30);
+	accountBalance.addAccount(pubKeyB,10);
+
+	AccountBalanceSnapshot before = accountBalance.snapshot();
+	TxOutputList txol = new TxOutputList(pubKeyC,25);
+	accountBalance.processTransaction(new Transaction(new TxInputList(pubKeyA,25,txol,wallet),txol));
+	AccountBalanceSnapshot after = accountBalance.snapshot();
+	System.out.println("Snapshot before: Alice " + before.getBalance(pubKeyA) + ", Carol "
+			   + before.getBalance(pubKeyC) + " (expected 30, 0)");
+	System.out.println("Snapshot after: Alice " + after.getBalance(pubKeyA) + ", Carol "
+			   + after.getBalance(pubKeyC) + " (expected 5, 25)");
+	System.out.println("Total before and after (expected 40 40) = " + before.getTotal() + " " + after.getTotal());
+	System.out.println("Snapshot after printed:");
+	after.print(pubKeyMap);
+
+	ByteArrayOutputStream csv = new ByteArrayOutputStream();
+	new AccountBalanceExporter().exportCsv(before,pubKeyMap,Channels.newChannel(csv));
+	System.out.println("Export of snapshot before (expected Alice 30, Bob 10):");
+	System.out.print(csv.toString("UTF-8"));
+
+	/* a writer changing balances while a reader sums up snapshots */
+	AccountBalance large = new AccountBalance();
+	PublicKey[] keys = new PublicKey[]{ pubKeyA, pubKeyB, pubKeyC};
+	for (PublicKey publicKey : keys){
+	    large.addAccount(publicKey,1000);
+	}
+	large.snapshot();
+	Thread writer = new Thread(() -> {
+		for (int i = 0; i < 100000; i++){
+		    synchronized (large){
+			large.subtractFromBalance(keys[i % 3],1);
+			large.addToBalance(keys[(i + 1) % 3],1);
+		    }
+		}
+	    });
+	writer.start();
+	boolean consistent = true;
+	while (writer.isAlive()){
+	    AccountBalanceSnapshot snapshot;
+	    /* only taking the snapshot needs the lock, summing it up does not */
+	    synchronized (large){
+		snapshot = large.snapshot();
+	    }
+	    consistent &= snapshot.getTotal() == 3000;
+	}
+	System.out.println("Snapshots taken between transfers always total 3000 (expected true) = " + consistent);
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, IOException {
+	AccountBalanceSnapshot.test();
+    }
+}
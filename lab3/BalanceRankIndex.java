@@ -0,0 +1,349 @@
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+
+/** BalanceRankIndex
+ *   the entries of an AccountBalance ordered by balance, for answering
+ *   "the n accounts with the largest balances", "the accounts with balance
+ *   between x and y" and "the rank of an account" without sorting all entries.
+ *
+ *   The entries are kept in a treap (a binary search tree balanced by random
+ *   priorities) ordered by (balance, fingerprint of the key), where every node
+ *   knows the size of its subtree. Changes and rank queries take O(log n),
+ *   queries returning k accounts O(log n + k).
+ *
+ *   The index is added as listener to the AccountBalance and so kept up to
+ *   date on every change of a balance.
+ */
+
+public class BalanceRankIndex implements AccountBalanceListener {
+
+    /* a node of the treap */
+
+    private static final class Node {
+	final int balance;
+	final Hash id;
+	final PublicKey publicKey;
+	final int priority;
+	int size;
+	Node left;
+	Node right;
+
+	Node(int balance,Hash id,PublicKey publicKey){
+	    this.balance = balance;
+	    this.id = id;
+	    this.publicKey = publicKey;
+	    /* the fingerprint is uniformly distributed, so it serves as random priority */
+	    this.priority = id.hashCode();
+	    this.size = 1;
+	}
+    }
+
+    /** the root of the treap */
+    private Node root;
+
+    /** the node of each key in the treap */
+    private HashMap<PublicKey,Node> nodes;
+
+    /**
+     * Create the index for {@code accountBalance} and register it as listener
+     */
+
+    public BalanceRankIndex(AccountBalance accountBalance){
+	nodes = new HashMap<PublicKey,Node>();
+	for (PublicKey publicKey : accountBalance.getPublicKeys()){
+	    update(publicKey,accountBalance.getBalance(publicKey));
+	}
+	accountBalance.addListener(this);
+    }
+
+    private static int compare(int balance1,Hash id1,int balance2,Hash id2){
+	int result = Integer.compare(balance1,balance2);
+	return result != 0 ? result : id1.compareTo(id2);
+    }
+
+    private static int compare(Node a,Node b){
+	return compare(a.balance,a.id,b.balance,b.id);
+    }
+
+    private static int size(Node node){
+	return node == null ? 0 : node.size;
+    }
+
+    private static void fix(Node node){
+	node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    /* split t into the nodes smaller than key (result[0]) and the others (result[1]) */
+
+    private static void split(Node t,Node key,Node[] result){
+	if (t == null){
+	    result[0] = null;
+	    result[1] = null;
+	} else if (compare(t,key) < 0){
+	    split(t.right,key,result);
+	    t.right = result[0];
+	    fix(t);
+	    result[0] = t;
+	} else {
+	    split(t.left,key,result);
+	    t.left = result[1];
+	    fix(t);
+	    result[1] = t;
+	}
+    }
+
+    private static Node insert(Node t,Node node){
+	if (t == null){
+	    return node;
+	}
+	if (node.priority > t.priority){
+	    Node[] parts = new Node[2];
+	    split(t,node,parts);
+	    node.left = parts[0];
+	    node.right = parts[1];
+	    fix(node);
+	    return node;
+	}
+	if (compare(node,t) < 0){
+	    t.left = insert(t.left,node);
+	} else {
+	    t.right = insert(t.right,node);
+	}
+	fix(t);
+	return t;
+    }
+
+    /* merge two treaps, all nodes of a are smaller than those of b */
+
+    private static Node merge(Node a,Node b){
+	if (a == null) return b;
+	if (b == null) return a;
+	if (a.priority > b.priority){
+	    a.right = merge(a.right,b);
+	    fix(a);
+	    return a;
+	}
+	b.left = merge(a,b.left);
+	fix(b);
+	return b;
+    }
+
+    private static Node delete(Node t,Node node){
+	if (t == null){
+	    return null;
+	}
+	int c = compare(node,t);
+	if (c == 0){
+	    return merge(t.left,t.right);
+	}
+	if (c < 0){
+	    t.left = delete(t.left,node);
+	} else {
+	    t.right = delete(t.right,node);
+	}
+	fix(t);
+	return t;
+    }
+
+    /* set the balance of a key, null removes it */
+
+    private void update(PublicKey publicKey,Integer balance){
+	Node old = nodes.remove(publicKey);
+	Hash id;
+	if (old != null){
+	    root = delete(root,old);
+	    id = old.id;
+	} else {
+	    id = KeyUtils.fingerprint(publicKey);
+	}
+	if (balance != null){
+	    Node node = new Node(balance,id,publicKey);
+	    nodes.put(publicKey,node);
+	    root = insert(root,node);
+	}
+    }
+
+    @Override
+    public synchronized void balanceChanged(PublicKey publicKey,Integer oldBalance,Integer newBalance){
+	update(publicKey,newBalance);
+    }
+
+    /**
+     * the number of accounts
+     */
+
+    public synchronized int size(){
+	return size(root);
+    }
+
+    /**
+     * the rank of {@code publicKey}: 1 for the account with the largest
+     *   balance, 2 for the next one, ..., or 0 if there is no entry for it.
+     *   Accounts with the same balance are ordered by their fingerprint.
+     */
+
+    public synchronized int getRank(PublicKey publicKey){
+	Node node = nodes.get(publicKey);
+	if (node == null){
+	    return 0;
+	}
+	int larger = 0;
+	Node t = root;
+	while (t != node){
+	    if (compare(node,t) < 0){
+		larger += 1 + size(t.right);
+		t = t.left;
+	    } else {
+		t = t.right;
+	    }
+	}
+	return larger + size(node.right) + 1;
+    }
+
+    /**
+     * the accounts with the {@code n} largest balances, largest first
+     */
+
+    public synchronized ArrayList<PublicKey> getTop(int n){
+	ArrayList<PublicKey> result = new ArrayList<PublicKey>();
+	ArrayDeque<Node> stack = new ArrayDeque<Node>();
+	Node t = root;
+	while (result.size() < n && (t != null || !stack.isEmpty())){
+	    if (t != null){
+		stack.push(t);
+		t = t.right;
+	    } else {
+		Node node = stack.pop();
+		result.add(node.publicKey);
+		t = node.left;
+	    }
+	}
+	return result;
+    }
+
+    /* number of accounts with balance smaller than {@code balance} */
+
+    private int countBelow(int balance){
+	int result = 0;
+	Node t = root;
+	while (t != null){
+	    if (t.balance < balance){
+		result += 1 + size(t.left);
+		t = t.right;
+	    } else {
+		t = t.left;
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * the number of accounts with {@code low <= balance <= high}, in time O(log n)
+     */
+
+    public synchronized int countInRange(int low,int high){
+	if (low > high){
+	    return 0;
+	}
+	int belowHigh = (high == Integer.MAX_VALUE) ? size(root) : countBelow(high + 1);
+	return belowHigh - countBelow(low);
+    }
+
+    /**
+     * the accounts with {@code low <= balance <= high}, smallest balance first
+     */
+
+    public synchronized ArrayList<PublicKey> getRange(int low,int high){
+	ArrayList<PublicKey> result = new ArrayList<PublicKey>();
+	ArrayDeque<Node> stack = new ArrayDeque<Node>();
+	Node t = root;
+	while (t != null || !stack.isEmpty()){
+	    if (t != null){
+		if (t.balance < low){
+		    /* t and its left subtree are below the range */
+		    t = t.right;
+		} else {
+		    stack.push(t);
+		    t = t.left;
+		}
+	    } else {
+		Node node = stack.pop();
+		if (node.balance > high){
+		    break;
+		}
+		result.add(node.publicKey);
+		t = node.right;
+	    }
+	}
+	return result;
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test() throws NoSuchAlgorithmException {
+	String[] names = new String[]{ "A", "B", "C", "D", "E", "F"};
+	Wallet wallet = SampleWallet.generate(names);
+	PublicKeyMap pubKeyMap = wallet.toPublicKeyMap();
+	AccountBalance accountBalance = new AccountBalance();
+	int[] balances = new int[]{ 50, 10, 30, 70, 20, 30};
+	for (int i = 0; i < names.length; i++){
+	    accountBalance.addAccount(wallet.getPublicKey(names[i]),balances[i]);
+	}
+	BalanceRankIndex index = accountBalance.enableRankIndex();
+	System.out.println("Top 3 (expected D A and C/F) = " + toNames(index.getTop(3),pubKeyMap));
+	System.out.println("Balance between 20 and 50 (expected E, C/F, C/F, A) = "
+			   + toNames(index.getRange(20,50),pubKeyMap));
+	System.out.println("Count between 20 and 50 (expected 4) = " + index.countInRange(20,50));
+	System.out.println("Rank of B (expected 6) = " + index.getRank(wallet.getPublicKey("B")));
+	accountBalance.addToBalance(wallet.getPublicKey("B"),100);
+	System.out.println("After adding 100 to B, rank of B (expected 1) = "
+			   + index.getRank(wallet.getPublicKey("B")));
+	System.out.println("Top 2 (expected B D) = " + toNames(index.getTop(2),pubKeyMap));
+	accountBalance.subtractFromBalance(wallet.getPublicKey("D"),65);
+	System.out.println("After subtracting 65 from D, rank of D (expected 6) = "
+			   + index.getRank(wallet.getPublicKey("D")));
+
+	/* compare with sorting for a larger index */
+	BalanceRankIndex big = new BalanceRankIndex(new AccountBalance());
+	Random random = new Random(1);
+	int[] counts = new int[1000];
+	KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+	for (int i = 0; i < 2000; i++){
+	    int balance = random.nextInt(1000);
+	    counts[balance]++;
+	    big.update(generator.generateKeyPair().getPublic(),balance);
+	}
+	int expected = 0;
+	for (int b = 100; b <= 200; b++){
+	    expected += counts[b];
+	}
+	System.out.println("Range query on 2000 accounts matches count (expected true) = "
+			   + (big.getRange(100,200).size() == expected && big.countInRange(100,200) == expected));
+    }
+
+    private static String toNames(ArrayList<PublicKey> keys,PublicKeyMap pubKeyMap){
+	StringBuilder result = new StringBuilder();
+	for (PublicKey publicKey : keys){
+	    result.append(pubKeyMap.getUser(publicKey)).append(" ");
+	}
+	return result.toString().trim();
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+	BalanceRankIndex.test();
+    }
+}
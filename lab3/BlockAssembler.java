@@ -0,0 +1,270 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+/** BlockAssembler
+ *   chooses the pending transactions for the next block, preferring those
+ *   paying the highest fee per byte, such that the block does not exceed
+ *   a number of bytes and of transactions, and processing the block in
+ *   order is valid w.r.t. the AccountBalance.
+ *
+ *   The amounts and signatures of a transaction are checked once when it
+ *   is added, and a transaction with the same id as a pending one is not
+ *   added again, so a resubmitted transaction is in a block at most once.
+ *
+ *   Assembling takes the candidates by decreasing fee rate and checks each
+ *   against an AccountBalanceOverlay of the AccountBalance to which the
+ *   transactions chosen so far have been applied, so the AccountBalance is
+ *   neither copied nor changed. A candidate which cannot be deducted yet,
+ *   because it spends an amount which an earlier candidate still to be
+ *   chosen pays to its sender, waits until a chosen transaction pays to
+ *   that sender.
+ */
+
+public class BlockAssembler {
+
+    /* a pending transaction */
+
+    private static final class Candidate {
+	final SealedTransaction tx;
+	final int size;
+	final long sequence;
+
+	Candidate(SealedTransaction tx,int size,long sequence){
+	    this.tx = tx;
+	    this.size = size;
+	    this.sequence = sequence;
+	}
+    }
+
+    /** highest fee per byte first, earlier first for equal rates */
+    private static int compareByFeeRate(Candidate a,Candidate b){
+	int result = Long.compare((long) b.tx.getFee() * a.size,(long) a.tx.getFee() * b.size);
+	return result != 0 ? result : Long.compare(a.sequence,b.sequence);
+    }
+
+    /* the first sender of tx whose debit cannot be deducted from accountBalance, or null */
+
+    private static PublicKey findShortfall(AccountBalance accountBalance,SealedTransaction tx){
+	for (Map.Entry<PublicKey,Integer> debit : tx.getDebits().entrySet()){
+	    if (accountBalance.getBalance(debit.getKey()) < debit.getValue()){
+		return debit.getKey();
+	    }
+	}
+	return null;
+    }
+
+    /** the ledger the blocks are built for */
+    private final AccountBalance accountBalance;
+
+    /** the largest number of bytes of a block, counted as TransactionViews */
+    private final int maxBytes;
+
+    /** the largest number of transactions of a block */
+    private final int maxCount;
+
+    /** the pending transactions by id */
+    private final LinkedHashMap<Hash,Candidate> pending = new LinkedHashMap<Hash,Candidate>();
+
+    /** the number of transactions added so far */
+    private long added;
+
+    /** the fees of the last block assembled */
+    private long lastFees;
+
+    /** the bytes of the last block assembled */
+    private long lastBytes;
+
+    /**
+     * Create an assembler for {@code accountBalance} building blocks of at most
+     *   {@code maxBytes} bytes and {@code maxCount} transactions
+     */
+
+    public BlockAssembler(AccountBalance accountBalance,int maxBytes,int maxCount){
+	this.accountBalance = accountBalance;
+	this.maxBytes = maxBytes;
+	this.maxCount = maxCount;
+    }
+
+    /**
+     * add {@code tx} to the pending transactions if it is not pending yet
+     *   and its amounts and signatures are valid, and return whether it was added
+     */
+
+    public synchronized boolean add(SealedTransaction tx){
+	if (pending.containsKey(tx.getTxId())){
+	    return false;
+	}
+	if (!tx.checkTransactionAmountsValid() || !tx.checkSignaturesValid()){
+	    return false;
+	}
+	int size = TransactionView.encodedLength(tx.toTransaction());
+	if (size > maxBytes){
+	    return false;
+	}
+	pending.put(tx.getTxId(),new Candidate(tx,size,added++));
+	return true;
+    }
+
+    /**
+     * as before for a Transaction
+     */
+
+    public boolean add(Transaction tx){
+	return add(SealedTransaction.of(tx));
+    }
+
+    /** the number of pending transactions */
+
+    public synchronized int size(){
+	return pending.size();
+    }
+
+    /**
+     * the next block: pending transactions in the order in which they can be
+     *   processed. The AccountBalance and the pending transactions are not changed.
+     */
+
+    public synchronized List<SealedTransaction> assemble(){
+	PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(BlockAssembler::compareByFeeRate);
+	queue.addAll(pending.values());
+	AccountBalanceOverlay scratch = accountBalance.overlay();
+	HashMap<PublicKey,ArrayList<Candidate>> waiting = new HashMap<PublicKey,ArrayList<Candidate>>();
+	ArrayList<SealedTransaction> block = new ArrayList<SealedTransaction>();
+	long bytes = 0;
+	long fees = 0;
+	while (!queue.isEmpty() && block.size() < maxCount){
+	    Candidate candidate = queue.poll();
+	    if (bytes + candidate.size > maxBytes){
+		continue;
+	    }
+	    PublicKey shortfall = findShortfall(scratch,candidate.tx);
+	    if (shortfall != null){
+		waiting.computeIfAbsent(shortfall,k -> new ArrayList<Candidate>()).add(candidate);
+		continue;
+	    }
+	    scratch.processTransaction(candidate.tx);
+	    block.add(candidate.tx);
+	    bytes += candidate.size;
+	    fees += candidate.tx.getFee();
+	    for (TxOutput txOutput : candidate.tx.getOutputs()){
+		ArrayList<Candidate> credited = waiting.remove(txOutput.getRecipient());
+		if (credited != null){
+		    queue.addAll(credited);
+		}
+	    }
+	}
+	lastFees = fees;
+	lastBytes = bytes;
+	return block;
+    }
+
+    /**
+     * remove the transactions with the ids of those of {@code block} from
+     *   the pending transactions, e.g. after the block has been processed
+     */
+
+    public synchronized void remove(Collection<SealedTransaction> block){
+	for (SealedTransaction tx : block){
+	    pending.remove(tx.getTxId());
+	}
+    }
+
+    /** the sum of the fees of the last block assembled */
+
+    public synchronized long getLastFees(){
+	return lastFees;
+    }
+
+    /** the number of bytes of the last block assembled */
+
+    public synchronized long getLastBytes(){
+	return lastBytes;
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol", "David"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	PublicKey pubKeyD = wallet.getPublicKey("David");
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,100);
+
+	/* Bob can only pay Carol after Alice has paid Bob, but pays a higher fee */
+	SealedTransaction aliceToBob = new SealedTransaction.Builder()
+	    .addOutput(pubKeyB,50).addInput(pubKeyA,51,wallet).build();
+	SealedTransaction bobToCarol = new SealedTransaction.Builder()
+	    .addOutput(pubKeyC,40).addInput(pubKeyB,50,wallet).build();
+	SealedTransaction aliceToDavid = new SealedTransaction.Builder()
+	    .addOutput(pubKeyD,30).addInput(pubKeyA,35,wallet).build();
+	SealedTransaction aliceToCarol = new SealedTransaction.Builder()
+	    .addOutput(pubKeyC,30).addInput(pubKeyA,30,wallet).build();
+	BlockAssembler assembler = new BlockAssembler(accountBalance,100000,10);
+	for (SealedTransaction tx : new SealedTransaction[]{ aliceToCarol, bobToCarol, aliceToBob, aliceToDavid }){
+	    assembler.add(tx);
+	}
+	System.out.println("Resubmitted transaction added (expected false) = "
+			   + assembler.add(SealedTransaction.of(aliceToBob.toTransaction())));
+	List<SealedTransaction> block = assembler.assemble();
+	System.out.println("Block has " + block.size() + " transactions (expected 3), fees "
+			   + assembler.getLastFees() + " (expected 16)");
+	System.out.println("Order David, Bob, Carol (expected true) = "
+			   + (block.get(0) == aliceToDavid && block.get(1) == aliceToBob && block.get(2) == bobToCarol));
+	boolean valid = true;
+	for (SealedTransaction tx : block){
+	    valid &= accountBalance.checkTransactionValid(tx);
+	    accountBalance.processTransaction(tx);
+	}
+	System.out.println("Block valid in order (expected true) = " + valid);
+	assembler.remove(block);
+	System.out.println("Pending after removing block (expected 1) = " + assembler.size());
+
+	/* many pending transactions, each submitted twice */
+	AccountBalance large = new AccountBalance();
+	large.addAccount(pubKeyA,1000000);
+	ArrayList<SealedTransaction> distinct = new ArrayList<SealedTransaction>();
+	for (int i = 0; i < 2000; i++){
+	    int fee = 1 + i % 20;
+	    distinct.add(new SealedTransaction.Builder()
+			 .addOutput(pubKeyB,10 + i).addInput(pubKeyA,10 + i + fee,wallet).build());
+	}
+	BlockAssembler big = new BlockAssembler(large,1 << 20,1000);
+	for (int i = 0; i < 2 * distinct.size(); i++){
+	    big.add(distinct.get(i % distinct.size()));
+	}
+	long start = System.nanoTime();
+	List<SealedTransaction> bigBlock = big.assemble();
+	long millis = (System.nanoTime() - start) / 1000000;
+	System.out.println("Assembled " + bigBlock.size() + " of " + big.size() + " pending in " + millis
+			   + "ms, " + big.getLastBytes() + " bytes, fees " + big.getLastFees());
+	System.out.println("Highest fee first (expected 20) = " + bigBlock.get(0).getFee());
+	System.out.println("Each transaction at most once (expected true) = "
+			   + (bigBlock.stream().map(SealedTransaction::getTxId).distinct().count() == bigBlock.size()));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	BlockAssembler.test();
+    }
+}
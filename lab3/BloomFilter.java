@@ -0,0 +1,129 @@
+import java.util.Arrays;
+
+
+/** BloomFilter
+ *   a set of hashes which may answer "maybe contained" for a hash which
+ *   was never added, but never answers "not contained" for a hash which was.
+ *
+ *   It takes a fixed number of bits, independent of the number of hashes
+ *   added, and is used in front of an exact set so that most lookups of
+ *   hashes not in the set do not need to look at the exact set.
+ */
+
+public class BloomFilter {
+
+    /** the bits of the filter */
+    private long[] bits;
+
+    /** the number of bits */
+    private int numBits;
+
+    /** the number of bits set for each hash added */
+    private int numHashFunctions;
+
+    /**
+     * Create a BloomFilter for about {@code expectedInsertions} hashes
+     *   with probability {@code falsePositiveRate} of a wrong "maybe contained"
+     */
+
+    public BloomFilter(int expectedInsertions,double falsePositiveRate){
+	int n = Math.max(1,expectedInsertions);
+	double m = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+	numBits = (int) Math.max(64,Math.min(Integer.MAX_VALUE - 63,Math.ceil(m)));
+	numHashFunctions = (int) Math.max(1,Math.round((double) numBits / n * Math.log(2)));
+	bits = new long[(numBits + 63) >>> 6];
+    }
+
+    /* the two 64 bit values from which the positions of the bits are computed
+       (a SHA-256 hash is uniformly distributed so no further hashing is needed) */
+
+    private static long word(byte[] digest,int offset){
+	long result = 0;
+	for (int i = 0; i < 8; i++){
+	    result = (result << 8) | (digest[offset + i] & 0xff);
+	}
+	return result;
+    }
+
+    /* position of the i-th bit for a hash given by h1 and h2 */
+
+    private int position(long h1,long h2,int i){
+	return (int) Long.remainderUnsigned(h1 + i * h2,numBits);
+    }
+
+    /**
+     * add a hash
+     */
+
+    public void add(Hash hash){
+	byte[] digest = hash.toBytes();
+	long h1 = word(digest,0);
+	long h2 = word(digest,8);
+	for (int i = 0; i < numHashFunctions; i++){
+	    int pos = position(h1,h2,i);
+	    bits[pos >>> 6] |= 1L << pos;
+	}
+    }
+
+    /**
+     * @return false if {@code hash} was certainly not added,
+     *          true if it may have been added
+     */
+
+    public boolean mightContain(Hash hash){
+	byte[] digest = hash.toBytes();
+	long h1 = word(digest,0);
+	long h2 = word(digest,8);
+	for (int i = 0; i < numHashFunctions; i++){
+	    int pos = position(h1,h2,i);
+	    if ((bits[pos >>> 6] & (1L << pos)) == 0){
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * remove all hashes
+     */
+
+    public void clear(){
+	Arrays.fill(bits,0L);
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test(){
+	BloomFilter filter = new BloomFilter(1000,0.01);
+	for (int i = 0; i < 1000; i++){
+	    filter.add(Hash.of(KeyUtils.integer2ByteArray(i)));
+	}
+	boolean allFound = true;
+	for (int i = 0; i < 1000; i++){
+	    allFound &= filter.mightContain(Hash.of(KeyUtils.integer2ByteArray(i)));
+	}
+	System.out.println("All added hashes found (expected true) = " + allFound);
+	int falsePositives = 0;
+	for (int i = 1000; i < 11000; i++){
+	    if (filter.mightContain(Hash.of(KeyUtils.integer2ByteArray(i)))){
+		falsePositives++;
+	    }
+	}
+	System.out.println("False positives out of 10000 (expected about 100) = " + falsePositives);
+	filter.clear();
+	System.out.println("After clear 0 is found (expected false) = "
+			   + filter.mightContain(Hash.of(KeyUtils.integer2ByteArray(0))));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args){
+	BloomFilter.test();
+    }
+}
@@ -0,0 +1,20 @@
+/** CoinSelectionStrategy
+ *   the strategies of SpendableBalanceIndex for choosing the keys of a
+ *   wallet from which an amount is paid
+ */
+
+public enum CoinSelectionStrategy {
+
+    /** take the keys with the largest balances, until the amount is covered */
+    LARGEST_FIRST,
+
+    /** use a single key if one has enough, the one with the smallest such
+        balance; otherwise as LARGEST_FIRST, which uses the fewest keys */
+    FEWEST_INPUTS,
+
+    /** prefer keys which are emptied completely: a single key whose balance
+        is exactly the amount, otherwise the keys with smaller balances,
+        largest first, taking only part of the last one; if these are not
+        enough as FEWEST_INPUTS */
+    EXACT_MATCH
+}
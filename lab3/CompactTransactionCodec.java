@@ -0,0 +1,304 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/** CompactTransactionCodec
+ *   encodes transactions for storage or transfer, writing each public key
+ *   in full only the first time it occurs and afterwards as its index in a
+ *   KeyRegistry.
+ *
+ *   Format (all numbers big endian):
+ *     byte   VERSION
+ *     short  number of inputs, short number of outputs
+ *     inputs:  key, int amount, byte messageVersion, short signatureLength, signature
+ *     outputs: key, int amount
+ *   where a key is either
+ *     byte KEY_REF,  int index                   for a key registered before, or
+ *     byte KEY_FULL, short length, encoded key   which registers it.
+ *
+ *   Encoding does not change the registry, so that a transaction can be
+ *   measured or encoded again, e.g. when sending it failed. Once the bytes
+ *   have reached the decoder, commit registers the keys the encoder wrote
+ *   in full; the encoder has to commit exactly the transactions the decoder
+ *   has decoded, in the same order, for their registries to stay in sync.
+ *   Decoding registers the keys written in full only once the whole
+ *   transaction has been decoded, so a truncated or corrupt transaction,
+ *   for which decode throws an IllegalArgumentException, leaves the
+ *   registry unchanged.
+ *
+ *   With the signatures of inputs of message version MESSAGE_V2, whose
+ *   signed message contains fingerprints instead of keys, neither the
+ *   stored transaction nor the hashed message contains a full key more
+ *   than once.
+ */
+
+public class CompactTransactionCodec {
+
+    /** version of the format */
+    public static final byte VERSION = 1;
+
+    private static final byte KEY_REF = 0;
+    private static final byte KEY_FULL = 1;
+
+    /** the keys seen so far */
+    private final KeyRegistry registry;
+
+    /**
+     * Create a codec with an empty KeyRegistry
+     */
+
+    public CompactTransactionCodec(){
+	this(new KeyRegistry());
+    }
+
+    /**
+     * Create a codec using {@code registry}
+     */
+
+    public CompactTransactionCodec(KeyRegistry registry){
+	this.registry = registry;
+    }
+
+    /** the registry of the codec */
+
+    public KeyRegistry getRegistry(){
+	return registry;
+    }
+
+    /* write publicKey; a key not registered is written in full the first
+       time in the transaction, it gets the next index in pending, which is
+       the index the decoder gives it */
+
+    private void putKey(PublicKey publicKey,HashMap<PublicKey,Integer> pending,ByteBuffer buffer){
+	int index = registry.indexOf(publicKey);
+	if (index < 0){
+	    index = pending.getOrDefault(publicKey,-1);
+	}
+	if (index >= 0){
+	    buffer.put(KEY_REF).putInt(index);
+	} else {
+	    byte[] encoded = publicKey.getEncoded();
+	    buffer.put(KEY_FULL).putShort((short) encoded.length).put(encoded);
+	    pending.put(publicKey,registry.size() + pending.size());
+	}
+    }
+
+    /* read a key; a key written in full is added to pending, in which it
+       has the index registry.size() + its position, until it is registered */
+
+    private PublicKey getKey(ByteBuffer buffer,ArrayList<PublicKey> pending){
+	byte tag = buffer.get();
+	if (tag == KEY_REF){
+	    int index = buffer.getInt();
+	    int registered = registry.size();
+	    if (index >= 0 && index < registered){
+		return registry.getKey(index);
+	    }
+	    if (index >= registered && index - registered < pending.size()){
+		return pending.get(index - registered);
+	    }
+	    throw new IllegalArgumentException("no key with index " + index);
+	}
+	if (tag != KEY_FULL){
+	    throw new IllegalArgumentException("unknown key tag " + tag);
+	}
+	byte[] encoded = new byte[checkLength(buffer.getShort(),buffer,"key")];
+	buffer.get(encoded);
+	PublicKey publicKey = KeyUtils.decodePublicKey(encoded);
+	if (registry.indexOf(publicKey) < 0 && !pending.contains(publicKey)){
+	    pending.add(publicKey);
+	}
+	return publicKey;
+    }
+
+    /* check a length read from buffer is not negative and not beyond its end */
+
+    private static int checkLength(int length,ByteBuffer buffer,String what){
+	if (length < 0 || length > buffer.remaining()){
+	    throw new IllegalArgumentException("invalid " + what + " length " + length);
+	}
+	return length;
+    }
+
+    /**
+     * the largest number of bytes encode may write for {@code tx}
+     */
+
+    public static int maxEncodedLength(Transaction tx){
+	int length = 1 + 2 * Short.BYTES;
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    length += 1 + Short.BYTES + txInput.getSender().getEncoded().length
+		+ Integer.BYTES + 1 + Short.BYTES + txInput.getSignature().length;
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    length += 1 + Short.BYTES + txOutput.getRecipient().getEncoded().length + Integer.BYTES;
+	}
+	return length;
+    }
+
+    /**
+     * write {@code tx} to {@code buffer} at its current position; the keys
+     *   not registered yet are written in full and not registered, see commit
+     */
+
+    public void encode(Transaction tx,ByteBuffer buffer){
+	if (tx.toTxInputs().size() > Short.MAX_VALUE || tx.toTxOutputs().toList().size() > Short.MAX_VALUE){
+	    throw new IllegalArgumentException("more than " + Short.MAX_VALUE + " inputs or outputs");
+	}
+	HashMap<PublicKey,Integer> pending = new HashMap<PublicKey,Integer>();
+	buffer.put(VERSION);
+	buffer.putShort((short) tx.toTxInputs().size());
+	buffer.putShort((short) tx.toTxOutputs().toList().size());
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    putKey(txInput.getSender(),pending,buffer);
+	    buffer.putInt(txInput.getAmount());
+	    buffer.put(txInput.getMessageVersion());
+	    buffer.putShort((short) txInput.getSignature().length);
+	    buffer.put(txInput.getSignature());
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    putKey(txOutput.getRecipient(),pending,buffer);
+	    buffer.putInt(txOutput.getAmount());
+	}
+    }
+
+    /**
+     * the bytes of {@code tx}, see encode
+     */
+
+    public byte[] toBytes(Transaction tx){
+	ByteBuffer buffer = ByteBuffer.allocate(maxEncodedLength(tx));
+	encode(tx,buffer);
+	return Arrays.copyOf(buffer.array(),buffer.position());
+    }
+
+    /**
+     * register the keys of {@code tx} in the order encode writes them,
+     *   once its encoding has been decoded, e.g. after it has been sent
+     */
+
+    public void commit(Transaction tx){
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    registry.register(txInput.getSender());
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    registry.register(txOutput.getRecipient());
+	}
+    }
+
+    /**
+     * read a transaction from {@code buffer} at its current position and
+     *   register the keys written in full in it; throws an
+     *   IllegalArgumentException, registering nothing, if the bytes are
+     *   not a complete transaction
+     */
+
+    public Transaction decode(ByteBuffer buffer){
+	try {
+	    if (buffer.get() != VERSION){
+		throw new IllegalArgumentException("not a compact transaction of version " + VERSION);
+	    }
+	    int n = buffer.getShort();
+	    int m = buffer.getShort();
+	    if (n < 0 || m < 0){
+		throw new IllegalArgumentException("invalid number of inputs " + n + " or outputs " + m);
+	    }
+	    ArrayList<PublicKey> pending = new ArrayList<PublicKey>();
+	    TxInputList txInputs = new TxInputList();
+	    for (int i = 0; i < n; i++){
+		PublicKey sender = getKey(buffer,pending);
+		int amount = buffer.getInt();
+		byte messageVersion = buffer.get();
+		byte[] signature = new byte[checkLength(buffer.getShort(),buffer,"signature")];
+		buffer.get(signature);
+		txInputs.addEntry(new TxInput(sender,amount,signature,messageVersion));
+	    }
+	    TxOutputList txOutputs = new TxOutputList();
+	    for (int i = 0; i < m; i++){
+		PublicKey recipient = getKey(buffer,pending);
+		txOutputs.addEntry(recipient,buffer.getInt());
+	    }
+	    for (PublicKey publicKey : pending){
+		registry.register(publicKey);
+	    }
+	    return new Transaction(txInputs,txOutputs);
+	} catch (BufferUnderflowException e) {
+	    throw new IllegalArgumentException("truncated compact transaction",e);
+	}
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	TxOutputList txol = new TxOutputList(pubKeyB,10,pubKeyC,15);
+
+	System.out.println("Signed message of Alice: version 1 has "
+			   + txol.getMessageToSign(pubKeyA,25,TxInput.MESSAGE_V1).length
+			   + " bytes, version 2 has "
+			   + txol.getMessageToSign(pubKeyA,25,TxInput.MESSAGE_V2).length + " bytes");
+	TxInputList txil = new TxInputList();
+	txil.addEntry(new TxInput(pubKeyA,25,txol,wallet,TxInput.MESSAGE_V2));
+	Transaction tx = new Transaction(txil,txol);
+	System.out.println("Version 2 signature valid (expected true) = " + tx.checkSignaturesValid());
+	System.out.println("Valid as view (expected true) = " + TransactionView.of(tx).checkSignaturesValid());
+
+	CompactTransactionCodec encoder = new CompactTransactionCodec();
+	CompactTransactionCodec decoder = new CompactTransactionCodec();
+	byte[] first = encoder.toBytes(tx);
+	System.out.println("Keys registered by encoding (expected 0) = " + encoder.getRegistry().size()
+			   + ", same bytes again (expected true) = " + Arrays.equals(first,encoder.toBytes(tx)));
+	encoder.commit(tx);
+	byte[] second = encoder.toBytes(tx);
+	System.out.println("As TransactionView " + TransactionView.encodedLength(tx) + " bytes, compact "
+			   + first.length + " bytes the first time, " + second.length + " bytes afterwards");
+	Transaction decoded1 = decoder.decode(ByteBuffer.wrap(first));
+	Transaction decoded2 = decoder.decode(ByteBuffer.wrap(second));
+	System.out.println("Decoded equal to original (expected true true) = "
+			   + decoded1.equals(tx) + " " + decoded2.equals(tx));
+	System.out.println("Decoded signature valid (expected true) = " + decoded2.checkSignaturesValid());
+	System.out.println("Keys registered by decoder (expected 3) = " + decoder.getRegistry().size());
+	CompactTransactionCodec fresh = new CompactTransactionCodec();
+	try {
+	    fresh.decode(ByteBuffer.wrap(Arrays.copyOf(first,first.length - 1)));
+	    System.out.println("Truncated transaction rejected (expected true) = false");
+	} catch (IllegalArgumentException e) {
+	    System.out.println("Truncated transaction rejected (expected true) = true, keys registered (expected 0) = "
+			       + fresh.getRegistry().size());
+	}
+	byte[] badRef = second.clone();
+	ByteBuffer.wrap(badRef).putInt(1 + 2 * Short.BYTES + 1,1000);
+	try {
+	    fresh.decode(ByteBuffer.wrap(badRef));
+	    System.out.println("Unknown key index rejected (expected true) = false");
+	} catch (IllegalArgumentException e) {
+	    System.out.println("Unknown key index rejected (expected true) = true");
+	}
+	System.out.println("Key by fingerprint is Carol (expected true) = "
+			   + pubKeyC.equals(decoder.getRegistry().getKey(KeyUtils.fingerprint(pubKeyC))));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	CompactTransactionCodec.test();
+    }
+}
@@ -5,9 +5,9 @@ import java.security.PublicKey;
 import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.Map;
 
 public class Crypto {
-
     
     /**
      * @return true if {@code signature} is a valid digital signature of {@code message} under the
@@ -51,4 +51,33 @@ public class Crypto {
         signature.update(msg);
         return signature.sign();	
         }
+
+
+    /** 
+     *  as sign, but reuses the Signature object in {@code cache} already
+     *  initialized with {@code privKey}, adding one if there is none, so that
+     *  signing many messages with the same key avoids looking up the algorithm
+     *  and initializing it each time. After sign() the Signature object is
+     *  ready for the next message.
+     *  The cache holds the private keys, so it should only live as long as
+     *  the messages are signed, and be used by one thread at a time.
+     */ 
+    public static byte[] signCached(Map<PrivateKey,Signature> cache, PrivateKey privKey, byte[] msg)
+			throws NoSuchAlgorithmException, SignatureException,
+			InvalidKeyException {
+        Signature signature = cache.get(privKey);
+        if (signature == null) {
+            signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(privKey);
+            cache.put(privKey,signature);
+        }
+        try {
+            signature.update(msg);
+            return signature.sign();
+        } catch (SignatureException e) {
+            /* the state of the Signature object is unknown, don't reuse it */
+            cache.remove(privKey);
+            throw e;
+        }
+        }
 }
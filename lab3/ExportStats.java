@@ -0,0 +1,62 @@
+/** ExportStats
+ *   the number of accounts and bytes written by an export of an
+ *   AccountBalance and the time it took
+ */
+
+public class ExportStats {
+
+    /** number of accounts written */
+    private long accounts;
+
+    /** number of bytes written */
+    private long bytes;
+
+    /** time taken in nanoseconds */
+    private long nanos;
+
+    /**
+     * Create ExportStats
+     */
+
+    public ExportStats(long accounts,long bytes,long nanos){
+	this.accounts = accounts;
+	this.bytes = bytes;
+	this.nanos = nanos;
+    }
+
+    /** Get the number of accounts written */
+
+    public long getAccounts(){
+	return accounts;
+    }
+
+    /** Get the number of bytes written */
+
+    public long getBytes(){
+	return bytes;
+    }
+
+    /** Get the time taken in nanoseconds */
+
+    public long getNanos(){
+	return nanos;
+    }
+
+    /** accounts written per second */
+
+    public double getAccountsPerSecond(){
+	return nanos == 0 ? 0 : accounts * 1e9 / nanos;
+    }
+
+    /** megabytes (10^6 bytes) written per second */
+
+    public double getMegabytesPerSecond(){
+	return nanos == 0 ? 0 : bytes * 1e3 / nanos;
+    }
+
+    @Override
+    public String toString(){
+	return String.format("%d accounts, %d bytes in %.1fms (%.0f accounts/s, %.1f MB/s)",
+			     accounts,bytes,nanos / 1e6,getAccountsPerSecond(),getMegabytesPerSecond());
+    }
+}
@@ -0,0 +1,158 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/** Hash
+ *   a SHA-256 digest used to identify transactions and outputs.
+ *
+ *   Unlike a plain byte[] it can be used as a key in a HashMap,
+ *     since equals and hashCode compare the content of the digest.
+ */
+
+public final class Hash implements Comparable<Hash> {
+
+    /** number of bytes of a SHA-256 digest */
+    public static final int SIZE = 32;
+
+    /** the underlying digest */
+    private final byte[] digest;
+
+    /**
+     * create a Hash from an existing digest of length SIZE
+     */
+
+    public Hash(byte[] digest){
+	if (digest.length != SIZE){
+	    throw new IllegalArgumentException("a hash has " + SIZE + " bytes, got " + digest.length);
+	}
+	this.digest = Arrays.copyOf(digest,SIZE);
+    }
+
+    /**
+     * compute the SHA-256 hash of a message
+     */
+
+    public static Hash of(byte[] message){
+	return new Hash(newDigest().digest(message));
+    }
+
+    /**
+     * compute the SHA-256 hash of a hash prefixed by a tag byte
+     */
+
+    public static Hash of(byte tag, Hash hash){
+	MessageDigest md = newDigest();
+	md.update(tag);
+	md.update(hash.digest);
+	return new Hash(md.digest());
+    }
+
+    /**
+     * compute the SHA-256 hash of the concatenation of two hashes
+     *   prefixed by a tag byte (used for building trees of hashes)
+     */
+
+    public static Hash of(byte tag, Hash left, Hash right){
+	MessageDigest md = newDigest();
+	md.update(tag);
+	md.update(left.digest);
+	md.update(right.digest);
+	return new Hash(md.digest());
+    }
+
+    /* SHA-256 is required to be present in every Java platform */
+
+    static MessageDigest newDigest(){
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException("SHA-256 not available",e);
+	}
+    }
+
+    /**
+     * obtain a copy of the underlying bytes
+     */
+
+    public byte[] toBytes(){
+	return Arrays.copyOf(digest,SIZE);
+    }
+
+    /**
+     * obtain the bit at position {@code index}, counting from the most
+     *   significant bit of the first byte
+     */
+
+    public boolean getBit(int index){
+	return ((digest[index >>> 3] >>> (7 - (index & 7))) & 1) == 1;
+    }
+
+    @Override
+    public boolean equals(Object other){
+	return (other instanceof Hash) && Arrays.equals(digest,((Hash) other).digest);
+    }
+
+    @Override
+    public int hashCode(){
+	/* the digest is uniformly distributed, so its first bytes are a good hash code */
+	return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+	    | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+    }
+
+    /**
+     * compare hashes as unsigned big endian numbers
+     */
+
+    @Override
+    public int compareTo(Hash other){
+	return Arrays.compareUnsigned(digest,other.digest);
+    }
+
+    /**
+     * the digest in hexadecimal
+     */
+
+    @Override
+    public String toString(){
+	StringBuilder result = new StringBuilder(2 * SIZE);
+	for (byte b : digest){
+	    result.append(Character.forDigit((b >>> 4) & 0xf,16));
+	    result.append(Character.forDigit(b & 0xf,16));
+	}
+	return result.toString();
+    }
+
+    /**
+     * a short form of the digest for printing
+     */
+
+    public String toShortString(){
+	return toString().substring(0,8);
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test(){
+	Hash h1 = Hash.of(KeyUtils.integer2ByteArray(1));
+	Hash h2 = Hash.of(KeyUtils.integer2ByteArray(1));
+	Hash h3 = Hash.of(KeyUtils.integer2ByteArray(2));
+	System.out.println("Hash of 1 = " + h1);
+	System.out.println("Hash of 1 equals hash of 1 (expected true) = " + h1.equals(h2));
+	System.out.println("Hash of 1 equals hash of 2 (expected false) = " + h1.equals(h3));
+	System.out.println("Same hashCode (expected true) = " + (h1.hashCode() == h2.hashCode()));
+	System.out.println("Hash of empty message = " + Hash.of(new byte[0]));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args){
+	Hash.test();
+    }
+}
@@ -0,0 +1,381 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** IngestionQueue
+ *   a bounded queue of transactions in front of an AccountBalance,
+ *   applied in order by one thread.
+ *
+ *   Submitting never blocks: when the queue is full the transaction is
+ *   rejected at once with a time after which to retry, estimated from the
+ *   number of queued transactions and the average time to apply one. So
+ *   under overload the time a queued transaction waits stays bounded by
+ *   the capacity of the queue, instead of growing with the backlog.
+ *
+ *   Amounts and signatures are checked by the submitting thread before
+ *   queueing, the applying thread only checks the balances and processes.
+ *   Each transaction is processed on an AccountBalanceOverlay which is
+ *   committed only if processing succeeded, so a transaction failing
+ *   with an exception changes nothing; only a listener of the ledger
+ *   failing during the commit can leave it partly applied.
+ *
+ *   Producers following the Flow protocol can instead use subscriber(),
+ *   which requests new transactions only as earlier ones are applied.
+ */
+
+public class IngestionQueue implements AutoCloseable {
+
+    /* a queued transaction */
+
+    private static final class Pending {
+	final TransactionView tx;
+	final long enqueuedNanos;
+	final CompletableFuture<Boolean> outcome = new CompletableFuture<Boolean>();
+	final Runnable onApplied;
+
+	Pending(TransactionView tx,Runnable onApplied){
+	    this.tx = tx;
+	    this.enqueuedNanos = System.nanoTime();
+	    this.onApplied = onApplied;
+	}
+    }
+
+    /** the ledger transactions are applied to */
+    private final AccountBalance accountBalance;
+
+    /** the queued transactions */
+    private final ArrayBlockingQueue<Pending> queue;
+
+    /** the thread applying the transactions */
+    private final Thread applier;
+
+    private volatile boolean closed;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /** average time to apply one transaction, smoothed exponentially */
+    private volatile double averageApplyNanos;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Create a queue holding at most {@code capacity} transactions for
+     *   {@code accountBalance}. Call start() to start applying them.
+     */
+
+    public IngestionQueue(AccountBalance accountBalance,int capacity){
+	this.accountBalance = accountBalance;
+	this.queue = new ArrayBlockingQueue<Pending>(capacity);
+	this.applier = new Thread(this::applyLoop,"ingestion-applier");
+	this.applier.setDaemon(true);
+    }
+
+    /**
+     * start applying queued transactions
+     */
+
+    public void start(){
+	if (started.compareAndSet(false,true)){
+	    applier.start();
+	}
+    }
+
+    /**
+     * submit {@code tx} without blocking
+     */
+
+    public SubmitResult submit(TransactionView tx){
+	return submit(tx,null);
+    }
+
+    private SubmitResult submit(TransactionView tx,Runnable onApplied){
+	if (closed){
+	    throw new IllegalStateException("ingestion queue is closed");
+	}
+	/* reject before the expensive signature check if it cannot be queued anyway */
+	if (queue.remainingCapacity() == 0){
+	    return retryLater();
+	}
+	if (!tx.checkTransactionAmountsValid() || !tx.checkSignaturesValid()){
+	    invalid.incrementAndGet();
+	    return SubmitResult.invalid();
+	}
+	Pending pending = new Pending(tx,onApplied);
+	if (!queue.offer(pending)){
+	    return retryLater();
+	}
+	if (closed && queue.remove(pending)){
+	    /* closed meanwhile, the applier may have stopped already */
+	    throw new IllegalStateException("ingestion queue is closed");
+	}
+	queued.incrementAndGet();
+	return SubmitResult.queued(pending.outcome);
+    }
+
+    private SubmitResult retryLater(){
+	rejected.incrementAndGet();
+	long millis = (long) Math.ceil(queue.size() * averageApplyNanos / 1e6);
+	return SubmitResult.retryLater(Math.max(1,millis));
+    }
+
+    private void applyLoop(){
+	while (!closed || !queue.isEmpty()){
+	    Pending pending;
+	    try {
+		pending = queue.poll(100,TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    if (pending != null){
+		apply(pending);
+	    }
+	}
+    }
+
+    private void apply(Pending pending){
+	long start = System.nanoTime();
+	long wait = start - pending.enqueuedNanos;
+	totalWaitNanos.addAndGet(wait);
+	maxWaitNanos.accumulateAndGet(wait,Math::max);
+	try {
+	    boolean result;
+	    synchronized (accountBalance){
+		result = accountBalance.checkTransactionCanBeDeducted(pending.tx);
+		if (result){
+		    AccountBalanceOverlay overlay = accountBalance.overlay();
+		    try {
+			overlay.processTransaction(pending.tx);
+		    } catch (RuntimeException e) {
+			overlay.discard();
+			throw e;
+		    }
+		    overlay.commit();
+		}
+	    }
+	    pending.outcome.complete(result);
+	} catch (RuntimeException e) {
+	    /* fail this transaction only, the applier goes on with the next */
+	    pending.outcome.completeExceptionally(e);
+	} finally {
+	    long nanos = System.nanoTime() - start;
+	    averageApplyNanos = averageApplyNanos == 0 ? nanos : 0.9 * averageApplyNanos + 0.1 * nanos;
+	    applied.incrementAndGet();
+	    if (pending.onApplied != null){
+		pending.onApplied.run();
+	    }
+	}
+    }
+
+    /**
+     * a subscriber submitting the transactions it receives, with at most
+     *   {@code maxOutstanding} of them requested but not yet applied.
+     *   Invalid transactions are dropped.
+     */
+
+    public Flow.Subscriber<TransactionView> subscriber(int maxOutstanding){
+	return new Flow.Subscriber<TransactionView>() {
+	    private Flow.Subscription subscription;
+
+	    @Override
+	    public void onSubscribe(Flow.Subscription subscription){
+		this.subscription = subscription;
+		subscription.request(maxOutstanding);
+	    }
+
+	    @Override
+	    public void onNext(TransactionView tx){
+		Runnable requestNext = () -> subscription.request(1);
+		SubmitResult result = submit(tx,requestNext);
+		while (result.getStatus() == SubmitResult.Status.RETRY_LATER){
+		    /* the queue is shared with other submitters */
+		    try {
+			Thread.sleep(result.getRetryAfterMillis());
+		    } catch (InterruptedException e) {
+			subscription.cancel();
+			return;
+		    }
+		    result = submit(tx,requestNext);
+		}
+		if (result.getStatus() == SubmitResult.Status.INVALID){
+		    subscription.request(1);
+		}
+	    }
+
+	    @Override
+	    public void onError(Throwable throwable){
+	    }
+
+	    @Override
+	    public void onComplete(){
+	    }
+	};
+    }
+
+    /** the number of transactions waiting to be applied */
+
+    public int getDepth(){
+	return queue.size();
+    }
+
+    /** the number of transactions which can be queued */
+
+    public int getRemainingCapacity(){
+	return queue.remainingCapacity();
+    }
+
+    /** the number of transactions queued so far */
+
+    public long getQueuedCount(){
+	return queued.get();
+    }
+
+    /** the number of submissions rejected since the queue was full */
+
+    public long getRejectedCount(){
+	return rejected.get();
+    }
+
+    /** the number of submissions rejected as invalid */
+
+    public long getInvalidCount(){
+	return invalid.get();
+    }
+
+    /** the number of transactions taken from the queue and applied or refused */
+
+    public long getAppliedCount(){
+	return applied.get();
+    }
+
+    /** the average time between queueing and applying a transaction */
+
+    public long getAverageWaitNanos(){
+	long n = applied.get();
+	return n == 0 ? 0 : totalWaitNanos.get() / n;
+    }
+
+    /** the longest time between queueing and applying a transaction */
+
+    public long getMaxWaitNanos(){
+	return maxWaitNanos.get();
+    }
+
+    /**
+     * stop accepting transactions, apply the queued ones, also if start()
+     *   was never called, and stop the applying thread. If the calling
+     *   thread is interrupted meanwhile, the transactions not applied yet
+     *   fail and its interrupt flag is set again.
+     */
+
+    @Override
+    public void close(){
+	closed = true;
+	start();
+	try {
+	    applier.join();
+	} catch (InterruptedException e) {
+	    applier.interrupt();
+	    Thread.currentThread().interrupt();
+	}
+	Pending pending;
+	while ((pending = queue.poll()) != null){
+	    pending.outcome.completeExceptionally(new IllegalStateException("ingestion queue is closed"));
+	}
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, InterruptedException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,100);
+	TxOutputList txol = new TxOutputList(pubKeyB,1);
+	TransactionView tx = TransactionView.of(new Transaction(new TxInputList(pubKeyA,1,txol,wallet),txol));
+
+	IngestionQueue ingestion = new IngestionQueue(accountBalance,4);
+	ArrayList<SubmitResult> results = new ArrayList<SubmitResult>();
+	for (int i = 0; i < 6; i++){
+	    results.add(ingestion.submit(tx));
+	}
+	System.out.println("Six submissions to a queue of 4 (expected 4 QUEUED, 2 RETRY_LATER) = " + results);
+	System.out.println("Depth (expected 4) = " + ingestion.getDepth());
+	ingestion.start();
+	for (SubmitResult result : results){
+	    if (result.isQueued()){
+		result.getOutcome().join();
+	    }
+	}
+	System.out.println("After applying, balance of Bob (expected 4) = " + accountBalance.getBalance(pubKeyB));
+
+	byte[] forged = TransactionView.toBytes(new Transaction(new TxInputList(pubKeyA,1,txol,wallet),
+								  new TxOutputList(pubKeyB,2)));
+	System.out.println("Forged transaction (expected INVALID) = "
+			   + ingestion.submit(TransactionView.wrap(forged)));
+
+	/* a failure while applying fails only that transaction and changes
+	   nothing: crediting Bob, a hot account with credits pending beyond
+	   an int, fails after Alice has been debited */
+	accountBalance.markHot(pubKeyB);
+	accountBalance.addToBalance(pubKeyB,Integer.MAX_VALUE);
+	SubmitResult failing = ingestion.submit(tx);
+	System.out.println("Failing transaction completed exceptionally (expected true) = "
+			   + failing.getOutcome().handle((result,e) -> e != null).join()
+			   + ", balance of Alice unchanged (expected 96) = " + accountBalance.getBalance(pubKeyA));
+	accountBalance.addToBalance(pubKeyB,-Integer.MAX_VALUE);
+	accountBalance.unmarkHot(pubKeyB);
+	SubmitResult following = ingestion.submit(tx);
+	System.out.println("Next one applied (expected true) = " + following.getOutcome().join());
+
+	/* a publisher with 50 more transactions */
+	IngestionQueue flowIngestion = new IngestionQueue(accountBalance,4);
+	flowIngestion.start();
+	try (SubmissionPublisher<TransactionView> publisher = new SubmissionPublisher<TransactionView>()){
+	    publisher.subscribe(flowIngestion.subscriber(2));
+	    for (int i = 0; i < 50; i++){
+		publisher.submit(tx);
+	    }
+	}
+	while (flowIngestion.getAppliedCount() < 50){
+	    Thread.sleep(10);
+	}
+	System.out.println("After 50 through Flow, balance of Alice (expected 45) = "
+			   + accountBalance.getBalance(pubKeyA) + ", Bob (expected 55) = "
+			   + accountBalance.getBalance(pubKeyB));
+	System.out.println("Never more than 2 outstanding, so no rejections (expected 0) = "
+			   + flowIngestion.getRejectedCount()
+			   + ", average wait " + flowIngestion.getAverageWaitNanos() / 1000 + "us");
+	ingestion.close();
+	flowIngestion.close();
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, InterruptedException {
+	IngestionQueue.test();
+    }
+}
@@ -0,0 +1,76 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/** KeyRegistry
+ *   numbers public keys 0, 1, 2, ... in the order they are registered,
+ *   so that a key can be referred to by its index instead of its full
+ *   encoding of about 300 bytes. Keys can also be looked up by fingerprint.
+ *
+ *   Used by CompactTransactionCodec; an encoder and a decoder stay in
+ *   sync if they register the same keys in the same order, e.g. both
+ *   start empty and process the same stream of transactions.
+ */
+
+public class KeyRegistry {
+
+    /** the keys by index */
+    private final ArrayList<PublicKey> keys = new ArrayList<PublicKey>();
+
+    /** the index of each key */
+    private final HashMap<PublicKey,Integer> indices = new HashMap<PublicKey,Integer>();
+
+    /** the index of each fingerprint */
+    private final HashMap<Hash,Integer> fingerprints = new HashMap<Hash,Integer>();
+
+    /**
+     * register {@code publicKey} if it is not registered yet and return its index
+     */
+
+    public synchronized int register(PublicKey publicKey){
+	Integer index = indices.get(publicKey);
+	if (index == null){
+	    index = keys.size();
+	    keys.add(publicKey);
+	    indices.put(publicKey,index);
+	    fingerprints.put(KeyUtils.fingerprint(publicKey),index);
+	}
+	return index;
+    }
+
+    /**
+     * the index of {@code publicKey}, or -1 if it is not registered
+     */
+
+    public synchronized int indexOf(PublicKey publicKey){
+	Integer index = indices.get(publicKey);
+	return index == null ? -1 : index;
+    }
+
+    /**
+     * the key with index {@code index}
+     */
+
+    public synchronized PublicKey getKey(int index){
+	if (index < 0 || index >= keys.size()){
+	    throw new IllegalArgumentException("no key with index " + index);
+	}
+	return keys.get(index);
+    }
+
+    /**
+     * the registered key with fingerprint {@code fingerprint}, or null
+     */
+
+    public synchronized PublicKey getKey(Hash fingerprint){
+	Integer index = fingerprints.get(fingerprint);
+	return index == null ? null : keys.get(index);
+    }
+
+    /** the number of keys registered */
+
+    public synchronized int size(){
+	return keys.size();
+    }
+}
@@ -1,9 +1,12 @@
 import java.nio.ByteBuffer;
+import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.PrivateKey;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
 
@@ -21,6 +24,28 @@ public class KeyUtils{
     }
 
 
+    /* the inverse of pbk.getEncoded() for the RSA keys used in the labs,
+       throws IllegalArgumentException if the bytes are not such a key */
+
+    public static PublicKey decodePublicKey(byte[] encoded){
+	try {
+	    return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException("RSA not available",e);
+	} catch (InvalidKeySpecException e) {
+	    throw new IllegalArgumentException("not an encoded RSA public key",e);
+	}
+    }
+
+
+    /* the fingerprint of a public key, the hash of its encoding,
+       used where a public key is identified by a short fixed size value */
+
+    public static Hash fingerprint(PublicKey pbk){
+	return Hash.of(pbk.getEncoded());
+    }
+
+
     /* Messages to be signed are formed from the amounts (which are integers)
          and public keys 
 
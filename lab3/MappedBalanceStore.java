@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+
+/** MappedBalanceStore
+ *   a hash table from fingerprints of public keys to balances kept in a
+ *   memory-mapped file, so that it takes no heap however many entries it
+ *   has; the operating system keeps the pages in use in memory.
+ *   Used as the cold tier of TieredAccountBalance.
+ *
+ *   The table file has a header
+ *     int MAGIC, int capacity, int size
+ *   followed by capacity slots (open addressing with linear probing), each
+ *     byte used, fingerprint (Hash.SIZE bytes), int balance.
+ *   The public keys are appended to a second file, path + ".keys", in the
+ *   order they were inserted, as short length followed by the encoded key,
+ *   so that the keys can be listed without keeping them in memory.
+ *
+ *   Entries are never removed. When 3/4 of the slots are used, the table
+ *   is rehashed into a new file of twice the capacity, which replaces the
+ *   old one, up to MAX_CAPACITY slots; only then is the store full.
+ *
+ *   Changes are only known to be on disk after flush or close. A crash
+ *   before may leave the table and the file of the keys inconsistent,
+ *   which is not detected; such a store has to be rebuilt.
+ */
+
+public class MappedBalanceStore implements AutoCloseable {
+
+    /** the first int of a table file */
+    public static final int MAGIC = 0x4d425331;
+
+    private static final int HEADER = 3 * Integer.BYTES;
+    private static final int SLOT = 1 + Hash.SIZE + Integer.BYTES;
+
+    /** the largest capacity, such that the table fits in one mapped buffer */
+    public static final int MAX_CAPACITY = 1 << 25;
+
+    /** the path of the table file */
+    private final Path path;
+
+    /** the table file and its mapping */
+    private FileChannel tableChannel;
+    private MappedByteBuffer table;
+
+    /** the file of the keys */
+    private final FileChannel keyChannel;
+
+    /** the number of slots, a power of two */
+    private int capacity;
+
+    /** the number of entries */
+    private int size;
+
+    /**
+     * Open the store in {@code path}, creating it with {@code capacity}
+     *   slots (rounded up to a power of two) if it does not exist.
+     *   An existing store keeps the capacity it was created with.
+     */
+
+    public MappedBalanceStore(Path path,int capacity) throws IOException {
+	this.path = path;
+	boolean exists = Files.exists(path) && Files.size(path) > 0;
+	tableChannel = FileChannel.open(path,StandardOpenOption.CREATE,
+					StandardOpenOption.READ,StandardOpenOption.WRITE);
+	if (exists){
+	    ByteBuffer header = ByteBuffer.allocate(HEADER);
+	    tableChannel.read(header,0);
+	    header.flip();
+	    if (header.getInt() != MAGIC){
+		tableChannel.close();
+		throw new IOException(path + " is not a balance store");
+	    }
+	    capacity = header.getInt();
+	    size = header.getInt();
+	} else {
+	    if (capacity > MAX_CAPACITY){
+		tableChannel.close();
+		throw new IllegalArgumentException("capacity " + capacity + " exceeds " + MAX_CAPACITY);
+	    }
+	    capacity = Integer.highestOneBit(Math.max(16,capacity) * 2 - 1);
+	}
+	this.capacity = capacity;
+	table = tableChannel.map(FileChannel.MapMode.READ_WRITE,0,HEADER + (long) capacity * SLOT);
+	table.putInt(0,MAGIC);
+	table.putInt(Integer.BYTES,capacity);
+	table.putInt(2 * Integer.BYTES,size);
+	keyChannel = FileChannel.open(Paths.get(path + ".keys"),StandardOpenOption.CREATE,
+				      StandardOpenOption.READ,StandardOpenOption.WRITE);
+	keyChannel.position(keyChannel.size());
+    }
+
+    /** the number of slots */
+
+    public int getCapacity(){
+	return capacity;
+    }
+
+    /** the number of entries */
+
+    public int size(){
+	return size;
+    }
+
+    /* the position of the slot holding fingerprint, or of the empty slot
+       where it would be inserted */
+
+    private int findSlot(byte[] fingerprint){
+	return findSlot(table,capacity,fingerprint);
+    }
+
+    private static int findSlot(ByteBuffer table,int capacity,byte[] fingerprint){
+	int mask = capacity - 1;
+	int index = (((fingerprint[0] & 0xff) << 24) | ((fingerprint[1] & 0xff) << 16)
+		     | ((fingerprint[2] & 0xff) << 8) | (fingerprint[3] & 0xff)) & mask;
+	while (true){
+	    int position = HEADER + index * SLOT;
+	    if (table.get(position) == 0 || matches(table,position + 1,fingerprint)){
+		return position;
+	    }
+	    index = (index + 1) & mask;
+	}
+    }
+
+    private static boolean matches(ByteBuffer table,int position,byte[] fingerprint){
+	for (int i = 0; i < Hash.SIZE; i++){
+	    if (table.get(position + i) != fingerprint[i]){
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /* rehash the table into a new file of twice the capacity, which
+       then replaces the table file */
+
+    private void grow() throws IOException {
+	int newCapacity = capacity * 2;
+	Path tmp = Paths.get(path + ".grow");
+	FileChannel newChannel = FileChannel.open(tmp,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,
+						  StandardOpenOption.READ,StandardOpenOption.WRITE);
+	MappedByteBuffer newTable;
+	try {
+	    newTable = newChannel.map(FileChannel.MapMode.READ_WRITE,0,HEADER + (long) newCapacity * SLOT);
+	    newTable.putInt(0,MAGIC);
+	    newTable.putInt(Integer.BYTES,newCapacity);
+	    newTable.putInt(2 * Integer.BYTES,size);
+	    byte[] slot = new byte[SLOT];
+	    byte[] fingerprint = new byte[Hash.SIZE];
+	    for (int index = 0; index < capacity; index++){
+		int position = HEADER + index * SLOT;
+		if (table.get(position) != 0){
+		    table.get(position,slot);
+		    System.arraycopy(slot,1,fingerprint,0,Hash.SIZE);
+		    newTable.put(findSlot(newTable,newCapacity,fingerprint),slot);
+		}
+	    }
+	    newTable.force();
+	} catch (IOException | RuntimeException e) {
+	    newChannel.close();
+	    Files.deleteIfExists(tmp);
+	    throw e;
+	}
+	Files.move(tmp,path,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+	tableChannel.close();
+	tableChannel = newChannel;
+	table = newTable;
+	capacity = newCapacity;
+    }
+
+    /**
+     * the balance stored for {@code fingerprint}, or null
+     */
+
+    public Integer get(Hash fingerprint){
+	int position = findSlot(fingerprint.toBytes());
+	return table.get(position) == 0 ? null : table.getInt(position + 1 + Hash.SIZE);
+    }
+
+    /**
+     * @return true if there is an entry for {@code fingerprint}
+     */
+
+    public boolean contains(Hash fingerprint){
+	return table.get(findSlot(fingerprint.toBytes())) != 0;
+    }
+
+    /**
+     * set the balance of the existing entry for {@code fingerprint}
+     *   and return whether there was one
+     */
+
+    public boolean update(Hash fingerprint,int balance){
+	int position = findSlot(fingerprint.toBytes());
+	if (table.get(position) == 0){
+	    return false;
+	}
+	table.putInt(position + 1 + Hash.SIZE,balance);
+	return true;
+    }
+
+    /**
+     * add an entry for {@code publicKey}, which must not have one yet
+     */
+
+    public void insert(PublicKey publicKey,int balance){
+	byte[] fingerprint = KeyUtils.fingerprint(publicKey).toBytes();
+	int position = findSlot(fingerprint);
+	if (table.get(position) != 0){
+	    throw new IllegalArgumentException("the key has an entry already");
+	}
+	if (size >= capacity / 4 * 3){
+	    if (capacity >= MAX_CAPACITY){
+		throw new IllegalStateException("balance store is full with " + size + " entries");
+	    }
+	    try {
+		grow();
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    position = findSlot(fingerprint);
+	}
+	/* the slot first: a key is only listed once it can be looked up */
+	table.put(position + 1,fingerprint);
+	table.putInt(position + 1 + Hash.SIZE,balance);
+	table.put(position,(byte) 1);
+	table.putInt(2 * Integer.BYTES,++size);
+	byte[] encoded = publicKey.getEncoded();
+	ByteBuffer record = ByteBuffer.allocate(Short.BYTES + encoded.length);
+	record.putShort((short) encoded.length).put(encoded).flip();
+	try {
+	    while (record.hasRemaining()){
+		keyChannel.write(record);
+	    }
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * call {@code action} for every entry, in the order of the slots
+     */
+
+    public void forEach(ObjIntConsumer<Hash> action){
+	byte[] fingerprint = new byte[Hash.SIZE];
+	for (int index = 0; index < capacity; index++){
+	    int position = HEADER + index * SLOT;
+	    if (table.get(position) != 0){
+		table.get(position + 1,fingerprint);
+		action.accept(new Hash(fingerprint),table.getInt(position + 1 + Hash.SIZE));
+	    }
+	}
+    }
+
+    /**
+     * call {@code action} for every key, in the order they were inserted;
+     *   this reads the whole file of the keys
+     */
+
+    public void forEachKey(Consumer<PublicKey> action){
+	try {
+	    ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	    long position = 0;
+	    long end = keyChannel.size();
+	    while (position < end){
+		buffer.clear().limit(Short.BYTES);
+		keyChannel.read(buffer,position);
+		int length = buffer.getShort(0);
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining()){
+		    keyChannel.read(buffer,position + Short.BYTES + buffer.position());
+		}
+		byte[] encoded = new byte[length];
+		buffer.flip();
+		buffer.get(encoded);
+		action.accept(KeyUtils.decodePublicKey(encoded));
+		position += Short.BYTES + length;
+	    }
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * write all changes to the files
+     */
+
+    public void flush() throws IOException {
+	table.force();
+	keyChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+	flush();
+	keyChannel.close();
+	tableChannel.close();
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, IOException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	Path path = Files.createTempFile("balances",".store");
+	Files.delete(path);
+	try (MappedBalanceStore store = new MappedBalanceStore(path,100)){
+	    store.insert(pubKeyA,10);
+	    store.insert(pubKeyB,20);
+	    store.update(KeyUtils.fingerprint(pubKeyA),15);
+	    System.out.println("Capacity " + store.getCapacity() + ", size (expected 2) = " + store.size());
+	    System.out.println("Alice " + store.get(KeyUtils.fingerprint(pubKeyA)) + ", Carol "
+			       + store.get(KeyUtils.fingerprint(pubKeyC)) + " (expected 15, null)");
+	    System.out.println("Update of Carol without entry (expected false) = "
+			       + store.update(KeyUtils.fingerprint(pubKeyC),5));
+	}
+	try (MappedBalanceStore store = new MappedBalanceStore(path,0)){
+	    System.out.println("After reopening Bob (expected 20) = " + store.get(KeyUtils.fingerprint(pubKeyB)));
+	    StringBuilder keys = new StringBuilder();
+	    store.forEachKey(publicKey -> keys.append(wallet.getKeyName(publicKey)).append(" "));
+	    System.out.println("Keys in order (expected Alice Bob) = " + keys.toString().trim());
+	    long[] total = new long[1];
+	    store.forEach((fingerprint,balance) -> total[0] += balance);
+	    System.out.println("Total (expected 35) = " + total[0]);
+	}
+	Files.delete(path);
+	Files.delete(Paths.get(path + ".keys"));
+
+	/* a store of 16 slots growing to hold 1000 entries */
+	KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+	generator.initialize(512);
+	PublicKey[] keys = new PublicKey[1000];
+	try (MappedBalanceStore store = new MappedBalanceStore(path,16)){
+	    for (int i = 0; i < keys.length; i++){
+		keys[i] = generator.generateKeyPair().getPublic();
+		store.insert(keys[i],i);
+	    }
+	    System.out.println("Grown from 16 to " + store.getCapacity() + " slots, size (expected 1000) = " + store.size());
+	}
+	try (MappedBalanceStore store = new MappedBalanceStore(path,0)){
+	    boolean all = true;
+	    for (int i = 0; i < keys.length; i++){
+		all &= Integer.valueOf(i).equals(store.get(KeyUtils.fingerprint(keys[i])));
+	    }
+	    System.out.println("After reopening all 1000 entries found (expected true) = " + all);
+	}
+	Files.delete(path);
+	Files.delete(Paths.get(path + ".keys"));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, IOException {
+	MappedBalanceStore.test();
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.Arrays;
+
+
+/** MerkleProof
+ *   a proof that a transaction id is included in a MerkleTree with a
+ *   given root.
+ *
+ *   It consists of the sibling hash for each level on the path from the
+ *   leaf to the root, and whether the sibling is the left or right child.
+ *   Its size is logarithmic in the number of leaves of the tree.
+ */
+
+public class MerkleProof {
+
+    /** the siblings from the leaf level up to the level below the root */
+    private Hash[] siblings;
+
+    /** siblingOnLeft[i] is true if siblings[i] is a left child */
+    private boolean[] siblingOnLeft;
+
+    /**
+     * Create a proof from the siblings and their positions
+     */
+
+    public MerkleProof(Hash[] siblings,boolean[] siblingOnLeft){
+	this.siblings = Arrays.copyOf(siblings,siblings.length);
+	this.siblingOnLeft = Arrays.copyOf(siblingOnLeft,siblingOnLeft.length);
+    }
+
+    /**
+     * the number of sibling hashes in the proof
+     */
+
+    public int length(){
+	return siblings.length;
+    }
+
+    /**
+     * the root obtained by hashing {@code txId} with the siblings
+     */
+
+    public Hash computeRoot(Hash txId){
+	Hash current = MerkleTree.leafHash(txId);
+	for (int i = 0; i < siblings.length; i++){
+	    if (siblingOnLeft[i]){
+		current = MerkleTree.nodeHash(siblings[i],current);
+	    } else {
+		current = MerkleTree.nodeHash(current,siblings[i]);
+	    }
+	}
+	return current;
+    }
+
+    /**
+     * @return true if the proof shows that {@code txId} is included in the
+     *   tree with root {@code root}
+     */
+
+    public boolean verify(Hash txId,Hash root){
+	return computeRoot(txId).equals(root);
+    }
+}
@@ -0,0 +1,194 @@
+import java.security.PublicKey;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+
+/** MerkleTree
+ *   a binary tree of hashes over the ids of the transactions of a block.
+ *
+ *   The root commits to all transactions of the block, and for each
+ *   transaction a MerkleProof of logarithmic size shows that it is included.
+ *
+ *   Leaves are hashed with tag LEAF and inner nodes with tag NODE, so an
+ *   inner node can never be presented as a leaf. If a level has an odd
+ *   number of nodes, the last node is moved up to the next level unchanged
+ *   (rather than being paired with a copy of itself as in bitcoin, which
+ *   allows two different lists of transactions to have the same root).
+ */
+
+public class MerkleTree {
+
+    /** tag for hashing leaves */
+    private static final byte LEAF = 0;
+
+    /** tag for hashing inner nodes */
+    private static final byte NODE = 1;
+
+    /** levels with at least that many nodes are hashed in parallel */
+    private static final int PARALLEL_THRESHOLD = 1024;
+
+    /** the levels of the tree, levels.get(0) are the leaves, the last level is the root */
+    private ArrayList<Hash[]> levels;
+
+    /** the hash of a leaf for transaction id {@code txId} */
+
+    static Hash leafHash(Hash txId){
+	return Hash.of(LEAF,txId);
+    }
+
+    /** the hash of an inner node with children {@code left} and {@code right} */
+
+    static Hash nodeHash(Hash left,Hash right){
+	return Hash.of(NODE,left,right);
+    }
+
+    /**
+     * Build the tree over a list of transaction ids.
+     *
+     *   Each level is computed from the previous one; large levels are
+     *   hashed in parallel.
+     */
+
+    public MerkleTree(List<Hash> txIds){
+	levels = new ArrayList<Hash[]>();
+	Hash[] leaves = new Hash[txIds.size()];
+	IntStream leafRange = IntStream.range(0,leaves.length);
+	if (leaves.length >= PARALLEL_THRESHOLD){
+	    leafRange = leafRange.parallel();
+	}
+	leafRange.forEach(i -> leaves[i] = leafHash(txIds.get(i)));
+	levels.add(leaves);
+	Hash[] current = leaves;
+	while (current.length > 1){
+	    Hash[] below = current;
+	    Hash[] above = new Hash[(below.length + 1) / 2];
+	    IntStream range = IntStream.range(0,above.length);
+	    if (below.length >= PARALLEL_THRESHOLD){
+		range = range.parallel();
+	    }
+	    range.forEach(i -> above[i] = (2 * i + 1 < below.length)
+			  ? nodeHash(below[2 * i],below[2 * i + 1])
+			  : below[2 * i]);
+	    levels.add(above);
+	    current = above;
+	}
+    }
+
+    /**
+     * Build the tree over a list of transactions
+     */
+
+    public static MerkleTree fromTransactions(List<Transaction> transactions){
+	ArrayList<Hash> txIds = new ArrayList<Hash>(transactions.size());
+	for (Transaction tx : transactions){
+	    txIds.add(tx.getTxId());
+	}
+	return new MerkleTree(txIds);
+    }
+
+    /**
+     * the number of leaves
+     */
+
+    public int size(){
+	return levels.get(0).length;
+    }
+
+    /**
+     * the root of the tree; the root of the empty tree is the hash of
+     *   the empty message
+     */
+
+    public Hash getRoot(){
+	if (size() == 0){
+	    return Hash.of(new byte[0]);
+	}
+	return levels.get(levels.size() - 1)[0];
+    }
+
+    /**
+     * the proof that the leaf at position {@code index} is included
+     */
+
+    public MerkleProof getProof(int index){
+	if (index < 0 || index >= size()){
+	    throw new IndexOutOfBoundsException("no leaf " + index + " in tree of size " + size());
+	}
+	ArrayList<Hash> siblings = new ArrayList<Hash>();
+	ArrayList<Boolean> siblingOnLeft = new ArrayList<Boolean>();
+	for (int level = 0; level < levels.size() - 1; level++){
+	    Hash[] nodes = levels.get(level);
+	    int sibling = index ^ 1;
+	    /* a last node without sibling is moved up unchanged */
+	    if (sibling < nodes.length){
+		siblings.add(nodes[sibling]);
+		siblingOnLeft.add(sibling < index);
+	    }
+	    index = index / 2;
+	}
+	boolean[] onLeft = new boolean[siblingOnLeft.size()];
+	for (int i = 0; i < onLeft.length; i++){
+	    onLeft[i] = siblingOnLeft.get(i);
+	}
+	return new MerkleProof(siblings.toArray(new Hash[0]),onLeft);
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	for (int n : new int[]{1, 2, 5, 100000}){
+	    ArrayList<Hash> txIds = new ArrayList<Hash>();
+	    for (int i = 0; i < n; i++){
+		txIds.add(Hash.of(KeyUtils.integer2ByteArray(i)));
+	    }
+	    long start = System.nanoTime();
+	    MerkleTree tree = new MerkleTree(txIds);
+	    long millis = (System.nanoTime() - start) / 1000000;
+	    boolean allValid = true;
+	    int maxLength = 0;
+	    for (int i = 0; i < n; i += Math.max(1,n / 1000)){
+		MerkleProof proof = tree.getProof(i);
+		allValid &= proof.verify(txIds.get(i),tree.getRoot());
+		maxLength = Math.max(maxLength,proof.length());
+	    }
+	    System.out.println("Tree with " + n + " leaves built in " + millis + "ms, root "
+			       + tree.getRoot().toShortString());
+	    System.out.println("  All proofs valid (expected true) = " + allValid
+			       + ", longest proof has " + maxLength + " hashes");
+	    if (n > 1){
+		System.out.println("  Proof for leaf 0 valid for leaf 1 (expected false) = "
+				   + tree.getProof(0).verify(txIds.get(1),tree.getRoot()));
+	    }
+	}
+
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	ArrayList<Transaction> block = new ArrayList<Transaction>();
+	for (int amount = 1; amount <= 3; amount++){
+	    TxOutputList txol = new TxOutputList(pubKeyB,amount);
+	    block.add(new Transaction(new TxInputList(pubKeyA,amount,txol,wallet),txol));
+	}
+	MerkleTree tree = MerkleTree.fromTransactions(block);
+	System.out.println("Transaction 2 is included in block (expected true) = "
+			   + tree.getProof(2).verify(block.get(2).getTxId(),tree.getRoot()));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	MerkleTree.test();
+    }
+}
@@ -0,0 +1,75 @@
+import java.nio.ByteBuffer;
+
+
+/** OutPoint
+ *   refers to one output of a transaction in the UTXO model,
+ *   given by the id of the transaction and the index of the output
+ *   in its TxOutputList.
+ */
+
+public final class OutPoint {
+
+    /** number of bytes of the encoding of an OutPoint */
+    public static final int SIZE = Hash.SIZE + Integer.SIZE / 8;
+
+    /** The id of the transaction which created the output */
+    private final Hash txId;
+
+    /** The position of the output in the list of outputs */
+    private final int index;
+
+    /**
+     * Create an OutPoint from a transaction id and an index
+     */
+
+    public OutPoint(Hash txId,int index){
+	this.txId = txId;
+	this.index = index;
+    }
+
+    /**
+     * Get the transaction id
+     */
+
+    public Hash getTxId(){
+	return txId;
+    }
+
+    /**
+     * Get the index
+     */
+
+    public int getIndex(){
+	return index;
+    }
+
+    /**
+     * the bytes of the OutPoint as used in messages to be signed
+     */
+
+    public byte[] toBytes(){
+	ByteBuffer b = ByteBuffer.allocate(SIZE);
+	b.put(txId.toBytes());
+	b.putInt(index);
+	return b.array();
+    }
+
+    @Override
+    public boolean equals(Object other){
+	if (!(other instanceof OutPoint)){
+	    return false;
+	}
+	OutPoint o = (OutPoint) other;
+	return index == o.index && txId.equals(o.txId);
+    }
+
+    @Override
+    public int hashCode(){
+	return 31 * txId.hashCode() + index;
+    }
+
+    @Override
+    public String toString(){
+	return txId.toShortString() + ":" + index;
+    }
+}
@@ -0,0 +1,247 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+
+/** ParallelBlockExecutor
+ *   applies a block of transactions to an AccountBalance, with the same
+ *   result as
+ *
+ *      for (Transaction tx : block)
+ *          if (accountBalance.checkTransactionValid(tx))
+ *              accountBalance.processTransaction(tx);
+ *
+ *   but doing most of the work in parallel.
+ *
+ *   First every transaction is executed speculatively, in parallel, against
+ *   the balances before the block: its signatures and amounts are checked,
+ *   it is found whether its inputs can be deducted from the balances it
+ *   reads, and the change of the balance of every key it writes is
+ *   computed. Then the results are committed in block order. A transaction
+ *   none of whose keys has been written by an earlier transaction of the
+ *   block has read the same balances as in sequential execution, so its
+ *   changes are applied as computed. Otherwise it is executed again against
+ *   the current balances; its signatures, which do not depend on the
+ *   balances, are not checked again.
+ *
+ *   The changes are applied with addToBalance and subtractFromBalance, as
+ *   processTransaction does, so pending credits of hot accounts are kept.
+ *
+ *   If the transactions of a block touch mostly different keys, almost all
+ *   work is done in the parallel phase.
+ */
+
+public class ParallelBlockExecutor {
+
+    /* the result of executing one transaction speculatively */
+
+    private static final class Speculation {
+	/** signatures and amounts are valid */
+	boolean wellFormed;
+	/** the inputs could be deducted from the balances read */
+	boolean deductable;
+	/** the fee, inputs minus outputs */
+	long fee;
+	/** the change of the balance of every key touched, in the order processTransaction touches them */
+	LinkedHashMap<PublicKey,Integer> deltas = new LinkedHashMap<PublicKey,Integer>();
+    }
+
+    /** the accountBalance blocks are applied to */
+    private final AccountBalance accountBalance;
+
+    /** the number of transactions executed again in the last block */
+    private int reExecuted;
+
+    /**
+     * Create an executor for {@code accountBalance}
+     */
+
+    public ParallelBlockExecutor(AccountBalance accountBalance){
+	this.accountBalance = accountBalance;
+    }
+
+    /* execute tx against the balances of accountBalance, without changing them */
+
+    private Speculation speculate(Transaction tx){
+	Speculation result = new Speculation();
+	result.wellFormed = tx.checkTransactionAmountsValid() && tx.checkSignaturesValid();
+	result.fee = (long) tx.toTxInputs().toSum() - tx.toTxOutputs().toSum();
+	if (result.wellFormed){
+	    execute(tx,result);
+	}
+	return result;
+    }
+
+    /* check whether a well formed transaction can be deducted from the
+       current balances and compute its changes */
+
+    private void execute(Transaction tx,Speculation result){
+	result.deltas.clear();
+	LinkedHashMap<PublicKey,Integer> debits = new LinkedHashMap<PublicKey,Integer>();
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    debits.merge(txInput.getSender(),txInput.getAmount(),Integer::sum);
+	}
+	result.deductable = true;
+	for (Map.Entry<PublicKey,Integer> debit : debits.entrySet()){
+	    if (accountBalance.getBalance(debit.getKey()) < debit.getValue()){
+		result.deductable = false;
+		return;
+	    }
+	}
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    result.deltas.merge(txInput.getSender(),-txInput.getAmount(),Integer::sum);
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    result.deltas.merge(txOutput.getRecipient(),txOutput.getAmount(),Integer::sum);
+	}
+    }
+
+    /* the keys whose balance tx reads */
+
+    private static ArrayList<PublicKey> readSet(Transaction tx){
+	ArrayList<PublicKey> result = new ArrayList<PublicKey>();
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    result.add(txInput.getSender());
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    result.add(txOutput.getRecipient());
+	}
+	return result;
+    }
+
+    /**
+     * apply {@code block} and return for each transaction whether it was processed
+     */
+
+    public boolean[] executeBlock(List<Transaction> block){
+	Speculation[] speculations = IntStream.range(0,block.size()).parallel()
+	    .mapToObj(i -> speculate(block.get(i)))
+	    .toArray(Speculation[]::new);
+	boolean[] processed = new boolean[block.size()];
+	HashSet<PublicKey> written = new HashSet<PublicKey>();
+	reExecuted = 0;
+	for (int i = 0; i < block.size(); i++){
+	    Speculation speculation = speculations[i];
+	    if (!speculation.wellFormed){
+		continue;
+	    }
+	    Transaction tx = block.get(i);
+	    for (PublicKey publicKey : readSet(tx)){
+		if (written.contains(publicKey)){
+		    /* a balance read has changed since the speculation */
+		    execute(tx,speculation);
+		    reExecuted++;
+		    break;
+		}
+	    }
+	    if (speculation.deductable){
+		for (Map.Entry<PublicKey,Integer> delta : speculation.deltas.entrySet()){
+		    if (delta.getValue() < 0){
+			accountBalance.subtractFromBalance(delta.getKey(),-delta.getValue());
+		    } else {
+			/* also for 0, which creates the entry of a new key */
+			accountBalance.addToBalance(delta.getKey(),delta.getValue());
+		    }
+		    written.add(delta.getKey());
+		}
+		/* as processTransaction does, which the changes bypass */
+		accountBalance.addFees(speculation.fee);
+		processed[i] = true;
+	    }
+	}
+	return processed;
+    }
+
+    /**
+     * the number of transactions of the last block whose speculative
+     *   execution had to be repeated
+     */
+
+    public int getReExecutedCount(){
+	return reExecuted;
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	String[] names = new String[]{ "A", "B", "C", "D", "E", "F", "G", "H"};
+	Wallet wallet = SampleWallet.generate(names);
+	Random random = new Random(42);
+	ArrayList<Transaction> block = new ArrayList<Transaction>();
+	for (int i = 0; i < 200; i++){
+	    PublicKey from = wallet.getPublicKey(names[random.nextInt(names.length)]);
+	    PublicKey to1 = wallet.getPublicKey(names[random.nextInt(names.length)]);
+	    PublicKey to2 = wallet.getPublicKey(names[random.nextInt(names.length)]);
+	    int amount = 1 + random.nextInt(30);
+	    TxOutputList txol = new TxOutputList(to1,amount / 2,to2,amount - amount / 2);
+	    /* every tenth transaction tries to pay out more than it takes in */
+	    int input = (i % 10 == 9) ? amount - 1 : amount + i % 3;
+	    block.add(new Transaction(new TxInputList(from,input,txol,wallet),txol));
+	}
+
+	AccountBalance sequential = new AccountBalance();
+	AccountBalance parallel = new AccountBalance();
+	for (int i = 0; i < 4; i++){
+	    sequential.addAccount(wallet.getPublicKey(names[i]),50);
+	    parallel.addAccount(wallet.getPublicKey(names[i]),50);
+	}
+	int processedSequentially = 0;
+	for (Transaction tx : block){
+	    if (sequential.checkTransactionValid(tx)){
+		sequential.processTransaction(tx);
+		processedSequentially++;
+	    }
+	}
+	ParallelBlockExecutor executor = new ParallelBlockExecutor(parallel);
+	boolean[] processed = executor.executeBlock(block);
+	int processedInParallel = 0;
+	for (boolean p : processed){
+	    processedInParallel += p ? 1 : 0;
+	}
+	System.out.println("Processed sequentially " + processedSequentially
+			   + ", in parallel " + processedInParallel
+			   + ", executed again " + executor.getReExecutedCount());
+	System.out.println("Same state as sequential execution (expected true) = "
+			   + sequential.getStateRoot().equals(parallel.getStateRoot()));
+	System.out.println("Same total fees " + parallel.getTotalFees() + " and supply as sequential (expected true) = "
+			   + (sequential.getTotalFees() == parallel.getTotalFees()
+			      && sequential.getTotalSupply() == parallel.getTotalSupply()));
+	System.out.println("Same order of keys (expected true) = "
+			   + sequential.getPublicKeysOrdered().equals(parallel.getPublicKeysOrdered()));
+
+	/* pending credits of a hot account are kept */
+	PublicKey pubKeyA = wallet.getPublicKey("A");
+	PublicKey pubKeyB = wallet.getPublicKey("B");
+	AccountBalance hot = new AccountBalance();
+	hot.addAccount(pubKeyA,50);
+	hot.addAccount(pubKeyB,10);
+	hot.markHot(pubKeyB);
+	hot.addToBalance(pubKeyB,7);
+	TxOutputList txol = new TxOutputList(pubKeyB,5);
+	Transaction tx = new Transaction(new TxInputList(pubKeyA,5,txol,wallet),txol);
+	new ParallelBlockExecutor(hot).executeBlock(List.of(tx));
+	System.out.println("Hot account B (expected 22) = " + hot.getBalance(pubKeyB));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	ParallelBlockExecutor.test();
+    }
+}
@@ -0,0 +1,477 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+
+/** PersistentHashMap
+ *   an immutable map implemented as a hash array mapped trie (HAMT).
+ *
+ *   plus and minus return a new map and leave the old one unchanged.
+ *   The new map shares all nodes with the old one except the O(log n)
+ *   nodes on the path to the changed entry, so keeping many versions of a
+ *   map costs little, and handing out the current version (for instance
+ *   as the result of a getter) needs no copy at all.
+ *
+ *   Each node covers 5 bits of the hash of the keys, a bitmap says which
+ *   of its 32 possible children are present, and only those are stored.
+ *   Keys with the same hash are kept in a collision node.
+ *
+ *   The map methods of java.util.Map which would change it throw
+ *   UnsupportedOperationException.
+ */
+
+public final class PersistentHashMap<K,V> extends AbstractMap<K,V> {
+
+    /** number of bits of the hash used per level */
+    private static final int BITS = 5;
+
+    /** an entry, which also stores the hash of its key */
+
+    private static final class Entry<K,V> extends AbstractMap.SimpleImmutableEntry<K,V> {
+	private static final long serialVersionUID = 1L;
+
+	final int hash;
+
+	Entry(K key,V value,int hash){
+	    super(key,value);
+	    this.hash = hash;
+	}
+    }
+
+    /* a node contains entries and subnodes in the array slots */
+
+    private abstract static class Node {
+	final Object[] slots;
+
+	Node(Object[] slots){
+	    this.slots = slots;
+	}
+    }
+
+    /* node where the bitmap determines which children are present */
+
+    private static final class BitmapNode extends Node {
+	final int bitmap;
+
+	BitmapNode(int bitmap,Object[] slots){
+	    super(slots);
+	    this.bitmap = bitmap;
+	}
+    }
+
+    /* node for entries whose keys have the same hash */
+
+    private static final class CollisionNode extends Node {
+	final int hash;
+
+	CollisionNode(int hash,Object[] slots){
+	    super(slots);
+	    this.hash = hash;
+	}
+    }
+
+    private static final PersistentHashMap<Object,Object> EMPTY_MAP =
+	new PersistentHashMap<Object,Object>(new BitmapNode(0,new Object[0]),0);
+
+    /** the root node */
+    private final Node root;
+
+    /** the number of entries */
+    private final int size;
+
+    private PersistentHashMap(Node root,int size){
+	this.root = root;
+	this.size = size;
+    }
+
+    /**
+     * the empty map
+     */
+
+    @SuppressWarnings("unchecked")
+    public static <K,V> PersistentHashMap<K,V> empty(){
+	return (PersistentHashMap<K,V>) EMPTY_MAP;
+    }
+
+    /**
+     * a map with the entries of {@code map}
+     */
+
+    public static <K,V> PersistentHashMap<K,V> copyOf(Map<? extends K,? extends V> map){
+	if (map instanceof PersistentHashMap){
+	    @SuppressWarnings("unchecked")
+	    PersistentHashMap<K,V> result = (PersistentHashMap<K,V>) map;
+	    return result;
+	}
+	PersistentHashMap<K,V> result = empty();
+	for (Map.Entry<? extends K,? extends V> entry : map.entrySet()){
+	    result = result.plus(entry.getKey(),entry.getValue());
+	}
+	return result;
+    }
+
+    private static int hash(Object key){
+	int h = key.hashCode();
+	return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash,int shift){
+	return 1 << ((hash >>> shift) & 31);
+    }
+
+    private static int index(int bitmap,int bit){
+	return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    /* ---------------- lookup ---------------- */
+
+    private static Entry<?,?> find(Node node,Object key,int hash,int shift){
+	while (true){
+	    if (node instanceof CollisionNode){
+		for (Object slot : node.slots){
+		    Entry<?,?> entry = (Entry<?,?>) slot;
+		    if (entry.hash == hash && entry.getKey().equals(key)){
+			return entry;
+		    }
+		}
+		return null;
+	    }
+	    BitmapNode bitmapNode = (BitmapNode) node;
+	    int bit = bit(hash,shift);
+	    if ((bitmapNode.bitmap & bit) == 0){
+		return null;
+	    }
+	    Object slot = bitmapNode.slots[index(bitmapNode.bitmap,bit)];
+	    if (slot instanceof Entry){
+		Entry<?,?> entry = (Entry<?,?>) slot;
+		return (entry.hash == hash && entry.getKey().equals(key)) ? entry : null;
+	    }
+	    node = (Node) slot;
+	    shift += BITS;
+	}
+    }
+
+    @Override
+    public V get(Object key){
+	if (key == null){
+	    return null;
+	}
+	@SuppressWarnings("unchecked")
+	Entry<K,V> entry = (Entry<K,V>) find(root,key,hash(key),0);
+	return entry == null ? null : entry.getValue();
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+	return key != null && find(root,key,hash(key),0) != null;
+    }
+
+    @Override
+    public int size(){
+	return size;
+    }
+
+    /* ---------------- insertion ---------------- */
+
+    private static Object[] insertSlot(Object[] slots,int index,Object value){
+	Object[] result = new Object[slots.length + 1];
+	System.arraycopy(slots,0,result,0,index);
+	result[index] = value;
+	System.arraycopy(slots,index,result,index + 1,slots.length - index);
+	return result;
+    }
+
+    private static Object[] replaceSlot(Object[] slots,int index,Object value){
+	Object[] result = slots.clone();
+	result[index] = value;
+	return result;
+    }
+
+    private static Object[] removeSlot(Object[] slots,int index){
+	Object[] result = new Object[slots.length - 1];
+	System.arraycopy(slots,0,result,0,index);
+	System.arraycopy(slots,index + 1,result,index,slots.length - index - 1);
+	return result;
+    }
+
+    /* a node at level shift containing the two entries or nodes e1 with hash h1 and e2 */
+
+    private static Node merge(Object e1,int h1,Entry<?,?> e2,int shift){
+	if (e1 instanceof Entry && h1 == e2.hash){
+	    return new CollisionNode(h1,new Object[]{e1,e2});
+	}
+	int bit1 = bit(h1,shift);
+	int bit2 = bit(e2.hash,shift);
+	if (bit1 == bit2){
+	    return new BitmapNode(bit1,new Object[]{merge(e1,h1,e2,shift + BITS)});
+	}
+	Object[] slots = (Integer.compareUnsigned(bit1,bit2) < 0)
+	    ? new Object[]{e1,e2} : new Object[]{e2,e1};
+	return new BitmapNode(bit1 | bit2,slots);
+    }
+
+    /* returns the node with entry added; added[0] is set if the key was new */
+
+    private static Node put(Node node,Entry<?,?> entry,int shift,boolean[] added){
+	if (node instanceof CollisionNode){
+	    CollisionNode collision = (CollisionNode) node;
+	    if (collision.hash != entry.hash){
+		/* move the collision node one level down below a bitmap node */
+		added[0] = true;
+		return merge(collision,collision.hash,entry,shift);
+	    }
+	    for (int i = 0; i < collision.slots.length; i++){
+		Entry<?,?> old = (Entry<?,?>) collision.slots[i];
+		if (old.getKey().equals(entry.getKey())){
+		    if (old.getValue() == entry.getValue()){
+			return node;
+		    }
+		    return new CollisionNode(collision.hash,replaceSlot(collision.slots,i,entry));
+		}
+	    }
+	    added[0] = true;
+	    return new CollisionNode(collision.hash,
+				     insertSlot(collision.slots,collision.slots.length,entry));
+	}
+	BitmapNode bitmapNode = (BitmapNode) node;
+	int bit = bit(entry.hash,shift);
+	int index = index(bitmapNode.bitmap,bit);
+	if ((bitmapNode.bitmap & bit) == 0){
+	    added[0] = true;
+	    return new BitmapNode(bitmapNode.bitmap | bit,insertSlot(bitmapNode.slots,index,entry));
+	}
+	Object slot = bitmapNode.slots[index];
+	Object newSlot;
+	if (slot instanceof Entry){
+	    Entry<?,?> old = (Entry<?,?>) slot;
+	    if (old.hash == entry.hash && old.getKey().equals(entry.getKey())){
+		if (old.getValue() == entry.getValue()){
+		    return node;
+		}
+		newSlot = entry;
+	    } else {
+		added[0] = true;
+		newSlot = merge(old,old.hash,entry,shift + BITS);
+	    }
+	} else {
+	    newSlot = put((Node) slot,entry,shift + BITS,added);
+	    if (newSlot == slot){
+		return node;
+	    }
+	}
+	return new BitmapNode(bitmapNode.bitmap,replaceSlot(bitmapNode.slots,index,newSlot));
+    }
+
+    /**
+     * the map with {@code key} mapped to {@code value}, in time O(log n)
+     */
+
+    public PersistentHashMap<K,V> plus(K key,V value){
+	Objects.requireNonNull(key,"key");
+	boolean[] added = new boolean[1];
+	Node newRoot = put(root,new Entry<K,V>(key,value,hash(key)),0,added);
+	if (newRoot == root){
+	    return this;
+	}
+	return new PersistentHashMap<K,V>(newRoot,added[0] ? size + 1 : size);
+    }
+
+    /* ---------------- removal ---------------- */
+
+    /* returns the node with key removed, null if the node became empty */
+
+    private static Object remove(Node node,Object key,int hash,int shift){
+	if (node instanceof CollisionNode){
+	    for (int i = 0; i < node.slots.length; i++){
+		if (((Entry<?,?>) node.slots[i]).getKey().equals(key)){
+		    Object[] slots = removeSlot(node.slots,i);
+		    /* a single remaining entry is stored directly in the parent */
+		    return slots.length == 1 ? slots[0]
+			: new CollisionNode(((CollisionNode) node).hash,slots);
+		}
+	    }
+	    return node;
+	}
+	BitmapNode bitmapNode = (BitmapNode) node;
+	int bit = bit(hash,shift);
+	if ((bitmapNode.bitmap & bit) == 0){
+	    return node;
+	}
+	int index = index(bitmapNode.bitmap,bit);
+	Object slot = bitmapNode.slots[index];
+	Object newSlot;
+	if (slot instanceof Entry){
+	    Entry<?,?> entry = (Entry<?,?>) slot;
+	    if (entry.hash != hash || !entry.getKey().equals(key)){
+		return node;
+	    }
+	    newSlot = null;
+	} else {
+	    newSlot = remove((Node) slot,key,hash,shift + BITS);
+	    if (newSlot == slot){
+		return node;
+	    }
+	}
+	if (newSlot == null){
+	    if (bitmapNode.slots.length == 1){
+		return null;
+	    }
+	    Object[] slots = removeSlot(bitmapNode.slots,index);
+	    if (shift > 0 && slots.length == 1 && slots[0] instanceof Entry){
+		return slots[0];
+	    }
+	    return new BitmapNode(bitmapNode.bitmap & ~bit,slots);
+	}
+	if (shift > 0 && bitmapNode.slots.length == 1 && newSlot instanceof Entry){
+	    return newSlot;
+	}
+	return new BitmapNode(bitmapNode.bitmap,replaceSlot(bitmapNode.slots,index,newSlot));
+    }
+
+    /**
+     * the map without an entry for {@code key}, in time O(log n)
+     */
+
+    public PersistentHashMap<K,V> minus(Object key){
+	if (key == null){
+	    return this;
+	}
+	Object newRoot = remove(root,key,hash(key),0);
+	if (newRoot == root){
+	    return this;
+	}
+	if (newRoot == null){
+	    return empty();
+	}
+	return new PersistentHashMap<K,V>((Node) newRoot,size - 1);
+    }
+
+    /* ---------------- iteration ---------------- */
+
+    /* iterates over the entries by a depth first traversal of the nodes */
+
+    private final class EntryIterator implements Iterator<Map.Entry<K,V>> {
+	private ArrayDeque<Object[]> slotStack = new ArrayDeque<Object[]>();
+	private ArrayDeque<Integer> indexStack = new ArrayDeque<Integer>();
+	private Entry<K,V> next;
+
+	EntryIterator(){
+	    slotStack.push(root.slots);
+	    indexStack.push(0);
+	    advance();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void advance(){
+	    next = null;
+	    while (next == null && !slotStack.isEmpty()){
+		Object[] slots = slotStack.peek();
+		int index = indexStack.pop();
+		if (index >= slots.length){
+		    slotStack.pop();
+		    continue;
+		}
+		indexStack.push(index + 1);
+		Object slot = slots[index];
+		if (slot instanceof Entry){
+		    next = (Entry<K,V>) slot;
+		} else {
+		    slotStack.push(((Node) slot).slots);
+		    indexStack.push(0);
+		}
+	    }
+	}
+
+	@Override
+	public boolean hasNext(){
+	    return next != null;
+	}
+
+	@Override
+	public Map.Entry<K,V> next(){
+	    if (next == null){
+		throw new NoSuchElementException();
+	    }
+	    Entry<K,V> result = next;
+	    advance();
+	    return result;
+	}
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet(){
+	return new AbstractSet<Map.Entry<K,V>>() {
+	    @Override
+	    public Iterator<Map.Entry<K,V>> iterator(){
+		return new EntryIterator();
+	    }
+
+	    @Override
+	    public int size(){
+		return size;
+	    }
+	};
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test(){
+	int n = 100000;
+	PersistentHashMap<Integer,Integer> map = empty();
+	for (int i = 0; i < n; i++){
+	    map = map.plus(i,i * i);
+	}
+	PersistentHashMap<Integer,Integer> snapshot = map;
+	map = map.plus(5,-1).minus(6);
+	System.out.println("Size (expected " + n + ") = " + snapshot.size());
+	System.out.println("Snapshot value for 5 (expected 25) = " + snapshot.get(5));
+	System.out.println("New value for 5 (expected -1) = " + map.get(5));
+	System.out.println("New map contains 6 (expected false) = " + map.containsKey(6)
+			   + ", size (expected " + (n - 1) + ") = " + map.size());
+	boolean allFound = true;
+	for (int i = 0; i < n; i++){
+	    allFound &= snapshot.get(i) == i * i;
+	}
+	System.out.println("All values found (expected true) = " + allFound);
+	int iterated = 0;
+	long sum = 0;
+	for (Map.Entry<Integer,Integer> entry : snapshot.entrySet()){
+	    iterated++;
+	    sum += entry.getKey();
+	}
+	System.out.println("Iterated entries (expected " + n + ") = " + iterated
+			   + ", sum of keys (expected " + ((long) n * (n - 1) / 2) + ") = " + sum);
+
+	/* keys with equal hash codes end up in collision nodes */
+	PersistentHashMap<String,Integer> collisions = empty();
+	collisions = collisions.plus("Aa",1).plus("BB",2).plus("C",3);
+	System.out.println("Colliding keys Aa, BB: " + collisions.get("Aa") + " " + collisions.get("BB")
+			   + " (expected 1 2)");
+	collisions = collisions.minus("Aa");
+	System.out.println("After removing Aa: " + collisions + " (expected BB=2 and C=3)");
+
+	for (int i = 0; i < n; i++){
+	    map = map.minus(i);
+	}
+	System.out.println("After removing all keys size (expected 0) = " + map.size()
+			   + ", map equals empty map (expected true) = " + map.equals(empty()));
+	System.out.println("Snapshot still has size (expected " + n + ") = " + snapshot.size());
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args){
+	PersistentHashMap.test();
+    }
+}
@@ -1,4 +1,4 @@
-import java.util.HashMap;
+import java.util.Map;
 import java.security.PublicKey;
 import java.security.NoSuchAlgorithmException;
 import java.util.Set;
@@ -11,17 +11,21 @@ public class PublicKeyMap {
         and when only using operations in  this class consistency 
 	will be maintained */
 
-    /* the underlying hashmaps */
+    /* the underlying maps
+
+       they are persistent maps, so the maps can be handed out and the
+       PublicKeyMap can be copied without copying the maps; adding a key
+       replaces them by new versions sharing most of their structure */
     
-    private HashMap<String,PublicKey> user2PublicKey;
-    private HashMap<PublicKey,String> publicKey2User;
+    private PersistentHashMap<String,PublicKey> user2PublicKey;
+    private PersistentHashMap<PublicKey,String> publicKey2User;
 
 
     /* constructing the empty map */
     
     public PublicKeyMap(){
-	this.user2PublicKey = new HashMap<String,PublicKey> ();
-	this.publicKey2User = new HashMap<PublicKey,String>();
+	this.user2PublicKey = PersistentHashMap.empty();
+	this.publicKey2User = PersistentHashMap.empty();
     }	
 
     /* constructing a map from existing data 
@@ -32,39 +36,43 @@ public class PublicKeyMap {
  
     */
 
-    public PublicKeyMap(HashMap<String,PublicKey> user2PublicKey,
-			HashMap<PublicKey,String> publicKey2User) {       
-	this.user2PublicKey = new HashMap<String,PublicKey> (user2PublicKey);
-	this.publicKey2User = new HashMap<PublicKey,String>(publicKey2User);
+    public PublicKeyMap(Map<String,PublicKey> user2PublicKey,
+			Map<PublicKey,String> publicKey2User) {       
+	this.user2PublicKey = PersistentHashMap.copyOf(user2PublicKey);
+	this.publicKey2User = PersistentHashMap.copyOf(publicKey2User);
     }
 
-    /* the copying constructor */
+    /* the copying constructor, which takes constant time
+       since the maps are shared */
 
     public PublicKeyMap(PublicKeyMap publicKeyMap) {       
-	this.user2PublicKey = new HashMap<String,PublicKey> (publicKeyMap.getUser2PublicKey());
-	this.publicKey2User = new HashMap<PublicKey,String>(publicKeyMap.publicKey2User());
+	this.user2PublicKey = publicKeyMap.user2PublicKey;
+	this.publicKey2User = publicKeyMap.publicKey2User;
     }
 
-    /* adding an entry to the map */
+    /* adding an entry to the map, in time O(log n) */
 
     public void addKey(String user,PublicKey publicKey){
-	user2PublicKey.put(user,publicKey);
-	publicKey2User.put(publicKey,user);
+	user2PublicKey = user2PublicKey.plus(user,publicKey);
+	publicKey2User = publicKey2User.plus(publicKey,user);
     }
 
 	
 
 
-    /* retrieve the  underlying hash maps */
+    /* retrieve the  underlying maps
+
+       the result is an immutable snapshot, later changes to the
+       PublicKeyMap do not affect it */
     
-    public HashMap<String,PublicKey> getUser2PublicKey(){
-	return new HashMap<String,PublicKey>(user2PublicKey);
+    public Map<String,PublicKey> getUser2PublicKey(){
+	return user2PublicKey;
     }
 
     
 
-    public HashMap<PublicKey,String> publicKey2User(){
-	return new HashMap<PublicKey,String>(publicKey2User);
+    public Map<PublicKey,String> publicKey2User(){
+	return publicKey2User;
     }    
 
     /*  look up a  user in the map from the public key */
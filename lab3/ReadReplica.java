@@ -0,0 +1,178 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.PublicKey;
+import java.util.function.LongSupplier;
+
+
+/** ReadReplica
+ *   a copy of the ledger of a ReplicationLog, kept up to date by applying
+ *   the transactions and balances the primary sends over a channel.
+ *
+ *   Reads see the state after some sequence number, which may be behind
+ *   the primary; a reader needing to see its own transaction waits for its
+ *   sequence number with awaitSequence.
+ */
+
+public class ReadReplica {
+
+    /** the state of the replica */
+    private final AccountBalance accountBalance;
+
+    /** the channel the frames are read from */
+    private final ReadableByteChannel source;
+
+    /** the sequence number of the primary */
+    private final LongSupplier primarySequence;
+
+    /** the thread applying the frames */
+    private final Thread applier;
+
+    /** the sequence number of the last frame applied */
+    private long sequence;
+
+    /**
+     * Create a replica with state {@code accountBalance} after sequence
+     *   number {@code sequence}, reading frames from {@code source}.
+     *   Called by ReplicationLog.attachReplica.
+     */
+
+    ReadReplica(AccountBalance accountBalance,long sequence,ReadableByteChannel source,
+		LongSupplier primarySequence){
+	this.accountBalance = accountBalance;
+	this.sequence = sequence;
+	this.source = source;
+	this.primarySequence = primarySequence;
+	this.applier = new Thread(this::applyLoop,"read-replica");
+	this.applier.setDaemon(true);
+    }
+
+    /**
+     * start applying transactions
+     */
+
+    public void start(){
+	applier.start();
+    }
+
+    /**
+     * wait until the primary has closed the log and all of it has been applied
+     */
+
+    public void join() throws InterruptedException {
+	applier.join();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+	while (buffer.hasRemaining()){
+	    if (source.read(buffer) < 0){
+		throw new EOFException();
+	    }
+	}
+	buffer.flip();
+    }
+
+    private void applyLoop(){
+	ByteBuffer header = ByteBuffer.allocate(ReplicationLog.HEADER_LENGTH);
+	try {
+	    while (true){
+		header.clear();
+		readFully(header);
+		long seq = header.getLong();
+		byte type = header.get();
+		ByteBuffer bytes = ByteBuffer.allocate(header.getInt());
+		readFully(bytes);
+		synchronized (this){
+		    if (type == ReplicationLog.ACCOUNT){
+			int balance = bytes.getInt();
+			byte[] key = new byte[bytes.remaining()];
+			bytes.get(key);
+			accountBalance.addAccount(KeyUtils.decodePublicKey(key),balance);
+		    } else {
+			/* the primary has checked the transaction */
+			accountBalance.processTransaction(new TransactionView(bytes,0));
+		    }
+		    sequence = seq;
+		    notifyAll();
+		}
+	    }
+	} catch (IOException e) {
+	    /* the primary has closed the log */
+	} finally {
+	    try {
+		source.close();
+	    } catch (IOException e) {
+	    }
+	}
+    }
+
+    /** the sequence number of the last frame applied */
+
+    public synchronized long getSequence(){
+	return sequence;
+    }
+
+    /** the number of frames of the primary not yet applied */
+
+    public synchronized long getLag(){
+	return Math.max(0,primarySequence.getAsLong() - sequence);
+    }
+
+    /**
+     * wait until the transaction with sequence number {@code seq} has been
+     *   applied, at most {@code timeoutMillis} milliseconds.
+     *   Returns whether it has been applied.
+     */
+
+    public synchronized boolean awaitSequence(long seq,long timeoutMillis) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + timeoutMillis;
+	while (sequence < seq){
+	    long remaining = deadline - System.currentTimeMillis();
+	    if (remaining <= 0){
+		return false;
+	    }
+	    wait(remaining);
+	}
+	return true;
+    }
+
+    /** the balance of {@code publicKey} at the replica */
+
+    public synchronized int getBalance(PublicKey publicKey){
+	return accountBalance.getBalance(publicKey);
+    }
+
+    /** the state root of the replica */
+
+    public synchronized Hash getStateRoot(){
+	return accountBalance.getStateRoot();
+    }
+
+    /* a snapshot of the state, taken under the lock of the replica */
+
+    private synchronized AccountBalanceSnapshot snapshot(){
+	return accountBalance.snapshot();
+    }
+
+    /**
+     * export the state of the replica in the binary format of AccountBalanceExporter.
+     *   A snapshot is exported, so neither the primary nor the replica is
+     *   blocked while it is written.
+     */
+
+    public ExportStats exportBinary(AccountBalanceExporter exporter,WritableByteChannel channel)
+	throws IOException {
+	return exporter.exportBinary(snapshot(),channel);
+    }
+
+    /**
+     * export the state of the replica as CSV, see AccountBalanceExporter
+     */
+
+    public ExportStats exportCsv(AccountBalanceExporter exporter,PublicKeyMap pubKeyMap,
+				 WritableByteChannel channel) throws IOException {
+	return exporter.exportCsv(snapshot(),pubKeyMap,channel);
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+
+/** ReplayFilter
+ *   remembers the ids of recently processed transactions, so that a
+ *   transaction which is submitted again can be rejected by computing
+ *   its hash only, before any signature is checked.
+ *
+ *   Ids are remembered for a window of time given in milliseconds.
+ *   The exact set of ids is kept in insertion order, so that expired ids
+ *   are removed from its head.  In front of it there are two Bloom filters,
+ *   one for the current and one for the previous window; when the current
+ *   window is over the previous filter is dropped. An id is therefore in one
+ *   of the Bloom filters for at least as long as it is in the exact set,
+ *   and for ids which were never seen the exact set is usually not consulted.
+ */
+
+public class ReplayFilter {
+
+    /** the length of the window in milliseconds */
+    private long windowMillis;
+
+    /** the expected number of ids per window, used to size the Bloom filters */
+    private int expectedPerWindow;
+
+    /** the clock used for expiry */
+    private LongSupplier clock;
+
+    /** ids seen mapped to the time they were recorded, oldest first */
+    private LinkedHashMap<Hash,Long> recentIds;
+
+    /** Bloom filter for the ids recorded in the current window */
+    private BloomFilter currentFilter;
+
+    /** Bloom filter for the ids recorded in the previous window */
+    private BloomFilter previousFilter;
+
+    /** the time the current window started */
+    private long currentWindowStart;
+
+    /**
+     * Create a ReplayFilter remembering ids for {@code windowMillis}
+     *   milliseconds, sized for {@code expectedPerWindow} ids per window
+     */
+
+    public ReplayFilter(long windowMillis,int expectedPerWindow){
+	this(windowMillis,expectedPerWindow,System::currentTimeMillis);
+    }
+
+    /**
+     * as before, with a clock given explicitly (used for testing)
+     */
+
+    public ReplayFilter(long windowMillis,int expectedPerWindow,LongSupplier clock){
+	this.windowMillis = windowMillis;
+	this.expectedPerWindow = expectedPerWindow;
+	this.clock = clock;
+	this.recentIds = new LinkedHashMap<Hash,Long>();
+	this.currentFilter = new BloomFilter(expectedPerWindow,0.01);
+	this.previousFilter = new BloomFilter(expectedPerWindow,0.01);
+	this.currentWindowStart = clock.getAsLong();
+    }
+
+    /* remove expired ids and rotate the Bloom filters if the window is over */
+
+    private void expire(long now){
+	Iterator<Map.Entry<Hash,Long>> it = recentIds.entrySet().iterator();
+	while (it.hasNext() && it.next().getValue() <= now - windowMillis){
+	    it.remove();
+	}
+	if (now - currentWindowStart >= windowMillis){
+	    BloomFilter tmp = previousFilter;
+	    previousFilter = currentFilter;
+	    currentFilter = tmp;
+	    currentFilter.clear();
+	    if (now - currentWindowStart >= 2 * windowMillis){
+		/* no id of the previous window can still be in the exact set */
+		previousFilter.clear();
+	    }
+	    currentWindowStart = now;
+	}
+    }
+
+    /**
+     * @return true if {@code txId} was recorded within the window
+     */
+
+    public synchronized boolean isDuplicate(Hash txId){
+	expire(clock.getAsLong());
+	if (!currentFilter.mightContain(txId) && !previousFilter.mightContain(txId)){
+	    return false;
+	}
+	return recentIds.containsKey(txId);
+    }
+
+    /**
+     * record {@code txId} as processed
+     */
+
+    public synchronized void record(Hash txId){
+	long now = clock.getAsLong();
+	expire(now);
+	recentIds.remove(txId);
+	recentIds.put(txId,now);
+	currentFilter.add(txId);
+    }
+
+    /**
+     * the number of ids currently remembered
+     */
+
+    public synchronized int size(){
+	expire(clock.getAsLong());
+	return recentIds.size();
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test(){
+	long[] time = new long[]{0};
+	ReplayFilter filter = new ReplayFilter(1000,100,() -> time[0]);
+	Hash id1 = Hash.of(KeyUtils.integer2ByteArray(1));
+	Hash id2 = Hash.of(KeyUtils.integer2ByteArray(2));
+	filter.record(id1);
+	System.out.println("id1 is duplicate (expected true) = " + filter.isDuplicate(id1));
+	System.out.println("id2 is duplicate (expected false) = " + filter.isDuplicate(id2));
+	time[0] = 600;
+	filter.record(id2);
+	time[0] = 1200;
+	System.out.println("After 1200ms id1 is duplicate (expected false) = " + filter.isDuplicate(id1));
+	System.out.println("After 1200ms id2 is duplicate (expected true) = " + filter.isDuplicate(id2));
+	time[0] = 1700;
+	System.out.println("After 1700ms number of ids remembered (expected 0) = " + filter.size());
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args){
+	ReplayFilter.test();
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/** ReplicationLog
+ *   the primary of a ledger with read replicas.
+ *
+ *   Transactions are applied to the AccountBalance of the primary and,
+ *   if processed, numbered 1, 2, 3, ... and written to every replica
+ *   attached, as frames
+ *
+ *     long sequence number, byte type, int length, payload
+ *
+ *   on a Pipe. The payload of a TRANSACTION frame is the transaction in
+ *   the layout of TransactionView, that of an ACCOUNT frame, written by
+ *   addAccount, is the int balance followed by the encoded key. Both share
+ *   one sequence of numbers, so replicas apply them in the same order. Each ReadReplica applies the frames in its own thread, so
+ *   reading from a replica does not compete with the primary for the lock
+ *   of its AccountBalance.
+ *
+ *   The primary only puts each frame into a bounded queue per replica, from
+ *   which a sender thread of that replica writes it to the pipe, so a slow
+ *   replica never blocks the primary. A replica which falls more than
+ *   QUEUE_CAPACITY frames behind, or whose pipe fails, is detached: its
+ *   pipe is closed and it stops, and a new replica has to be attached.
+ */
+
+public class ReplicationLog implements AutoCloseable {
+
+    /** the state of the primary */
+    private final AccountBalance accountBalance;
+
+    /** the number of frames a replica may be behind before it is detached */
+    public static final int QUEUE_CAPACITY = 4096;
+
+    /** the types of frames */
+    public static final byte TRANSACTION = 0;
+    public static final byte ACCOUNT = 1;
+
+    /** the length of the header of a frame */
+    public static final int HEADER_LENGTH = Long.BYTES + 1 + Integer.BYTES;
+
+    /* the frames for one replica and the thread writing them to its pipe */
+
+    private final class Sender implements Runnable {
+	final Pipe.SinkChannel sink;
+	final ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY);
+	final Thread thread = new Thread(this,"replication-sender");
+	volatile boolean closing;
+
+	Sender(Pipe.SinkChannel sink){
+	    this.sink = sink;
+	    thread.setDaemon(true);
+	}
+
+	@Override
+	public void run(){
+	    try {
+		while (true){
+		    ByteBuffer frame = queue.poll(50,TimeUnit.MILLISECONDS);
+		    if (frame == null){
+			if (closing){
+			    break;
+			}
+			continue;
+		    }
+		    while (frame.hasRemaining()){
+			sink.write(frame);
+		    }
+		}
+	    } catch (IOException | InterruptedException e) {
+		/* the replica has stopped or is being detached */
+	    }
+	    detach(this);
+	    try {
+		sink.close();
+	    } catch (IOException e) {
+	    }
+	}
+    }
+
+    /** the senders of the attached replicas */
+    private final ArrayList<Sender> senders = new ArrayList<Sender>();
+
+    /** the number of replicas detached because they failed or fell behind */
+    private long detached;
+
+    /** the sequence number of the last frame */
+    private volatile long sequence;
+
+    /**
+     * Create the primary for {@code accountBalance}
+     */
+
+    public ReplicationLog(AccountBalance accountBalance){
+	this.accountBalance = accountBalance;
+    }
+
+    /** the sequence number of the last frame */
+
+    public long getSequence(){
+	return sequence;
+    }
+
+    /** the balance of {@code publicKey} at the primary */
+
+    public synchronized int getBalance(PublicKey publicKey){
+	return accountBalance.getBalance(publicKey);
+    }
+
+    /**
+     * set the balance of {@code publicKey} and send it to all replicas.
+     *   Returns the sequence number of the change.
+     */
+
+    public synchronized long addAccount(PublicKey publicKey,int balance){
+	accountBalance.addAccount(publicKey,balance);
+	byte[] key = publicKey.getEncoded();
+	ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + key.length);
+	payload.putInt(balance).put(key).flip();
+	return send(ACCOUNT,payload);
+    }
+
+    /**
+     * check {@code tx} and, if valid, process it and send it to all replicas.
+     *   Returns the sequence number of the transaction, or 0 if it was not valid.
+     */
+
+    public synchronized long append(Transaction tx){
+	if (!accountBalance.checkTransactionValid(tx)){
+	    return 0;
+	}
+	accountBalance.processTransaction(tx);
+	return send(TRANSACTION,ByteBuffer.wrap(TransactionView.toBytes(tx)));
+    }
+
+    /* number a frame of type with payload and queue it for all replicas */
+
+    private long send(byte type,ByteBuffer payload){
+	long seq = ++sequence;
+	ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.remaining());
+	frame.putLong(seq).put(type).putInt(payload.remaining()).put(payload).flip();
+	for (Sender sender : new ArrayList<Sender>(senders)){
+	    if (!sender.queue.offer(frame.duplicate())){
+		/* the replica has fallen too far behind */
+		detach(sender);
+		sender.thread.interrupt();
+	    }
+	}
+	return seq;
+    }
+
+    /* stop sending to the replica of sender */
+
+    private synchronized void detach(Sender sender){
+	if (senders.remove(sender) && !sender.closing){
+	    detached++;
+	}
+    }
+
+    /** the number of replicas attached */
+
+    public synchronized int getReplicaCount(){
+	return senders.size();
+    }
+
+    /** the number of replicas detached because they failed or fell behind */
+
+    public synchronized long getDetachedCount(){
+	return detached;
+    }
+
+    /**
+     * a new replica, starting from a copy of the current state of the primary
+     */
+
+    public synchronized ReadReplica attachReplica() throws IOException {
+	Pipe pipe = Pipe.open();
+	AccountBalance copy = new AccountBalance();
+	for (PublicKey publicKey : accountBalance.getPublicKeysOrdered()){
+	    copy.addAccount(publicKey,accountBalance.getBalance(publicKey));
+	}
+	Sender sender = new Sender(pipe.sink());
+	senders.add(sender);
+	sender.thread.start();
+	return new ReadReplica(copy,sequence,pipe.source(),this::getSequence);
+    }
+
+    /**
+     * close the pipes once the frames queued have been sent, waiting at most
+     *   a second for each replica; the replicas stop after applying them
+     */
+
+    @Override
+    public void close() throws IOException {
+	ArrayList<Sender> closed;
+	synchronized (this){
+	    closed = new ArrayList<Sender>(senders);
+	    for (Sender sender : closed){
+		sender.closing = true;
+	    }
+	}
+	for (Sender sender : closed){
+	    try {
+		sender.thread.join(1000);
+		/* a replica which does not read its pipe is cut off */
+		sender.thread.interrupt();
+		sender.thread.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return;
+	    }
+	}
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException,
+	       IOException, InterruptedException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	ReplicationLog primary = new ReplicationLog(new AccountBalance());
+	primary.addAccount(pubKeyA,100);
+	ReadReplica replica1 = primary.attachReplica();
+	ReadReplica replica2 = primary.attachReplica();
+	replica1.start();
+	replica2.start();
+
+	TxOutputList txol = new TxOutputList(pubKeyB,1);
+	Transaction tx = new Transaction(new TxInputList(pubKeyA,1,txol,wallet),txol);
+	long last = 0;
+	for (int i = 0; i < 150; i++){
+	    long seq = primary.append(tx);
+	    if (seq != 0){
+		last = seq;
+	    }
+	}
+	System.out.println("Last sequence number (expected 101) = " + last);
+	System.out.println("Replica 1 reached it within a second (expected true) = "
+			   + replica1.awaitSequence(last,1000));
+	System.out.println("Balance of Bob at replica 1 (expected 100) = " + replica1.getBalance(pubKeyB)
+			   + ", lag (expected 0) = " + replica1.getLag());
+	replica2.awaitSequence(last,1000);
+	System.out.println("Replica 2 has the same state (expected true) = "
+			   + replica2.getStateRoot().equals(replica1.getStateRoot()));
+
+	/* accounts added while replicas are attached are replicated */
+	last = primary.addAccount(pubKeyA,40);
+	replica1.awaitSequence(last,1000);
+	System.out.println("Balance of Alice set at primary, at replica 1 (expected 40) = "
+			   + replica1.getBalance(pubKeyA) + ", same state (expected true) = "
+			   + replica1.getStateRoot().equals(primary.accountBalance.getStateRoot()));
+
+	/* a replica which is never started does not hold up the primary */
+	primary.attachReplica();
+	TxOutputList none = new TxOutputList(pubKeyA,0);
+	Transaction txNone = new Transaction(new TxInputList(pubKeyB,0,none,wallet),none);
+	long start = System.nanoTime();
+	for (int i = 0; i < 2 * QUEUE_CAPACITY; i++){
+	    last = primary.append(txNone);
+	}
+	System.out.println("Appended " + (2 * QUEUE_CAPACITY) + " transactions in "
+			   + (System.nanoTime() - start) / 1000000 + "ms, stalled replica detached (expected 1) = "
+			   + primary.getDetachedCount() + ", replicas left (expected 2) = " + primary.getReplicaCount());
+	System.out.println("Replica 1 still follows (expected true) = " + replica1.awaitSequence(last,5000));
+	primary.close();
+	replica1.join();
+	replica2.join();
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException,
+	       IOException, InterruptedException {
+	ReplicationLog.test();
+    }
+}
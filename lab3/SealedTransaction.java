@@ -0,0 +1,359 @@
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/** SealedTransaction
+ *   an immutable transaction, built with a SealedTransaction.Builder or
+ *   copied from a Transaction.
+ *
+ *   Since it cannot change, everything derived from it is computed at most
+ *   once and then kept: the sums of inputs and outputs, the amounts to be
+ *   deducted per sender, the messages signed by the inputs, the id and
+ *   whether the signatures are valid. So checking the same transaction
+ *   again, e.g. when it is validated on admission and again when it is
+ *   processed, costs only the check of the balances.
+ *
+ *   The derived values are computed on first use without locking; if
+ *   two threads compute one at the same time they compute equal values.
+ *
+ *   The inputs are copied when the transaction is built or copied from a
+ *   Transaction, and getInputs returns copies again, so that no TxInput of
+ *   the transaction is shared with the caller.
+ */
+
+public final class SealedTransaction {
+
+    /** builds a SealedTransaction, outputs first, then inputs */
+
+    public static final class Builder {
+	private final TxOutputList txOutputs = new TxOutputList();
+	private final ArrayList<TxInput> txInputs = new ArrayList<TxInput>();
+
+	/**
+	 * add an output; all outputs must be added before the first input,
+	 *   since the inputs sign them
+	 */
+
+	public Builder addOutput(PublicKey recipient,int amount){
+	    if (!txInputs.isEmpty()){
+		throw new IllegalStateException("outputs must be added before inputs");
+	    }
+	    txOutputs.addEntry(recipient,amount);
+	    return this;
+	}
+
+	/**
+	 * add an input with a signature computed elsewhere
+	 */
+
+	public Builder addInput(PublicKey sender,int amount,byte[] signature){
+	    txInputs.add(new TxInput(sender,amount,signature));
+	    return this;
+	}
+
+	/**
+	 * add an input signed by {@code wallet} for the outputs added so far
+	 */
+
+	public Builder addInput(PublicKey sender,int amount,Wallet wallet)
+	    throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	    txInputs.add(new TxInput(sender,amount,txOutputs,wallet));
+	    return this;
+	}
+
+	/**
+	 * add an input signed by {@code wallet} for the outputs added so far,
+	 *   signing the message of version {@code messageVersion} (see TxInput)
+	 */
+
+	public Builder addInput(PublicKey sender,int amount,Wallet wallet,byte messageVersion)
+	    throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	    txInputs.add(new TxInput(sender,amount,txOutputs,wallet,messageVersion));
+	    return this;
+	}
+
+	/**
+	 * the transaction built
+	 */
+
+	public SealedTransaction build(){
+	    return new SealedTransaction(txInputs,txOutputs.toList());
+	}
+    }
+
+    /** the inputs */
+    private final List<TxInput> inputs;
+
+    /** the outputs */
+    private final List<TxOutput> outputs;
+
+    /* derived values, computed on first use */
+
+    private volatile Integer inputSum;
+    private volatile Integer outputSum;
+    private volatile Map<PublicKey,Integer> debits;
+    private volatile byte[][] messages;
+    private volatile Hash txId;
+    private volatile Boolean signaturesValid;
+
+    private SealedTransaction(List<TxInput> inputs,List<TxOutput> outputs){
+	this.inputs = Collections.unmodifiableList(copy(inputs));
+	this.outputs = Collections.unmodifiableList(new ArrayList<TxOutput>(outputs));
+    }
+
+    /* copies of txInputs, with copies of their signatures */
+
+    private static ArrayList<TxInput> copy(List<TxInput> txInputs){
+	ArrayList<TxInput> result = new ArrayList<TxInput>(txInputs.size());
+	for (TxInput txInput : txInputs){
+	    result.add(new TxInput(txInput.getSender(),txInput.getAmount(),
+				   txInput.getSignature(),txInput.getMessageVersion()));
+	}
+	return result;
+    }
+
+    /**
+     * an immutable copy of {@code tx}
+     */
+
+    public static SealedTransaction of(Transaction tx){
+	return new SealedTransaction(tx.toTxInputs().toList(),tx.toTxOutputs().toList());
+    }
+
+    /** copies of the inputs, unmodifiable */
+
+    public List<TxInput> getInputs(){
+	return Collections.unmodifiableList(copy(inputs));
+    }
+
+    /** the outputs, unmodifiable */
+
+    public List<TxOutput> getOutputs(){
+	return outputs;
+    }
+
+    /** the sum of the amounts of the inputs */
+
+    public int getInputSum(){
+	Integer result = inputSum;
+	if (result == null){
+	    int sum = 0;
+	    for (TxInput txInput : inputs){
+		sum += txInput.getAmount();
+	    }
+	    inputSum = result = sum;
+	}
+	return result;
+    }
+
+    /** the sum of the amounts of the outputs */
+
+    public int getOutputSum(){
+	Integer result = outputSum;
+	if (result == null){
+	    int sum = 0;
+	    for (TxOutput txOutput : outputs){
+		sum += txOutput.getAmount();
+	    }
+	    outputSum = result = sum;
+	}
+	return result;
+    }
+
+    /** the fee, the difference between inputs and outputs */
+
+    public int getFee(){
+	return getInputSum() - getOutputSum();
+    }
+
+    /**
+     * the sum of the amounts to be deducted for each sender, unmodifiable
+     */
+
+    public Map<PublicKey,Integer> getDebits(){
+	Map<PublicKey,Integer> result = debits;
+	if (result == null){
+	    LinkedHashMap<PublicKey,Integer> map = new LinkedHashMap<PublicKey,Integer>();
+	    for (TxInput txInput : inputs){
+		map.merge(txInput.getSender(),txInput.getAmount(),Integer::sum);
+	    }
+	    debits = result = Collections.unmodifiableMap(map);
+	}
+	return result;
+    }
+
+    /* the part of the message of the given version for the outputs */
+
+    private byte[] outputPart(byte version){
+	SigData outputData = new SigData();
+	if (version == TxInput.MESSAGE_V2){
+	    outputData.addInteger(outputs.size());
+	}
+	for (TxOutput txOutput : outputs){
+	    if (version == TxInput.MESSAGE_V2){
+		outputData.addFingerprint(txOutput.getRecipient());
+	    } else {
+		outputData.addPublicKey(txOutput.getRecipient());
+	    }
+	    outputData.addInteger(txOutput.getAmount());
+	}
+	return outputData.toArray();
+    }
+
+    /* the messages signed by the inputs; the part for the outputs is the
+       same for all inputs with the same version and encoded once */
+
+    private byte[][] messages(){
+	byte[][] result = messages;
+	if (result == null){
+	    byte[][] outputParts = new byte[TxInput.MESSAGE_V2 + 1][];
+	    result = new byte[inputs.size()][];
+	    for (int i = 0; i < inputs.size(); i++){
+		TxInput txInput = inputs.get(i);
+		byte version = txInput.getMessageVersion();
+		if (version != TxInput.MESSAGE_V1 && version != TxInput.MESSAGE_V2){
+		    throw new IllegalArgumentException("unknown message version " + version);
+		}
+		if (outputParts[version] == null){
+		    outputParts[version] = outputPart(version);
+		}
+		byte[] sender = version == TxInput.MESSAGE_V2
+		    ? KeyUtils.fingerprint(txInput.getSender()).toBytes()
+		    : txInput.getSender().getEncoded();
+		ByteBuffer message = ByteBuffer.allocate((version == TxInput.MESSAGE_V2 ? 1 : 0) + sender.length
+							 + Integer.BYTES + outputParts[version].length);
+		if (version == TxInput.MESSAGE_V2){
+		    message.put(TxInput.MESSAGE_V2);
+		}
+		result[i] = message.put(sender).putInt(txInput.getAmount()).put(outputParts[version]).array();
+	    }
+	    messages = result;
+	}
+	return result;
+    }
+
+    /**
+     * the message signed by input i, as TxOutputList.getMessageToSign
+     *   for the message version of the input
+     */
+
+    public byte[] getMessageToSign(int i){
+	return messages()[i].clone();
+    }
+
+    /** the id, equal to getTxId() of the corresponding Transaction */
+
+    public Hash getTxId(){
+	Hash result = txId;
+	if (result == null){
+	    txId = result = toTransaction().getTxId();
+	}
+	return result;
+    }
+
+    /** check the sum of inputs is >= the sum of outputs */
+
+    public boolean checkTransactionAmountsValid(){
+	return getInputSum() >= getOutputSum();
+    }
+
+    /** check the signatures of all inputs */
+
+    public boolean checkSignaturesValid(){
+	Boolean result = signaturesValid;
+	if (result == null){
+	    byte[][] messages = messages();
+	    boolean valid = true;
+	    for (int i = 0; valid && i < inputs.size(); i++){
+		TxInput txInput = inputs.get(i);
+		valid = Crypto.verifySignature(txInput.getSender(),messages[i],txInput.getSignature());
+	    }
+	    signaturesValid = result = valid;
+	}
+	return result;
+    }
+
+    /** the transaction as a (mutable) Transaction */
+
+    public Transaction toTransaction(){
+	TxInputList txInputs = new TxInputList(copy(inputs));
+	TxOutputList txOutputs = new TxOutputList();
+	for (TxOutput txOutput : outputs){
+	    txOutputs.addEntry(txOutput.getRecipient(),txOutput.getAmount());
+	}
+	return new Transaction(txInputs,txOutputs);
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	SealedTransaction tx = new SealedTransaction.Builder()
+	    .addOutput(pubKeyC,25)
+	    .addInput(pubKeyA,20,wallet)
+	    .addInput(pubKeyB,4,wallet)
+	    .addInput(pubKeyA,3,wallet,TxInput.MESSAGE_V2)
+	    .build();
+	System.out.println("Inputs " + tx.getInputSum() + ", outputs " + tx.getOutputSum()
+			   + ", fee " + tx.getFee() + " (expected 27, 25, 2)");
+	System.out.println("Debit of Alice (expected 23) = " + tx.getDebits().get(pubKeyA));
+	System.out.println("Signatures valid (expected true) = " + tx.checkSignaturesValid());
+	Transaction mutable = tx.toTransaction();
+	System.out.println("Same id as Transaction (expected true) = " + tx.getTxId().equals(mutable.getTxId()));
+	System.out.println("Same message as TxOutputList (expected true) = "
+			   + Arrays.equals(tx.getMessageToSign(0),
+					   mutable.toTxOutputs().getMessageToSign(pubKeyA,20)));
+
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,23);
+	accountBalance.addAccount(pubKeyB,4);
+	long start = System.nanoTime();
+	boolean valid = true;
+	for (int i = 0; i < 1000; i++){
+	    valid &= accountBalance.checkTransactionValid(tx);
+	}
+	System.out.println("Checked 1000 times (expected true) = " + valid + " in "
+			   + (System.nanoTime() - start) / 1000000 + "ms");
+	tx.getInputs().get(0).getSignature()[0] ^= 1;
+	System.out.println("Signature of a copy changed, still valid and unchanged (expected true true) = "
+			   + SealedTransaction.of(mutable).checkSignaturesValid() + " "
+			   + Arrays.equals(tx.getInputs().get(0).getSignature(),
+					   mutable.toTxInputs().toList().get(0).getSignature()));
+	accountBalance.processTransaction(tx);
+	System.out.println("After processing Alice, Bob, Carol (expected 0 0 25) = " + accountBalance.getBalance(pubKeyA)
+			   + " " + accountBalance.getBalance(pubKeyB) + " " + accountBalance.getBalance(pubKeyC));
+
+	try {
+	    new SealedTransaction.Builder().addInput(pubKeyA,1,wallet).addOutput(pubKeyB,1);
+	    System.out.println("Output after input accepted (expected exception)");
+	} catch (IllegalStateException e) {
+	    System.out.println("Output after input rejected (expected exception): " + e.getMessage());
+	}
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	SealedTransaction.test();
+    }
+}
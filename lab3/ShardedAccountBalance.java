@@ -0,0 +1,429 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/** ShardedAccountBalance
+ *   a ledger split into a number of AccountBalances, the shards, each
+ *   changed only by its own thread. A public key belongs to the shard
+ *   given by its fingerprint.
+ *
+ *   A transaction becomes a task on each shard owning one of its keys,
+ *   and the tasks are queued on all these shards at once, under one lock,
+ *   so that every shard sees the transactions in the same global order.
+ *   The task of each shard checks that the inputs belonging to the shard
+ *   can be deducted and votes; once all involved shards have voted, they
+ *   either all process their part of the transaction or all drop it.
+ *   While waiting for the decision a shard runs no later task, so each
+ *   shard changes exactly as in processing the transactions one after the
+ *   other in the global order, and no transaction is ever partially
+ *   deducted. Since the tasks are queued in the same order everywhere,
+ *   shards waiting for each other cannot deadlock.
+ *
+ *   Transactions touching a single shard need no coordination, so
+ *   transactions on different shards are processed in parallel.
+ *
+ *   Each shard processes its part on an AccountBalanceOverlay before it
+ *   votes, and votes no if that fails, so an exception while processing
+ *   drops the whole transaction and its result completes exceptionally.
+ *   The overlays are committed once all shards voted yes; only a listener
+ *   of a shard failing during its commit, or close() interrupting a shard
+ *   waiting for the decision, can leave the transaction committed on some
+ *   shards but not on others. The result then completes exceptionally too,
+ *   so a caller waiting for it never hangs.
+ */
+
+public class ShardedAccountBalance implements AutoCloseable {
+
+    /* the part of a transaction belonging to one shard */
+
+    private static final class Part {
+	final LinkedHashMap<PublicKey,Integer> debits = new LinkedHashMap<PublicKey,Integer>();
+	final ArrayList<TxInput> inputs = new ArrayList<TxInput>();
+	final ArrayList<TxOutput> outputs = new ArrayList<TxOutput>();
+	/** the fee of the transaction, recorded by the first part only */
+	long fee;
+    }
+
+    /** the shards */
+    private final AccountBalance[] shards;
+
+    /** the thread of each shard */
+    private final ExecutorService[] executors;
+
+    /** held while queueing the tasks of one transaction */
+    private final Object submitLock = new Object();
+
+    /**
+     * Create a ledger with {@code shardCount} empty shards
+     */
+
+    public ShardedAccountBalance(int shardCount){
+	shards = new AccountBalance[shardCount];
+	executors = new ExecutorService[shardCount];
+	for (int s = 0; s < shardCount; s++){
+	    shards[s] = new AccountBalance();
+	    final int shard = s;
+	    executors[s] = Executors.newSingleThreadExecutor(runnable -> {
+		    Thread thread = new Thread(runnable,"shard-" + shard);
+		    thread.setDaemon(true);
+		    return thread;
+		});
+	}
+    }
+
+    /**
+     * the shard owning {@code publicKey}
+     */
+
+    public int shardOf(PublicKey publicKey){
+	return Math.floorMod(KeyUtils.fingerprint(publicKey).hashCode(),shards.length);
+    }
+
+    /** the number of shards */
+
+    public int getShardCount(){
+	return shards.length;
+    }
+
+    /**
+     * set the balance of {@code publicKey}, after all transactions submitted before
+     */
+
+    public void addAccount(PublicKey publicKey,int balance){
+	int s = shardOf(publicKey);
+	synchronized (submitLock){
+	    executors[s].execute(() -> shards[s].addAccount(publicKey,balance));
+	}
+    }
+
+    /**
+     * the balance of {@code publicKey}; transactions submitted but not yet
+     *   completed may or may not be included
+     */
+
+    public int getBalance(PublicKey publicKey){
+	return shards[shardOf(publicKey)].getBalance(publicKey);
+    }
+
+    /* split tx into the parts for each shard */
+
+    private Map<Integer,Part> split(Transaction tx){
+	Map<Integer,Part> parts = new LinkedHashMap<Integer,Part>();
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    Part part = parts.computeIfAbsent(shardOf(txInput.getSender()),s -> new Part());
+	    part.inputs.add(txInput);
+	    part.debits.merge(txInput.getSender(),txInput.getAmount(),Integer::sum);
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    parts.computeIfAbsent(shardOf(txOutput.getRecipient()),s -> new Part()).outputs.add(txOutput);
+	}
+	if (!parts.isEmpty()){
+	    parts.values().iterator().next().fee = (long) tx.toTxInputs().toSum() - tx.toTxOutputs().toSum();
+	}
+	return parts;
+    }
+
+    /* check the debits of a part can be deducted from the shard */
+
+    private static boolean canDeduct(AccountBalance shard,Part part){
+	for (Map.Entry<PublicKey,Integer> debit : part.debits.entrySet()){
+	    if (shard.getBalance(debit.getKey()) < debit.getValue()){
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /* the part of a transaction processed on an overlay of the shard,
+       or null if it cannot be deducted */
+
+    private static AccountBalanceOverlay prepare(AccountBalance shard,Part part){
+	if (!canDeduct(shard,part)){
+	    return null;
+	}
+	AccountBalanceOverlay overlay = shard.overlay();
+	apply(overlay,part);
+	return overlay;
+    }
+
+    /* process the part of a transaction for one shard */
+
+    private static void apply(AccountBalance shard,Part part){
+	for (TxInput txInput : part.inputs){
+	    shard.subtractFromBalance(txInput.getSender(),txInput.getAmount());
+	}
+	for (TxOutput txOutput : part.outputs){
+	    shard.addToBalance(txOutput.getRecipient(),txOutput.getAmount());
+	}
+	/* as processTransaction does, which the parts bypass */
+	shard.addFees(part.fee);
+    }
+
+    /**
+     * check {@code tx} and process it if valid, as
+     *   {@code if (checkTransactionValid(tx)) processTransaction(tx)}
+     *   on a single AccountBalance. The result is completed with true
+     *   if the transaction has been processed.
+     */
+
+    public CompletableFuture<Boolean> submit(Transaction tx){
+	CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+	if (!tx.checkTransactionAmountsValid() || !tx.checkSignaturesValid()){
+	    result.complete(false);
+	    return result;
+	}
+	Map<Integer,Part> parts = split(tx);
+	if (parts.isEmpty()){
+	    /* no inputs and no outputs: valid, and nothing to do */
+	    result.complete(true);
+	    return result;
+	}
+	if (parts.size() == 1){
+	    Map.Entry<Integer,Part> only = parts.entrySet().iterator().next();
+	    AccountBalance shard = shards[only.getKey()];
+	    Part part = only.getValue();
+	    synchronized (submitLock){
+		executors[only.getKey()].execute(() -> {
+			try {
+			    AccountBalanceOverlay overlay = prepare(shard,part);
+			    if (overlay != null){
+				overlay.commit();
+			    }
+			    result.complete(overlay != null);
+			} catch (RuntimeException e) {
+			    result.completeExceptionally(e);
+			}
+		    });
+	    }
+	    return result;
+	}
+
+	AtomicInteger votesMissing = new AtomicInteger(parts.size());
+	AtomicBoolean allYes = new AtomicBoolean(true);
+	AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+	CountDownLatch decision = new CountDownLatch(1);
+	AtomicInteger partsMissing = new AtomicInteger(parts.size());
+	synchronized (submitLock){
+	    for (Map.Entry<Integer,Part> entry : parts.entrySet()){
+		AccountBalance shard = shards[entry.getKey()];
+		Part part = entry.getValue();
+		executors[entry.getKey()].execute(() -> {
+			AccountBalanceOverlay overlay = null;
+			try {
+			    overlay = prepare(shard,part);
+			} catch (RuntimeException e) {
+			    failure.compareAndSet(null,e);
+			}
+			if (overlay == null){
+			    allYes.set(false);
+			}
+			if (votesMissing.decrementAndGet() == 0){
+			    decision.countDown();
+			}
+			try {
+			    decision.await();
+			} catch (InterruptedException e) {
+			    /* only on close(), when the ledger is no longer used */
+			    Thread.currentThread().interrupt();
+			    result.completeExceptionally(new IllegalStateException("shard interrupted before the decision",e));
+			    return;
+			}
+			if (allYes.get()){
+			    try {
+				overlay.commit();
+			    } catch (RuntimeException e) {
+				/* the other shards may have committed their parts */
+				result.completeExceptionally(new IllegalStateException("transaction committed partially",e));
+				return;
+			    }
+			}
+			if (partsMissing.decrementAndGet() == 0){
+			    if (failure.get() != null){
+				result.completeExceptionally(failure.get());
+			    } else {
+				result.complete(allYes.get());
+			    }
+			}
+		    });
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * submit {@code tx} and wait until it has been processed or dropped
+     */
+
+    public boolean processTransaction(Transaction tx){
+	return submit(tx).join();
+    }
+
+    /**
+     * wait until all tasks submitted so far have run
+     */
+
+    public void flush(){
+	CompletableFuture<?>[] done = new CompletableFuture<?>[shards.length];
+	synchronized (submitLock){
+	    for (int s = 0; s < shards.length; s++){
+		done[s] = CompletableFuture.runAsync(() -> {},executors[s]);
+	    }
+	}
+	CompletableFuture.allOf(done).join();
+    }
+
+    /**
+     * the sum of the fees of all transactions processed, after flush()
+     */
+
+    public long getTotalFees(){
+	flush();
+	long fees = 0;
+	for (AccountBalance shard : shards){
+	    fees += shard.getTotalFees();
+	}
+	return fees;
+    }
+
+    /**
+     * the sum of all balances, after flush()
+     */
+
+    public long getTotalSupply(){
+	flush();
+	long supply = 0;
+	for (AccountBalance shard : shards){
+	    supply += shard.getTotalSupply();
+	}
+	return supply;
+    }
+
+    /**
+     * all entries of all shards in one AccountBalance, after flush();
+     *   the fees are not copied
+     */
+
+    public AccountBalance toAccountBalance(){
+	flush();
+	AccountBalance result = new AccountBalance();
+	for (AccountBalance shard : shards){
+	    for (PublicKey publicKey : shard.getPublicKeysOrdered()){
+		result.addAccount(publicKey,shard.getBalance(publicKey));
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * stop the threads of the shards
+     */
+
+    @Override
+    public void close(){
+	for (ExecutorService executor : executors){
+	    executor.shutdownNow();
+	}
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	String[] names = new String[]{ "A", "B", "C", "D", "E", "F", "G", "H"};
+	Wallet wallet = SampleWallet.generate(names);
+	Random random = new Random(7);
+	ArrayList<Transaction> transactions = new ArrayList<Transaction>();
+	for (int i = 0; i < 300; i++){
+	    PublicKey from1 = wallet.getPublicKey(names[random.nextInt(names.length)]);
+	    PublicKey from2 = wallet.getPublicKey(names[random.nextInt(names.length)]);
+	    PublicKey to = wallet.getPublicKey(names[random.nextInt(names.length)]);
+	    int amount1 = 1 + random.nextInt(20);
+	    int amount2 = 1 + random.nextInt(20);
+	    /* every third transaction pays a fee of 1 */
+	    TxOutputList txol = new TxOutputList(to,amount1 + amount2 - (i % 3 == 0 ? 1 : 0));
+	    transactions.add(new Transaction(new TxInputList(from1,amount1,from2,amount2,txol,wallet),txol));
+	}
+
+	AccountBalance sequential = new AccountBalance();
+	for (String name : names){
+	    sequential.addAccount(wallet.getPublicKey(name),40);
+	}
+	int processedSequentially = 0;
+	for (Transaction tx : transactions){
+	    if (sequential.checkTransactionValid(tx)){
+		sequential.processTransaction(tx);
+		processedSequentially++;
+	    }
+	}
+
+	try (ShardedAccountBalance sharded = new ShardedAccountBalance(4)){
+	    for (String name : names){
+		sharded.addAccount(wallet.getPublicKey(name),40);
+	    }
+	    List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+	    for (Transaction tx : transactions){
+		results.add(sharded.submit(tx));
+	    }
+	    int processedSharded = 0;
+	    for (CompletableFuture<Boolean> result : results){
+		processedSharded += result.join() ? 1 : 0;
+	    }
+	    System.out.println("Processed sequentially " + processedSequentially
+			       + ", sharded " + processedSharded + " (expected equal)");
+	    System.out.println("Same state as sequential processing (expected true) = "
+			       + sharded.toAccountBalance().getStateRoot().equals(sequential.getStateRoot()));
+	    System.out.println("Same total fees " + sharded.getTotalFees() + " and supply (expected true) = "
+			       + (sharded.getTotalFees() == sequential.getTotalFees()
+				  && sharded.getTotalSupply() == sequential.getTotalSupply()));
+
+	    /* a listener of one shard failing: the result completes exceptionally */
+	    PublicKey from = wallet.getPublicKey(names[0]);
+	    PublicKey to = null;
+	    for (String name : names){
+		if (sharded.shardOf(wallet.getPublicKey(name)) != sharded.shardOf(from)){
+		    to = wallet.getPublicKey(name);
+		}
+	    }
+	    AccountBalance target = sharded.shards[sharded.shardOf(to)];
+	    AccountBalanceListener failing = (publicKey,oldBalance,newBalance) -> {
+		throw new IllegalStateException("listener failed");
+	    };
+	    target.addListener(failing);
+	    TxOutputList txol = new TxOutputList(to,1);
+	    Transaction crossShard = new Transaction(new TxInputList(from,1,txol,wallet),txol);
+	    System.out.println("Failure in a shard completes the result exceptionally (expected true) = "
+			       + sharded.submit(crossShard).handle((ok,e) -> e != null).join());
+	    target.removeListener(failing);
+	    Transaction empty = new Transaction(new TxInputList(),new TxOutputList());
+	    System.out.println("Empty transaction processed (expected " + sequential.checkTransactionValid(empty)
+			       + ") = " + sharded.processTransaction(empty));
+	}
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	ShardedAccountBalance.test();
+    }
+}
@@ -32,6 +32,19 @@ public class SigData{
 	addByteArray(pubkey.getEncoded());
     }
 
+    /* adds a single byte, used for the version of a message */
+
+    public void addByte(byte b){
+	sigData.add(b);
+    }
+
+    /* adds the fingerprint of a public key, 32 bytes instead of the
+       full encoding of the key */
+
+    public void addFingerprint(PublicKey pubkey){
+	addByteArray(KeyUtils.fingerprint(pubkey).toBytes());
+    }
+
 
     /* returns the underlying byte array which will then be signed */
     
@@ -0,0 +1,54 @@
+import java.security.PublicKey;
+
+
+/** SignRequest
+ *   a request to sign the input given by a sender and an amount
+ *   for a TxOutputList, used for signing many inputs at once
+ *   with Wallet.signAll
+ */
+
+public class SignRequest {
+
+    /** The sender, whose private key has to be in the wallet */
+    private PublicKey sender;
+
+    /** The amount to be transferred */
+    private int amount;
+
+    /** The outputs of the transaction */
+    private TxOutputList txOutputList;
+
+    /**
+     * Create a SignRequest from sender, amount and txOutputList
+     */
+
+    public SignRequest(PublicKey sender,int amount,TxOutputList txOutputList){
+	this.sender = sender;
+	this.amount = amount;
+	this.txOutputList = txOutputList;
+    }
+
+    /**
+     * Get the sender
+     */
+
+    public PublicKey getSender(){
+	return sender;
+    }
+
+    /**
+     * Get the amount
+     */
+
+    public int getAmount(){
+	return amount;
+    }
+
+    /**
+     * Get the txOutputList
+     */
+
+    public TxOutputList getTxOutputList(){
+	return txOutputList;
+    }
+}
@@ -0,0 +1,303 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+
+
+/** SparseMerkleTree
+ *   an authenticated map from key fingerprints to balances.
+ *
+ *   The tree is a binary trie over the bits of the fingerprints. A subtree
+ *   containing a single entry is represented by the leaf of that entry, and
+ *   an empty subtree by the hash EMPTY, so the tree has depth about log2(n)
+ *   and its root depends only on the entries, not on the order they were added.
+ *
+ *   Nodes are never changed, an update creates new nodes on the path from
+ *   the root to the entry only. Added as AccountBalanceListener to an
+ *   AccountBalance, the root is therefore kept up to date at cost
+ *   O(log n) per change, and two ledgers have the same state if and only
+ *   if they have the same root.
+ */
+
+public class SparseMerkleTree implements AccountBalanceListener {
+
+    /** tag for hashing leaves */
+    private static final byte LEAF = 0;
+
+    /** tag for hashing inner nodes */
+    private static final byte NODE = 1;
+
+    /** the hash of an empty subtree */
+    static final Hash EMPTY = new Hash(new byte[Hash.SIZE]);
+
+    /* nodes of the tree; an empty subtree is represented by null */
+
+    private abstract static class Node {
+	final Hash hash;
+
+	Node(Hash hash){
+	    this.hash = hash;
+	}
+    }
+
+    private static final class Leaf extends Node {
+	final Hash key;
+	final int balance;
+
+	Leaf(Hash key,int balance){
+	    super(leafHash(key,balance));
+	    this.key = key;
+	    this.balance = balance;
+	}
+    }
+
+    private static final class Inner extends Node {
+	final Node left;
+	final Node right;
+
+	Inner(Node left,Node right){
+	    super(nodeHash(hashOf(left),hashOf(right)));
+	    this.left = left;
+	    this.right = right;
+	}
+    }
+
+    /** the root, null for the empty tree */
+    private volatile Node root;
+
+    /** the number of entries */
+    private int size;
+
+    /**
+     * Create an empty tree
+     */
+
+    public SparseMerkleTree(){
+	root = null;
+	size = 0;
+    }
+
+    /**
+     * Create a tree for the entries of an accountBalance
+     */
+
+    public SparseMerkleTree(AccountBalance accountBalance){
+	this();
+	for (PublicKey publicKey : accountBalance.getPublicKeys()){
+	    put(KeyUtils.fingerprint(publicKey),accountBalance.getBalance(publicKey));
+	}
+    }
+
+    /** the hash of the leaf for {@code key} with {@code balance} */
+
+    static Hash leafHash(Hash key,int balance){
+	ByteBuffer b = ByteBuffer.allocate(1 + Hash.SIZE + Integer.SIZE / 8);
+	b.put(LEAF);
+	b.put(key.toBytes());
+	b.putInt(balance);
+	return Hash.of(b.array());
+    }
+
+    /** the hash of an inner node */
+
+    static Hash nodeHash(Hash left,Hash right){
+	return Hash.of(NODE,left,right);
+    }
+
+    private static Hash hashOf(Node node){
+	return node == null ? EMPTY : node.hash;
+    }
+
+    /**
+     * the root hash, which commits to all entries
+     */
+
+    public Hash getRoot(){
+	return hashOf(root);
+    }
+
+    /**
+     * the number of entries
+     */
+
+    public int size(){
+	return size;
+    }
+
+    /* the tree below depth for two leaves with different keys */
+
+    private static Node join(Leaf a,Leaf b,int depth){
+	boolean bitA = a.key.getBit(depth);
+	if (bitA == b.key.getBit(depth)){
+	    Node below = join(a,b,depth + 1);
+	    return bitA ? new Inner(null,below) : new Inner(below,null);
+	}
+	return bitA ? new Inner(b,a) : new Inner(a,b);
+    }
+
+    private Node insert(Node node,Leaf leaf,int depth){
+	if (node == null){
+	    size++;
+	    return leaf;
+	}
+	if (node instanceof Leaf){
+	    Leaf old = (Leaf) node;
+	    if (old.key.equals(leaf.key)){
+		return leaf;
+	    }
+	    size++;
+	    return join(old,leaf,depth);
+	}
+	Inner inner = (Inner) node;
+	if (leaf.key.getBit(depth)){
+	    return new Inner(inner.left,insert(inner.right,leaf,depth + 1));
+	}
+	return new Inner(insert(inner.left,leaf,depth + 1),inner.right);
+    }
+
+    private Node delete(Node node,Hash key,int depth){
+	if (node == null){
+	    return null;
+	}
+	if (node instanceof Leaf){
+	    if (((Leaf) node).key.equals(key)){
+		size--;
+		return null;
+	    }
+	    return node;
+	}
+	Inner inner = (Inner) node;
+	Node left = inner.left;
+	Node right = inner.right;
+	if (key.getBit(depth)){
+	    right = delete(right,key,depth + 1);
+	} else {
+	    left = delete(left,key,depth + 1);
+	}
+	if (left == inner.left && right == inner.right){
+	    return inner;
+	}
+	/* a subtree with a single entry is represented by its leaf */
+	if (left == null && right instanceof Leaf){
+	    return right;
+	}
+	if (right == null && left instanceof Leaf){
+	    return left;
+	}
+	return new Inner(left,right);
+    }
+
+    /**
+     * set the balance of {@code key}
+     */
+
+    public synchronized void put(Hash key,int balance){
+	root = insert(root,new Leaf(key,balance),0);
+    }
+
+    /**
+     * remove the entry for {@code key}
+     */
+
+    public synchronized void remove(Hash key){
+	root = delete(root,key,0);
+    }
+
+    /**
+     * keeps the tree up to date with an AccountBalance
+     */
+
+    @Override
+    public void balanceChanged(PublicKey publicKey,Integer oldBalance,Integer newBalance){
+	if (newBalance == null){
+	    remove(KeyUtils.fingerprint(publicKey));
+	} else {
+	    put(KeyUtils.fingerprint(publicKey),newBalance);
+	}
+    }
+
+    /**
+     * the proof for the balance of {@code key}, or that it has no entry
+     */
+
+    public StateProof getProof(Hash key){
+	ArrayList<Hash> siblings = new ArrayList<Hash>();
+	Node node = root;
+	int depth = 0;
+	while (node instanceof Inner){
+	    Inner inner = (Inner) node;
+	    if (key.getBit(depth)){
+		siblings.add(hashOf(inner.left));
+		node = inner.right;
+	    } else {
+		siblings.add(hashOf(inner.right));
+		node = inner.left;
+	    }
+	    depth++;
+	}
+	Hash[] path = siblings.toArray(new Hash[0]);
+	if (node == null){
+	    return new StateProof(key,path,null,0);
+	}
+	Leaf leaf = (Leaf) node;
+	return new StateProof(key,path,leaf.key,leaf.balance);
+    }
+
+    /**
+     * the proof for the balance of {@code publicKey}
+     */
+
+    public StateProof getProof(PublicKey publicKey){
+	return getProof(KeyUtils.fingerprint(publicKey));
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test(){
+	SparseMerkleTree tree1 = new SparseMerkleTree();
+	SparseMerkleTree tree2 = new SparseMerkleTree();
+	int n = 10000;
+	for (int i = 0; i < n; i++){
+	    tree1.put(Hash.of(KeyUtils.integer2ByteArray(i)),i);
+	}
+	for (int i = n - 1; i >= 0; i--){
+	    tree2.put(Hash.of(KeyUtils.integer2ByteArray(i)),i);
+	}
+	System.out.println("Root of " + n + " entries = " + tree1.getRoot().toShortString());
+	System.out.println("Same root for reverse order (expected true) = "
+			   + tree1.getRoot().equals(tree2.getRoot()));
+	Hash oldRoot = tree1.getRoot();
+	tree1.put(Hash.of(KeyUtils.integer2ByteArray(7)),8);
+	System.out.println("Root changed by update (expected true) = " + !tree1.getRoot().equals(oldRoot));
+	tree1.put(Hash.of(KeyUtils.integer2ByteArray(7)),7);
+	System.out.println("Root back after undoing update (expected true) = " + tree1.getRoot().equals(oldRoot));
+
+	StateProof proof = tree1.getProof(Hash.of(KeyUtils.integer2ByteArray(42)));
+	System.out.println("Proof for 42: member " + proof.isMember() + ", balance " + proof.getBalance()
+			   + ", " + proof.length() + " hashes, valid (expected true) = "
+			   + proof.verify(tree1.getRoot()));
+	StateProof absent = tree1.getProof(Hash.of(KeyUtils.integer2ByteArray(n)));
+	System.out.println("Proof for missing key: member (expected false) = " + absent.isMember()
+			   + ", valid (expected true) = " + absent.verify(tree1.getRoot()));
+	StateProof forged = new StateProof(Hash.of(KeyUtils.integer2ByteArray(42)),new Hash[0],
+					   Hash.of(KeyUtils.integer2ByteArray(42)),1000);
+	System.out.println("Forged proof valid (expected false) = " + forged.verify(tree1.getRoot()));
+
+	for (int i = 0; i < n; i++){
+	    tree1.remove(Hash.of(KeyUtils.integer2ByteArray(i)));
+	}
+	System.out.println("After removing all entries size (expected 0) = " + tree1.size()
+			   + ", root is empty (expected true) = " + tree1.getRoot().equals(EMPTY));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args){
+	SparseMerkleTree.test();
+    }
+}
@@ -0,0 +1,234 @@
+import java.security.PublicKey;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/** SpendableBalanceIndex
+ *   the keys of a wallet with a positive balance in an AccountBalance,
+ *   ordered by their balance.
+ *
+ *   The index is added as a listener to the AccountBalance and so kept in
+ *   sync with it. Choosing the keys for paying an amount takes
+ *   O(k log n) for k keys chosen out of n, instead of looking up the
+ *   balance of every key of the wallet.
+ */
+
+public class SpendableBalanceIndex implements AccountBalanceListener {
+
+    /* a key of the wallet with its balance */
+
+    private static final class KeyBalance {
+	final int balance;
+	final String keyName;
+	final PublicKey publicKey;
+
+	KeyBalance(int balance,String keyName,PublicKey publicKey){
+	    this.balance = balance;
+	    this.keyName = keyName;
+	    this.publicKey = publicKey;
+	}
+    }
+
+    /** ordered by balance, and by keyName for equal balances */
+    private static final Comparator<KeyBalance> ORDER =
+	Comparator.<KeyBalance>comparingInt(kb -> kb.balance).thenComparing(kb -> kb.keyName);
+
+    /** the wallet whose keys are indexed */
+    private Wallet wallet;
+
+    /** keys with positive balance ordered by balance */
+    private TreeSet<KeyBalance> byBalance;
+
+    /** the entry in byBalance for each key */
+    private HashMap<PublicKey,KeyBalance> entries;
+
+    /** the sum of all balances in the index */
+    private long total;
+
+    /**
+     * Create the index for the keys of {@code wallet} in {@code accountBalance},
+     *   and register it as listener, so that it follows later changes.
+     */
+
+    public SpendableBalanceIndex(Wallet wallet,AccountBalance accountBalance){
+	this.wallet = wallet;
+	this.byBalance = new TreeSet<KeyBalance>(ORDER);
+	this.entries = new HashMap<PublicKey,KeyBalance>();
+	this.total = 0;
+	for (String keyName : wallet.getKeyNames()){
+	    PublicKey publicKey = wallet.getPublicKey(keyName);
+	    update(publicKey,keyName,accountBalance.getBalance(publicKey));
+	}
+	accountBalance.addListener(this);
+    }
+
+    /* set the balance of a key of the wallet */
+
+    private void update(PublicKey publicKey,String keyName,int balance){
+	KeyBalance old = entries.remove(publicKey);
+	if (old != null){
+	    byBalance.remove(old);
+	    total -= old.balance;
+	}
+	if (balance > 0){
+	    KeyBalance entry = new KeyBalance(balance,keyName,publicKey);
+	    entries.put(publicKey,entry);
+	    byBalance.add(entry);
+	    total += balance;
+	}
+    }
+
+    @Override
+    public synchronized void balanceChanged(PublicKey publicKey,Integer oldBalance,Integer newBalance){
+	String keyName = wallet.getKeyName(publicKey);
+	if (keyName != null){
+	    update(publicKey,keyName,newBalance == null ? 0 : newBalance);
+	}
+    }
+
+    /**
+     * the sum of the balances of all keys of the wallet
+     */
+
+    public synchronized long getTotal(){
+	return total;
+    }
+
+    /**
+     * the number of keys with positive balance
+     */
+
+    public synchronized int size(){
+	return byBalance.size();
+    }
+
+    /* take keys from it, ordered by decreasing balance, until amount is covered */
+
+    private static LinkedHashMap<PublicKey,Integer> takeUntil(int amount,Iterator<KeyBalance> it){
+	LinkedHashMap<PublicKey,Integer> result = new LinkedHashMap<PublicKey,Integer>();
+	int remaining = amount;
+	while (remaining > 0 && it.hasNext()){
+	    KeyBalance entry = it.next();
+	    int used = Math.min(remaining,entry.balance);
+	    result.put(entry.publicKey,used);
+	    remaining -= used;
+	}
+	return remaining == 0 ? result : null;
+    }
+
+    /**
+     * choose the keys and the amounts taken from each of them for paying
+     *   {@code amount}, or return null if the wallet has not enough.
+     */
+
+    public synchronized LinkedHashMap<PublicKey,Integer> select(int amount,CoinSelectionStrategy strategy){
+	if (amount <= 0 || total < amount){
+	    return null;
+	}
+	KeyBalance bound = new KeyBalance(amount,"",null);
+	KeyBalance smallestSufficient = byBalance.ceiling(bound);
+	if (strategy == CoinSelectionStrategy.EXACT_MATCH){
+	    LinkedHashMap<PublicKey,Integer> result;
+	    if (smallestSufficient != null && smallestSufficient.balance == amount){
+		result = new LinkedHashMap<PublicKey,Integer>();
+		result.put(smallestSufficient.publicKey,amount);
+		return result;
+	    }
+	    result = takeUntil(amount,byBalance.headSet(bound,false).descendingIterator());
+	    if (result != null){
+		return result;
+	    }
+	}
+	if (strategy != CoinSelectionStrategy.LARGEST_FIRST && smallestSufficient != null){
+	    LinkedHashMap<PublicKey,Integer> result = new LinkedHashMap<PublicKey,Integer>();
+	    result.put(smallestSufficient.publicKey,amount);
+	    return result;
+	}
+	return takeUntil(amount,byBalance.descendingIterator());
+    }
+
+    /**
+     * choose the keys for paying {@code amount} and sign the inputs for
+     *   {@code txOutputList}, or return null if the wallet has not enough.
+     */
+
+    public TxInputList buildTxInputList(int amount,CoinSelectionStrategy strategy,TxOutputList txOutputList)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	LinkedHashMap<PublicKey,Integer> selection = select(amount,strategy);
+	if (selection == null){
+	    return null;
+	}
+	ArrayList<SignRequest> requests = new ArrayList<SignRequest>();
+	for (Map.Entry<PublicKey,Integer> entry : selection.entrySet()){
+	    requests.add(new SignRequest(entry.getKey(),entry.getValue(),txOutputList));
+	}
+	return new TxInputList(wallet.signAll(requests));
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "K1", "K2", "K3", "K4", "K5"});
+	Wallet shop = SampleWallet.generate(new String[]{ "Shop"});
+	PublicKeyMap pubKeyMap = wallet.toPublicKeyMap();
+	pubKeyMap.addPublicKeyMap(shop.toPublicKeyMap());
+	AccountBalance accountBalance = new AccountBalance();
+	int[] balances = new int[]{ 5, 20, 7, 40, 0};
+	for (int i = 0; i < balances.length; i++){
+	    accountBalance.addAccount(wallet.getPublicKey("K" + (i + 1)),balances[i]);
+	}
+	SpendableBalanceIndex index = new SpendableBalanceIndex(wallet,accountBalance);
+	System.out.println("Total (expected 72) = " + index.getTotal()
+			   + ", keys with balance (expected 4) = " + index.size());
+
+	printSelection("Largest first for 50 (expected K4 40, K2 10)",
+		       index.select(50,CoinSelectionStrategy.LARGEST_FIRST),pubKeyMap);
+	printSelection("Fewest inputs for 6 (expected K3 6)",
+		       index.select(6,CoinSelectionStrategy.FEWEST_INPUTS),pubKeyMap);
+	printSelection("Exact match for 20 (expected K2 20)",
+		       index.select(20,CoinSelectionStrategy.EXACT_MATCH),pubKeyMap);
+	printSelection("Exact match for 25 (expected K2 20, K3 5)",
+		       index.select(25,CoinSelectionStrategy.EXACT_MATCH),pubKeyMap);
+	System.out.println("Selection for 73 (expected null) = "
+			   + index.select(73,CoinSelectionStrategy.LARGEST_FIRST));
+
+	TxOutputList txol = new TxOutputList(shop.getPublicKey("Shop"),45);
+	TxInputList txil = index.buildTxInputList(45,CoinSelectionStrategy.FEWEST_INPUTS,txol);
+	Transaction tx = new Transaction(txil,txol);
+	System.out.println("Transaction paying 45 to Shop:");
+	tx.print(pubKeyMap);
+	System.out.println("Is valid (expected true) = " + accountBalance.checkTransactionValid(tx));
+	accountBalance.processTransaction(tx);
+	System.out.println("After processing total (expected 27) = " + index.getTotal()
+			   + ", keys with balance (expected 3) = " + index.size());
+    }
+
+    private static void printSelection(String header,Map<PublicKey,Integer> selection,PublicKeyMap pubKeyMap){
+	System.out.println(header);
+	for (Map.Entry<PublicKey,Integer> entry : selection.entrySet()){
+	    System.out.println("  " + pubKeyMap.getUser(entry.getKey()) + " " + entry.getValue());
+	}
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	SpendableBalanceIndex.test();
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+
+/** StateProof
+ *   a proof for the balance of one key in a SparseMerkleTree with a
+ *   given root.
+ *
+ *   It consists of the sibling hashes on the path from the root to the
+ *   position of the key, and what was found at that position: either the
+ *   leaf of the key itself (proving its balance), no leaf, or the leaf of
+ *   another key sharing the path (both proving that the key has no entry).
+ */
+
+public class StateProof {
+
+    /** the key the proof is about */
+    private Hash key;
+
+    /** the siblings from the root downwards */
+    private Hash[] siblings;
+
+    /** the key of the leaf found, or null if no leaf was found */
+    private Hash leafKey;
+
+    /** the balance of the leaf found */
+    private int leafBalance;
+
+    /**
+     * Create a proof; {@code leafKey} is null if no leaf was found
+     */
+
+    public StateProof(Hash key,Hash[] siblings,Hash leafKey,int leafBalance){
+	this.key = key;
+	this.siblings = Arrays.copyOf(siblings,siblings.length);
+	this.leafKey = leafKey;
+	this.leafBalance = leafBalance;
+    }
+
+    /**
+     * @return true if the proof shows that the key has an entry
+     */
+
+    public boolean isMember(){
+	return key.equals(leafKey);
+    }
+
+    /**
+     * the balance shown, 0 if the key has no entry
+     */
+
+    public int getBalance(){
+	return isMember() ? leafBalance : 0;
+    }
+
+    /**
+     * the number of sibling hashes in the proof
+     */
+
+    public int length(){
+	return siblings.length;
+    }
+
+    /**
+     * @return true if the proof is correct for a tree with root {@code root}
+     */
+
+    public boolean verify(Hash root){
+	Hash current;
+	if (leafKey == null){
+	    current = SparseMerkleTree.EMPTY;
+	} else {
+	    /* a leaf of another key has to be on the path of the key */
+	    for (int i = 0; i < siblings.length; i++){
+		if (leafKey.getBit(i) != key.getBit(i)){
+		    return false;
+		}
+	    }
+	    current = SparseMerkleTree.leafHash(leafKey,leafBalance);
+	}
+	for (int depth = siblings.length - 1; depth >= 0; depth--){
+	    if (key.getBit(depth)){
+		current = SparseMerkleTree.nodeHash(siblings[depth],current);
+	    } else {
+		current = SparseMerkleTree.nodeHash(current,siblings[depth]);
+	    }
+	}
+	return current.equals(root);
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.concurrent.CompletableFuture;
+
+
+/** SubmitResult
+ *   the answer of an IngestionQueue to the submission of a transaction:
+ *   either it has been queued, and the outcome can be awaited, or it has
+ *   been rejected, because the queue is full or the transaction is invalid.
+ */
+
+public class SubmitResult {
+
+    /** what happened to a submitted transaction */
+
+    public enum Status {
+	/** the transaction has been queued for processing */
+	QUEUED,
+	/** the queue is full, the transaction should be submitted again later */
+	RETRY_LATER,
+	/** the amounts or signatures of the transaction are not valid */
+	INVALID
+    }
+
+    private final Status status;
+
+    private final long retryAfterMillis;
+
+    private final CompletableFuture<Boolean> outcome;
+
+    private SubmitResult(Status status,long retryAfterMillis,CompletableFuture<Boolean> outcome){
+	this.status = status;
+	this.retryAfterMillis = retryAfterMillis;
+	this.outcome = outcome;
+    }
+
+    /** result of a transaction which has been queued */
+
+    static SubmitResult queued(CompletableFuture<Boolean> outcome){
+	return new SubmitResult(Status.QUEUED,0,outcome);
+    }
+
+    /** result of a transaction rejected since the queue is full */
+
+    static SubmitResult retryLater(long retryAfterMillis){
+	return new SubmitResult(Status.RETRY_LATER,retryAfterMillis,null);
+    }
+
+    /** result of an invalid transaction */
+
+    static SubmitResult invalid(){
+	return new SubmitResult(Status.INVALID,0,null);
+    }
+
+    /** Get the status */
+
+    public Status getStatus(){
+	return status;
+    }
+
+    /** true if the transaction has been queued */
+
+    public boolean isQueued(){
+	return status == Status.QUEUED;
+    }
+
+    /** for RETRY_LATER, the time after which submitting again is likely to succeed */
+
+    public long getRetryAfterMillis(){
+	return retryAfterMillis;
+    }
+
+    /**
+     * for QUEUED, completed with true when the transaction has been processed
+     *   and with false if it could not be deducted; null otherwise
+     */
+
+    public CompletableFuture<Boolean> getOutcome(){
+	return outcome;
+    }
+
+    @Override
+    public String toString(){
+	return status == Status.RETRY_LATER ? status + " after " + retryAfterMillis + "ms" : status.toString();
+    }
+}
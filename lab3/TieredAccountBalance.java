@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+
+/** TieredAccountBalance
+ *   an AccountBalance keeping only the recently used entries on the heap.
+ *
+ *   The hot tier holds at most a fixed number of entries in a LinkedHashMap
+ *   in access order, from which the least recently used entry is evicted.
+ *   All entries are in the cold tier, a MappedBalanceStore in a file,
+ *   which grows as entries are added. A
+ *   new entry is written to both tiers; a changed entry is only written back
+ *   to the cold tier when it is evicted or on flush. A BloomFilter over the
+ *   fingerprints in the cold tier answers most lookups of keys without an
+ *   entry without touching the file.
+ *
+ *   Reading a balance may load and evict entries, so all methods using the
+ *   tiers synchronize on the TieredAccountBalance, and reads from several
+ *   threads, as in ParallelBlockExecutor, are safe.
+ *
+ *   So the heap taken grows with the number of active accounts, not with
+ *   the number of all accounts. Listing all keys, as getPublicKeysOrdered,
+ *   getPublicKeys and getAccountBalanceBase do, reads them from the file
+ *   and takes O(n) time and memory; entries are never removed, so compaction
+ *   does not apply.
+ */
+
+public class TieredAccountBalance extends AccountBalance implements AutoCloseable {
+
+    /* an entry of the hot tier */
+
+    private static final class Entry {
+	final Hash fingerprint;
+	int balance;
+	boolean dirty;
+
+	Entry(Hash fingerprint,int balance){
+	    this.fingerprint = fingerprint;
+	    this.balance = balance;
+	}
+    }
+
+    /** the cold tier */
+    private final MappedBalanceStore cold;
+
+    /** the fingerprints of the keys in the cold tier, sized for its capacity */
+    private BloomFilter bloomFilter;
+    private int bloomCapacity;
+
+    /** the hot tier, least recently used first */
+    private final LinkedHashMap<PublicKey,Entry> hot;
+
+    /** statistics */
+    private long coldReads;
+    private long bloomRejections;
+    private long writeBacks;
+
+    /**
+     * Open a TieredAccountBalance on the store in {@code path}, see
+     *   MappedBalanceStore, keeping at most {@code hotCapacity} entries
+     *   on the heap, at least one. A new store has room for {@code coldCapacity} entries.
+     */
+
+    public TieredAccountBalance(Path path,int hotCapacity,int coldCapacity) throws IOException {
+	if (hotCapacity < 1){
+	    throw new IllegalArgumentException("the hot tier must hold at least one entry, not " + hotCapacity);
+	}
+	cold = new MappedBalanceStore(path,coldCapacity);
+	long[] supply = new long[1];
+	cold.forEach((fingerprint,balance) -> supply[0] += balance);
+	setTotalSupply(supply[0]);
+	buildBloomFilter();
+	hot = new LinkedHashMap<PublicKey,Entry>(16,0.75f,true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<PublicKey,Entry> eldest){
+		    if (size() <= hotCapacity){
+			return false;
+		    }
+		    writeBack(eldest.getValue());
+		    return true;
+		}
+	    };
+    }
+
+    /* a BloomFilter of the fingerprints in the cold tier, sized for its capacity */
+
+    private void buildBloomFilter(){
+	bloomCapacity = cold.getCapacity();
+	BloomFilter filter = new BloomFilter(bloomCapacity / 4 * 3,0.01);
+	cold.forEach((fingerprint,balance) -> filter.add(fingerprint));
+	bloomFilter = filter;
+    }
+
+    /* write entry to the cold tier if it was changed */
+
+    private void writeBack(Entry entry){
+	if (entry.dirty){
+	    cold.update(entry.fingerprint,entry.balance);
+	    entry.dirty = false;
+	    writeBacks++;
+	}
+    }
+
+    /* the entry of publicKey from the cold tier, moved to the hot tier, or null */
+
+    private Entry load(PublicKey publicKey,Hash fingerprint){
+	if (!bloomFilter.mightContain(fingerprint)){
+	    bloomRejections++;
+	    return null;
+	}
+	coldReads++;
+	Integer balance = cold.get(fingerprint);
+	if (balance == null){
+	    return null;
+	}
+	Entry entry = new Entry(fingerprint,balance);
+	hot.put(publicKey,entry);
+	return entry;
+    }
+
+    @Override
+    public synchronized boolean hasPublicKey(PublicKey publicKey){
+	if (hot.containsKey(publicKey)){
+	    return true;
+	}
+	Hash fingerprint = KeyUtils.fingerprint(publicKey);
+	if (!bloomFilter.mightContain(fingerprint)){
+	    bloomRejections++;
+	    return false;
+	}
+	coldReads++;
+	return cold.contains(fingerprint);
+    }
+
+    @Override
+    protected synchronized Integer getEntry(PublicKey publicKey){
+	Entry entry = hot.get(publicKey);
+	if (entry == null){
+	    entry = load(publicKey,KeyUtils.fingerprint(publicKey));
+	}
+	return entry == null ? null : entry.balance;
+    }
+
+    @Override
+    protected synchronized Integer putEntry(PublicKey publicKey,int amount){
+	Entry entry = hot.get(publicKey);
+	if (entry == null){
+	    Hash fingerprint = KeyUtils.fingerprint(publicKey);
+	    entry = load(publicKey,fingerprint);
+	    if (entry == null){
+		cold.insert(publicKey,amount);
+		if (cold.getCapacity() != bloomCapacity){
+		    /* the cold tier has grown */
+		    buildBloomFilter();
+		} else {
+		    bloomFilter.add(fingerprint);
+		}
+		hot.put(publicKey,new Entry(fingerprint,amount));
+		return null;
+	    }
+	}
+	Integer oldAmount = entry.balance;
+	entry.balance = amount;
+	entry.dirty = true;
+	return oldAmount;
+    }
+
+    /**
+     * the keys in the order they were added, read from the cold tier;
+     *   this takes O(n)
+     */
+
+    @Override
+    public synchronized ArrayList<PublicKey> getPublicKeysOrdered(){
+	ArrayList<PublicKey> result = new ArrayList<PublicKey>(cold.size());
+	cold.forEachKey(result::add);
+	return result;
+    }
+
+    /**
+     * the keys with an entry; this takes O(n)
+     */
+
+    @Override
+    public Set<PublicKey> getPublicKeys(){
+	return new HashSet<PublicKey>(getPublicKeysOrdered());
+    }
+
+    /**
+     * a copy of all entries, read from the cold tier after flushing;
+     *   this takes O(n)
+     */
+
+    @Override
+    public synchronized Hashtable<PublicKey,Integer> getAccountBalanceBase(){
+	foldHotCredits();
+	writeBackAll();
+	Hashtable<PublicKey,Integer> result = new Hashtable<PublicKey,Integer>();
+	cold.forEachKey(publicKey -> result.put(publicKey,cold.get(KeyUtils.fingerprint(publicKey))));
+	return result;
+    }
+
+    /* write all changed entries of the hot tier to the cold tier */
+
+    private void writeBackAll(){
+	for (Entry entry : hot.values()){
+	    writeBack(entry);
+	}
+    }
+
+    /**
+     * write all changed entries to the cold tier and the cold tier to its file
+     */
+
+    public synchronized void flush() throws IOException {
+	foldHotCredits();
+	writeBackAll();
+	cold.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+	flush();
+	cold.close();
+    }
+
+    /** the number of entries in the hot tier */
+
+    public synchronized int getHotSize(){
+	return hot.size();
+    }
+
+    /** the number of lookups in the cold tier */
+
+    public synchronized long getColdReads(){
+	return coldReads;
+    }
+
+    /** the number of lookups answered by the BloomFilter alone */
+
+    public synchronized long getBloomRejections(){
+	return bloomRejections;
+    }
+
+    /** the number of changed entries written back to the cold tier */
+
+    public synchronized long getWriteBacks(){
+	return writeBacks;
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	/* test and main hide those of AccountBalance, so they cannot throw IOException */
+	try {
+	    testStore();
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    private static void testStore()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, IOException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol", "David"});
+	PublicKeyMap pubKeyMap = wallet.toPublicKeyMap();
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	PublicKey pubKeyD = wallet.getPublicKey("David");
+	Path path = Files.createTempFile("ledger",".store");
+	Files.delete(path);
+
+	try (TieredAccountBalance accountBalance = new TieredAccountBalance(path,2,1000)){
+	    accountBalance.addAccount(pubKeyA,50);
+	    accountBalance.addAccount(pubKeyB,10);
+	    accountBalance.addAccount(pubKeyC,0);
+	    TxOutputList txol = new TxOutputList(pubKeyC,30);
+	    Transaction tx = new Transaction(new TxInputList(pubKeyA,30,txol,wallet),txol);
+	    System.out.println("Transaction valid (expected true) = " + accountBalance.checkTransactionValid(tx));
+	    accountBalance.processTransaction(tx);
+	    System.out.println("Alice " + accountBalance.getBalance(pubKeyA) + ", Bob "
+			       + accountBalance.getBalance(pubKeyB) + ", Carol "
+			       + accountBalance.getBalance(pubKeyC) + " (expected 20, 10, 30)");
+	    System.out.println("Entries on the heap (expected 2) = " + accountBalance.getHotSize()
+			       + ", written back " + accountBalance.getWriteBacks());
+	    System.out.println("David has entry (expected false) = " + accountBalance.hasPublicKey(pubKeyD)
+			       + ", answered by the BloomFilter " + accountBalance.getBloomRejections() + " times");
+	}
+
+	try (TieredAccountBalance accountBalance = new TieredAccountBalance(path,1,0)){
+	    /* readers in parallel load and evict entries of a hot tier of one entry */
+	    PublicKey[] keys = new PublicKey[]{ pubKeyA, pubKeyB, pubKeyC};
+	    int[] expected = new int[]{ 20, 10, 30};
+	    boolean consistent = IntStream.range(0,3000).parallel()
+		.allMatch(i -> accountBalance.getBalance(keys[i % 3]) == expected[i % 3]);
+	    System.out.println("Balances read in parallel (expected true) = " + consistent);
+	    System.out.println("After reopening (expected Alice 20, Bob 10, Carol 30):");
+	    accountBalance.print(pubKeyMap);
+	    System.out.println("Total supply (expected 60) = " + accountBalance.getTotalSupply());
+	    AccountBalance copy = new AccountBalance(accountBalance.getAccountBalanceBase());
+	    System.out.println("Same state root as a copy on the heap (expected true) = "
+			       + copy.getStateRoot().equals(accountBalance.getStateRoot()));
+	}
+	/* the cold tier grows from 16 slots, inserting in the middle of transactions */
+	Path grownPath = Files.createTempFile("ledger",".store");
+	Files.delete(grownPath);
+	try (TieredAccountBalance accountBalance = new TieredAccountBalance(grownPath,2,0)){
+	    accountBalance.addAccount(pubKeyC,30);
+	    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+	    generator.initialize(512);
+	    for (int i = 0; i < 30; i++){
+		PublicKey recipient = generator.generateKeyPair().getPublic();
+		TxOutputList txol = new TxOutputList(recipient,0);
+		accountBalance.processTransaction(new Transaction(new TxInputList(pubKeyC,0,txol,wallet),txol));
+	    }
+	    System.out.println("Accounts (expected 31) = " + accountBalance.getPublicKeysOrdered().size()
+			       + ", David has entry (expected false) = " + accountBalance.hasPublicKey(pubKeyD)
+			       + ", Carol (expected 30) = " + accountBalance.getBalance(pubKeyC));
+	}
+	Files.delete(grownPath);
+	Files.delete(Paths.get(grownPath + ".keys"));
+	try {
+	    new TieredAccountBalance(path,0,0);
+	    System.out.println("Hot tier of 0 entries rejected (expected true) = false");
+	} catch (IllegalArgumentException e) {
+	    System.out.println("Hot tier of 0 entries rejected (expected true) = true");
+	}
+	Files.delete(path);
+	Files.delete(Paths.get(path + ".keys"));
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	TieredAccountBalance.test();
+    }
+}
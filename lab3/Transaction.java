@@ -2,6 +2,7 @@ import java.security.PublicKey;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Hashtable;
 
@@ -65,6 +66,59 @@ public class Transaction {
     	return txInputs.checkSignature(txOutputs);
 	}
 
+
+    /* adds a byte array preceded by its length to the digest,
+       so that the encoding of the transaction is unambiguous */
+
+    private static void updateWithLength(MessageDigest md,byte[] bytes){
+	md.update(KeyUtils.integer2ByteArray(bytes.length));
+	md.update(bytes);
+    }
+
+    /**
+     * The id of the transaction: the SHA-256 hash of all inputs
+     *   (sender, amount, message version and signature) and all outputs
+     *   (recipient and amount).
+     *
+     *   Computing it requires no signature checks, so it can be used to
+     *   reject a transaction which was already processed cheaply.
+     */
+
+    public Hash getTxId(){
+	MessageDigest md = Hash.newDigest();
+	md.update(KeyUtils.integer2ByteArray(txInputs.size()));
+	for (TxInput txInput : txInputs.toList()){
+	    updateWithLength(md,txInput.getSender().getEncoded());
+	    md.update(KeyUtils.integer2ByteArray(txInput.getAmount()));
+	    md.update(txInput.getMessageVersion());
+	    updateWithLength(md,txInput.getSignature());
+	}
+	md.update(KeyUtils.integer2ByteArray(txOutputs.toList().size()));
+	for (TxOutput txOutput : txOutputs.toList()){
+	    updateWithLength(md,txOutput.getRecipient().getEncoded());
+	    md.update(KeyUtils.integer2ByteArray(txOutput.getAmount()));
+	}
+	return new Hash(md.digest());
+    }
+
+    /**
+     * Two transactions are equal if they have equal inputs and outputs
+     */
+
+    @Override
+    public boolean equals(Object other){
+	if (!(other instanceof Transaction)){
+	    return false;
+	}
+	Transaction o = (Transaction) other;
+	return txInputs.equals(o.txInputs) && txOutputs.equals(o.txOutputs);
+    }
+
+    @Override
+    public int hashCode(){
+	return 31 * txInputs.hashCode() + txOutputs.hashCode();
+    }
+
 	   
 
     /**
@@ -130,6 +184,23 @@ public class Transaction {
 			     new TxOutputList(pubKeyA,10,pubKeyC,8));
         tx.testCase("Transaction Alice 10  Bob 5 to Alice 10 Carol 8",pubKeyMap);
 
+	Transaction same = new Transaction(new TxInputList(pubKeyA,10,signedMessage1,pubKeyB,5,signedMessage1),
+					   new TxOutputList(pubKeyA,10,pubKeyC,8));
+	System.out.println("Transaction id = " + tx.getTxId());
+	System.out.println("Same transaction built again is equal (expected true) = " + tx.equals(same));
+	System.out.println("Same transaction built again has same id (expected true) = "
+			   + tx.getTxId().equals(same.getTxId()));
+	Transaction other = new Transaction(new TxInputList(pubKeyA,10,signedMessage1,pubKeyB,5,signedMessage1),
+					    new TxOutputList(pubKeyA,10,pubKeyC,7));
+	System.out.println("Transaction with other output has same id (expected false) = "
+			   + tx.getTxId().equals(other.getTxId()));
+	TxInputList otherVersion = new TxInputList();
+	otherVersion.addEntry(new TxInput(pubKeyA,10,signedMessage1,TxInput.MESSAGE_V2));
+	otherVersion.addEntry(new TxInput(pubKeyB,5,signedMessage1));
+	Transaction versioned = new Transaction(otherVersion,new TxOutputList(pubKeyA,10,pubKeyC,8));
+	System.out.println("Transaction with other message version is equal "
+			   + tx.equals(versioned) + ", has same id " + tx.getTxId().equals(versioned.getTxId())
+			   + " (expected false false)");
     }
 
 
@@ -0,0 +1,286 @@
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+
+/** TransactionArena
+ *   stores pending transactions outside the heap.
+ *
+ *   Transactions are stored in the layout of TransactionView in slabs of
+ *   direct memory. A stored transaction is referred to by a handle, a long
+ *   containing the number of the slab (upper 32 bits) and the offset in
+ *   the slab (lower 32 bits), so the pending transactions are not objects
+ *   seen by the garbage collector. A view of a handle is a TransactionView,
+ *   which can be checked and processed by AccountBalance directly.
+ *
+ *   Space is allocated in blocks whose size is a power of two, with one
+ *   free list per block size. A transaction has to be released explicitly
+ *   when it has been processed or dropped, its block is then reused by
+ *   later transactions of the same size class. The size of a block is not
+ *   stored, it is computed from the length of the transaction in it.
+ *
+ *   Each slab has a bit per 64 bytes marking the blocks in use, so that
+ *   viewing or releasing a handle which is not in use, e.g. releasing it
+ *   twice, throws an IllegalArgumentException instead of handing out the
+ *   same block twice.
+ */
+
+public class TransactionArena {
+
+    /** default size of a slab */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    /** log2 of the smallest block */
+    private static final int MIN_SHIFT = 6;
+
+    /** the size of a slab, a power of two */
+    private final int slabSize;
+
+    /** the slabs allocated so far */
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /** for each slab the blocks in use, by offset >> MIN_SHIFT */
+    private final ArrayList<BitSet> inUse = new ArrayList<BitSet>();
+
+    /** offset of the unused part of the last slab */
+    private int top;
+
+    /** for each size class a stack of handles of free blocks */
+    private final long[][] free;
+
+    /** number of handles in each stack of free */
+    private final int[] freeCount;
+
+    /** number of transactions stored */
+    private int live;
+
+    /** number of bytes in blocks in use */
+    private long usedBytes;
+
+    /**
+     * Create an arena with slabs of DEFAULT_SLAB_SIZE bytes
+     */
+
+    public TransactionArena(){
+	this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create an arena with slabs of {@code slabSize} bytes, rounded up to a
+     *   power of two. No transaction can be larger than a slab.
+     */
+
+    public TransactionArena(int slabSize){
+	this.slabSize = Math.max(1 << MIN_SHIFT,Integer.highestOneBit(slabSize - 1) << 1);
+	int classes = sizeClass(this.slabSize) + 1;
+	this.free = new long[classes][];
+	this.freeCount = new int[classes];
+	for (int k = 0; k < classes; k++){
+	    free[k] = new long[4];
+	}
+	this.top = this.slabSize;
+    }
+
+    /* the size class of a block holding length bytes */
+
+    private static int sizeClass(int length){
+	if (length <= 1 << MIN_SHIFT){
+	    return 0;
+	}
+	return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    private static int slabOf(long handle){
+	return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle){
+	return (int) handle;
+    }
+
+    /* a free block of size class k */
+
+    private long allocateBlock(int k){
+	long handle;
+	if (freeCount[k] > 0){
+	    handle = free[k][--freeCount[k]];
+	} else {
+	    int blockSize = 1 << (k + MIN_SHIFT);
+	    if (top + blockSize > slabSize){
+		slabs.add(ByteBuffer.allocateDirect(slabSize));
+		inUse.add(new BitSet(slabSize >>> MIN_SHIFT));
+		top = 0;
+	    }
+	    handle = ((long) (slabs.size() - 1) << 32) | top;
+	    top += blockSize;
+	}
+	inUse.get(slabOf(handle)).set(offsetOf(handle) >>> MIN_SHIFT);
+	return handle;
+    }
+
+    /* throw an IllegalArgumentException unless handle is a block in use */
+
+    private void checkInUse(long handle){
+	int slab = slabOf(handle);
+	int offset = offsetOf(handle);
+	if (slab < 0 || slab >= slabs.size() || offset < 0 || offset >= slabSize
+	    || (offset & ((1 << MIN_SHIFT) - 1)) != 0 || !inUse.get(slab).get(offset >>> MIN_SHIFT)){
+	    throw new IllegalArgumentException("handle " + Long.toHexString(handle)
+					       + " is not in use, it may have been released already");
+	}
+    }
+
+    /**
+     * store {@code tx} and return its handle
+     */
+
+    public synchronized long allocate(Transaction tx){
+	int length = TransactionView.encodedLength(tx);
+	if (length > slabSize){
+	    throw new IllegalArgumentException("transaction of " + length
+					       + " bytes is larger than a slab of " + slabSize);
+	}
+	int k = sizeClass(length);
+	long handle = allocateBlock(k);
+	ByteBuffer target = slabs.get(slabOf(handle)).duplicate();
+	target.position(offsetOf(handle));
+	TransactionView.encode(tx,target);
+	live++;
+	usedBytes += 1 << (k + MIN_SHIFT);
+	return handle;
+    }
+
+    /**
+     * store a copy of the transaction in {@code view} and return its handle
+     */
+
+    public synchronized long allocate(TransactionView view){
+	int length = view.getLength();
+	if (length > slabSize){
+	    throw new IllegalArgumentException("transaction of " + length
+					       + " bytes is larger than a slab of " + slabSize);
+	}
+	int k = sizeClass(length);
+	long handle = allocateBlock(k);
+	ByteBuffer target = slabs.get(slabOf(handle)).duplicate();
+	target.position(offsetOf(handle));
+	view.copyTo(target);
+	live++;
+	usedBytes += 1 << (k + MIN_SHIFT);
+	return handle;
+    }
+
+    /**
+     * a view of the transaction with {@code handle}.
+     *   The view must not be used after the handle has been released.
+     */
+
+    public synchronized TransactionView view(long handle){
+	checkInUse(handle);
+	return new TransactionView(slabs.get(slabOf(handle)),offsetOf(handle));
+    }
+
+    /**
+     * release the block of the transaction with {@code handle} for reuse.
+     *   Throws an IllegalArgumentException if it is not in use.
+     */
+
+    public synchronized void release(long handle){
+	int k = sizeClass(view(handle).getLength());
+	inUse.get(slabOf(handle)).clear(offsetOf(handle) >>> MIN_SHIFT);
+	if (freeCount[k] == free[k].length){
+	    long[] larger = new long[2 * free[k].length];
+	    System.arraycopy(free[k],0,larger,0,freeCount[k]);
+	    free[k] = larger;
+	}
+	free[k][freeCount[k]++] = handle;
+	live--;
+	usedBytes -= 1 << (k + MIN_SHIFT);
+    }
+
+    /** the number of transactions stored */
+
+    public synchronized int size(){
+	return live;
+    }
+
+    /** the number of bytes in blocks in use */
+
+    public synchronized long getUsedBytes(){
+	return usedBytes;
+    }
+
+    /** the number of bytes of direct memory allocated */
+
+    public synchronized long getReservedBytes(){
+	return (long) slabs.size() * slabSize;
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,100000);
+
+	TxOutputList txol = new TxOutputList(pubKeyB,1);
+	Transaction tx = new Transaction(new TxInputList(pubKeyA,1,txol,wallet),txol);
+	TransactionArena arena = new TransactionArena(1 << 16);
+	long[] handles = new long[10000];
+	for (int i = 0; i < handles.length; i++){
+	    handles[i] = arena.allocate(tx);
+	}
+	System.out.println("Stored " + arena.size() + " transactions in "
+			   + arena.getReservedBytes() + " bytes of direct memory");
+	long reserved = arena.getReservedBytes();
+	System.out.println("Stored transaction equals original (expected true) = "
+			   + arena.view(handles[1234]).toTransaction().equals(tx));
+
+	for (int i = 0; i < handles.length; i += 2){
+	    arena.release(handles[i]);
+	}
+	System.out.println("After releasing every second one size (expected 5000) = " + arena.size());
+	try {
+	    arena.release(handles[0]);
+	    System.out.println("Releasing twice rejected (expected true) = false");
+	} catch (IllegalArgumentException e) {
+	    System.out.println("Releasing twice rejected (expected true) = true, size (expected 5000) = "
+			       + arena.size());
+	}
+	for (int i = 0; i < handles.length; i += 2){
+	    handles[i] = arena.allocate(TransactionView.of(tx));
+	}
+	System.out.println("Storing 5000 again reuses the freed blocks (expected true) = "
+			   + (arena.getReservedBytes() == reserved));
+
+	for (int i = 0; i < 100; i++){
+	    TransactionView view = arena.view(handles[i]);
+	    if (accountBalance.checkTransactionValid(view)){
+		accountBalance.processTransaction(view);
+	    }
+	    arena.release(handles[i]);
+	}
+	System.out.println("After processing 100 from the arena balance of Bob (expected 100) = "
+			   + accountBalance.getBalance(pubKeyB) + ", size (expected 9900) = " + arena.size());
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	TransactionArena.test();
+    }
+}
@@ -0,0 +1,474 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** TransactionServer
+ *   accepts transactions over TCP and applies them to one AccountBalance.
+ *
+ *   A client sends each transaction in the layout of TransactionView, which
+ *   starts with its length, and the server answers with one status byte:
+ *   ACCEPTED if the transaction was valid and has been processed, INVALID if
+ *   checkTransactionValid failed or the transaction has been processed
+ *   before, MALFORMED if the bytes could not be read as a transaction.
+ *   A client may send any number of transactions over one connection.
+ *   Transactions processed are recorded in a ReplayFilter, see
+ *   AccountBalance.processTransactionOnce; a transaction sent again is
+ *   rejected by its id before its signatures are checked.
+ *
+ *   Each connection is served by its own thread, blocking on the socket.
+ *   On Java 21 and later these are virtual threads, so that many slow
+ *   clients do not need as many platform threads; on older versions a
+ *   cached thread pool is used. Signatures are checked in the connection
+ *   thread, only the final check of the balances and the processing is
+ *   done while holding the lock of the AccountBalance.
+ *
+ *   A connection is closed when a read waits longer than READ_TIMEOUT_MILLIS,
+ *   and connections beyond the maximum are closed as soon as they are
+ *   accepted. The buffer for a transaction grows as its bytes arrive, so a
+ *   client which only sends a length takes no more than READ_CHUNK bytes.
+ */
+
+public class TransactionServer implements AutoCloseable {
+
+    /** status: the transaction has been processed */
+    public static final byte ACCEPTED = 0;
+
+    /** status: the transaction is not valid w.r.t. the accountBalance */
+    public static final byte INVALID = 1;
+
+    /** status: the bytes received are not a transaction */
+    public static final byte MALFORMED = 2;
+
+    /** the largest transaction accepted in bytes */
+    public static final int MAX_TRANSACTION_LENGTH = 1 << 20;
+
+    /** how long the ids of transactions processed are remembered by default */
+    public static final long REPLAY_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    /** how long a read may wait for the client before the connection is closed */
+    public static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /** the default maximal number of connections open at the same time */
+    public static final int MAX_CONNECTIONS = 1024;
+
+    /** the size of the buffer for a transaction before its bytes arrive */
+    private static final int READ_CHUNK = 1 << 16;
+
+    /** how long to wait after accept failed before trying again */
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    /** the ledger transactions are applied to */
+    private final AccountBalance accountBalance;
+
+    /** the ids of the transactions processed, used under the lock of accountBalance */
+    private final ReplayFilter replayFilter;
+
+    /** the connections open */
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    /** the maximal number of connections open */
+    private final int maxConnections;
+
+    /** the listening socket */
+    private final ServerSocket serverSocket;
+
+    /** runs the accept loop and one task per connection */
+    private final ExecutorService executor;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create a server for {@code accountBalance} listening on {@code port}
+     *   of the loopback address, 0 for any free port. Call start() to
+     *   accept connections.
+     */
+
+    public TransactionServer(AccountBalance accountBalance,int port) throws IOException {
+	this(accountBalance,new ServerSocket(port,128,InetAddress.getLoopbackAddress()));
+    }
+
+    /**
+     * Create a server for {@code accountBalance} accepting connections on
+     *   {@code serverSocket}
+     */
+
+    public TransactionServer(AccountBalance accountBalance,ServerSocket serverSocket){
+	this(accountBalance,serverSocket,new ReplayFilter(REPLAY_WINDOW_MILLIS,100000));
+    }
+
+    /**
+     * as before, rejecting the transactions recorded in {@code replayFilter}
+     */
+
+    public TransactionServer(AccountBalance accountBalance,ServerSocket serverSocket,
+			     ReplayFilter replayFilter){
+	this(accountBalance,serverSocket,replayFilter,MAX_CONNECTIONS);
+    }
+
+    /**
+     * as before, with at most {@code maxConnections} connections open
+     */
+
+    public TransactionServer(AccountBalance accountBalance,ServerSocket serverSocket,
+			     ReplayFilter replayFilter,int maxConnections){
+	this.maxConnections = maxConnections;
+	this.accountBalance = accountBalance;
+	this.serverSocket = serverSocket;
+	this.replayFilter = replayFilter;
+	this.executor = newThreadPerTaskExecutor();
+    }
+
+    /* virtual threads if the runtime has them, otherwise a cached pool */
+
+    static ExecutorService newThreadPerTaskExecutor(){
+	try {
+	    return (ExecutorService) Executors.class
+		.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+	} catch (ReflectiveOperationException e) {
+	    return Executors.newCachedThreadPool(runnable -> {
+		    Thread thread = new Thread(runnable,"transaction-server");
+		    thread.setDaemon(true);
+		    return thread;
+		});
+	}
+    }
+
+    /**
+     * the port the server is listening on
+     */
+
+    public int getPort(){
+	return serverSocket.getLocalPort();
+    }
+
+    /**
+     * start accepting connections
+     */
+
+    public void start(){
+	executor.execute(this::acceptLoop);
+    }
+
+    private void acceptLoop(){
+	while (!serverSocket.isClosed()){
+	    Socket socket;
+	    try {
+		socket = serverSocket.accept();
+	    } catch (IOException e) {
+		if (serverSocket.isClosed()){
+		    return;
+		}
+		/* e.g. too many open files: wait for connections to be closed */
+		System.err.println("TransactionServer: accept failed: " + e);
+		try {
+		    Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+		} catch (InterruptedException interrupted) {
+		    return;
+		}
+		continue;
+	    }
+	    if (clients.size() >= maxConnections){
+		rejected.incrementAndGet();
+		closeQuietly(socket);
+		continue;
+	    }
+	    clients.add(socket);
+	    if (serverSocket.isClosed()){
+		/* close() may have missed it */
+		closeQuietly(socket);
+		return;
+	    }
+	    executor.execute(() -> serve(socket));
+	}
+    }
+
+    private void closeQuietly(Socket socket){
+	clients.remove(socket);
+	try {
+	    socket.close();
+	} catch (IOException e) {
+	    /* closed anyway */
+	}
+    }
+
+    /* serve one connection until the client closes it */
+
+    private void serve(Socket socket){
+	try (Socket s = socket){
+	    s.setSoTimeout(READ_TIMEOUT_MILLIS);
+	    serveTransactions(s);
+	} catch (IOException e) {
+	    /* connection lost, timed out, or closed by close() */
+	} finally {
+	    clients.remove(socket);
+	}
+    }
+
+    private void serveTransactions(Socket s) throws IOException {
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+	     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))){
+	    while (true){
+		int length;
+		try {
+		    length = in.readInt();
+		} catch (EOFException e) {
+		    return;
+		}
+		if (length < Integer.BYTES || length > MAX_TRANSACTION_LENGTH){
+		    /* the stream cannot be resynchronised */
+		    malformed.incrementAndGet();
+		    out.writeByte(MALFORMED);
+		    out.flush();
+		    return;
+		}
+		out.writeByte(submit(readTransaction(in,length)));
+		out.flush();
+	    }
+	}
+    }
+
+    /* read the transaction of length bytes whose length has been read,
+       growing the buffer only as the bytes arrive */
+
+    private static byte[] readTransaction(DataInputStream in,int length) throws IOException {
+	byte[] bytes = new byte[Math.min(length,READ_CHUNK)];
+	ByteBuffer.wrap(bytes).putInt(length);
+	int read = Integer.BYTES;
+	while (read < length){
+	    if (read == bytes.length){
+		bytes = Arrays.copyOf(bytes,(int) Math.min(length,2L * bytes.length));
+	    }
+	    int n = in.read(bytes,read,bytes.length - read);
+	    if (n < 0){
+		throw new EOFException("connection closed within a transaction");
+	    }
+	    read += n;
+	}
+	return bytes;
+    }
+
+    /**
+     * check the transaction in {@code bytes} and process it if valid and
+     *   not processed before, returning ACCEPTED, INVALID or MALFORMED
+     */
+
+    public byte submit(byte[] bytes){
+	try {
+	    TransactionView tx = TransactionView.wrap(bytes);
+	    /* a replay is rejected by its hash, before any signature is checked */
+	    boolean replayed;
+	    synchronized (accountBalance){
+		replayed = replayFilter.isDuplicate(tx.getTxId());
+	    }
+	    if (replayed || !tx.checkTransactionAmountsValid()){
+		invalid.incrementAndGet();
+		return INVALID;
+	    }
+	    verified.incrementAndGet();
+	    if (!tx.checkSignaturesValid()){
+		invalid.incrementAndGet();
+		return INVALID;
+	    }
+	    synchronized (accountBalance){
+		if (!accountBalance.processTransactionOnce(tx,replayFilter)){
+		    invalid.incrementAndGet();
+		    return INVALID;
+		}
+	    }
+	    accepted.incrementAndGet();
+	    return ACCEPTED;
+	} catch (RuntimeException e) {
+	    malformed.incrementAndGet();
+	    return MALFORMED;
+	}
+    }
+
+    /** the number of transactions processed */
+
+    public long getAcceptedCount(){
+	return accepted.get();
+    }
+
+    /** the number of transactions rejected as invalid */
+
+    public long getInvalidCount(){
+	return invalid.get();
+    }
+
+    /** the number of transactions rejected as malformed */
+
+    public long getMalformedCount(){
+	return malformed.get();
+    }
+
+    /** the number of connections closed because there were too many */
+
+    public long getRejectedConnectionCount(){
+	return rejected.get();
+    }
+
+    /** the number of transactions whose signatures were checked */
+
+    public long getVerifiedCount(){
+	return verified.get();
+    }
+
+    /**
+     * stop accepting connections, close the connections open and the server
+     */
+
+    @Override
+    public void close() throws IOException {
+	serverSocket.close();
+	for (Socket socket : clients){
+	    closeQuietly(socket);
+	}
+	executor.shutdownNow();
+    }
+
+
+    /**
+     * send {@code tx} to a server connected to {@code socket} and return
+     *   the status byte of the reply
+     */
+
+    public static byte send(Socket socket,Transaction tx) throws IOException {
+	DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+	out.write(TransactionView.toBytes(tx));
+	out.flush();
+	int status = socket.getInputStream().read();
+	if (status < 0){
+	    throw new EOFException("connection closed by server");
+	}
+	return (byte) status;
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException,
+	       IOException, InterruptedException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,100);
+	accountBalance.addAccount(pubKeyB,100);
+
+	try (TransactionServer server = new TransactionServer(accountBalance,0)){
+	    server.start();
+	    TxOutputList txol = new TxOutputList(pubKeyC,60);
+	    Transaction tx = new Transaction(new TxInputList(pubKeyA,60,txol,wallet),txol);
+	    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),server.getPort())){
+		System.out.println("Alice pays 60 to Carol (expected 0) = " + send(socket,tx));
+		long verifiedBefore = server.getVerifiedCount();
+		System.out.println("Same transaction again (expected 1) = " + send(socket,tx)
+				   + ", signatures checked (expected 0) = " + (server.getVerifiedCount() - verifiedBefore));
+		TxOutputList txol2 = new TxOutputList(pubKeyB,60);
+		Transaction tx2 = new Transaction(new TxInputList(pubKeyA,60,txol2,wallet),txol2);
+		System.out.println("Alice pays another 60 to Bob (expected 1) = " + send(socket,tx2));
+	    }
+	    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),server.getPort())){
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeInt(12);
+		out.write(new byte[8]);
+		out.flush();
+		System.out.println("Garbage (expected 2) = " + socket.getInputStream().read());
+	    }
+
+	    /* several clients at the same time, each sending the same 10
+	       transactions, Bob paying 1, 2, ... 10 to Carol */
+	    Transaction[] transactions = new Transaction[10];
+	    for (int j = 0; j < transactions.length; j++){
+		TxOutputList txol1 = new TxOutputList(pubKeyC,j + 1);
+		transactions[j] = new Transaction(new TxInputList(pubKeyB,j + 1,txol1,wallet),txol1);
+	    }
+	    Thread[] clients = new Thread[8];
+	    for (int i = 0; i < clients.length; i++){
+		clients[i] = new Thread(() -> {
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),server.getPort())){
+			    for (Transaction tx1 : transactions){
+				send(socket,tx1);
+			    }
+			} catch (IOException e) {
+			    throw new RuntimeException(e);
+			}
+		    });
+		clients[i].start();
+	    }
+	    for (Thread client : clients){
+		client.join();
+	    }
+	    System.out.println("After 8 clients sent the same 10 each, balance of Bob (expected 45) = "
+			       + accountBalance.getBalance(pubKeyB)
+			       + ", Carol (expected 115) = " + accountBalance.getBalance(pubKeyC));
+	    System.out.println("Accepted (expected 11) = " + server.getAcceptedCount()
+			       + ", invalid (expected 72) = " + server.getInvalidCount()
+			       + ", malformed (expected 1) = " + server.getMalformedCount());
+	}
+
+	/* connections beyond the maximum are closed at once */
+	TransactionServer single = new TransactionServer(accountBalance,
+							 new ServerSocket(0,128,InetAddress.getLoopbackAddress()),
+							 new ReplayFilter(REPLAY_WINDOW_MILLIS,100),1);
+	single.start();
+	try (Socket first = new Socket(InetAddress.getLoopbackAddress(),single.getPort());
+	     Socket second = new Socket(InetAddress.getLoopbackAddress(),single.getPort())){
+	    DataOutputStream out = new DataOutputStream(first.getOutputStream());
+	    out.writeInt(MAX_TRANSACTION_LENGTH);
+	    out.flush();
+	    System.out.println("Second connection closed (expected -1) = " + second.getInputStream().read()
+			       + ", rejected (expected 1) = " + single.getRejectedConnectionCount());
+	} finally {
+	    single.close();
+	}
+
+	/* close() closes the connections still open */
+	TransactionServer server = new TransactionServer(accountBalance,0);
+	server.start();
+	try (Socket idle = new Socket(InetAddress.getLoopbackAddress(),server.getPort())){
+	    TxOutputList txol = new TxOutputList(pubKeyC,60);
+	    Transaction tx = new Transaction(new TxInputList(pubKeyA,60,txol,wallet),txol);
+	    System.out.println("Idle client served (expected 1) = " + send(idle,tx));
+	    server.close();
+	    System.out.println("Idle client disconnected by close (expected -1) = " + idle.getInputStream().read());
+	}
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException,
+	       IOException, InterruptedException {
+	TransactionServer.test();
+    }
+}
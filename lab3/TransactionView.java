@@ -0,0 +1,563 @@
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/** TransactionView
+ *   a transaction stored contiguously in a ByteBuffer, which may be a heap
+ *   buffer wrapping a byte[] or a direct buffer outside the heap.
+ *
+ *   A Transaction is a graph of many objects (lists, TxInputs, PublicKeys,
+ *   signature arrays); a TransactionView is a single buffer region plus this
+ *   small object, and the accessors read the amounts, keys and signatures
+ *   directly from the buffer. Public keys are only decoded when they are
+ *   needed for checking a signature or for looking up a balance.
+ *
+ *   Layout (all numbers big endian):
+ *     int    total length in bytes
+ *     byte   VERSION
+ *     short  number of inputs n
+ *     short  number of outputs m
+ *     int[n + m]  offsets of the inputs and outputs from the start
+ *     inputs:  short keyLength, key, int amount, byte messageVersion,
+ *              short signatureLength, signature
+ *     outputs: short keyLength, key, int amount
+ *   where key is the X.509 encoding of the public key, as returned by getEncoded().
+ *
+ *   The layout is checked once when the view is created: the counts and
+ *   lengths are not negative and every entry lies within the total length,
+ *   so that the accessors never read outside the transaction.
+ */
+
+public class TransactionView {
+
+    /** version of the layout */
+    public static final byte VERSION = 2;
+
+    /** size of the fixed header */
+    private static final int HEADER = Integer.BYTES + 1 + 2 * Short.BYTES;
+
+    /** the buffer containing the transaction */
+    private final ByteBuffer buffer;
+
+    /** the position of the transaction in the buffer */
+    private final int base;
+
+    /**
+     * a view of the transaction stored at {@code offset} in {@code buffer};
+     *   throws an IllegalArgumentException if it is not a valid layout
+     */
+
+    public TransactionView(ByteBuffer buffer,int offset){
+	if (offset < 0 || (long) offset + HEADER > buffer.limit()){
+	    throw new IllegalArgumentException("no transaction header at " + offset);
+	}
+	if (buffer.get(offset + Integer.BYTES) != VERSION){
+	    throw new IllegalArgumentException("not a transaction of version " + VERSION);
+	}
+	this.buffer = buffer;
+	this.base = offset;
+	checkLayout();
+    }
+
+    /* check the layout lies within the total length */
+
+    private void checkLayout(){
+	int length = getLength();
+	if (length < HEADER || (long) base + length > buffer.limit()){
+	    throw new IllegalArgumentException("invalid transaction length " + length);
+	}
+	int n = getInputCount();
+	int m = getOutputCount();
+	if (n < 0 || m < 0){
+	    throw new IllegalArgumentException("invalid number of inputs " + n + " or outputs " + m);
+	}
+	long entries = HEADER + (long) Integer.BYTES * (n + m);
+	checkWithin(entries,length);
+	for (int index = 0; index < n + m; index++){
+	    int pos = buffer.getInt(base + HEADER + Integer.BYTES * index);
+	    if (pos < entries){
+		throw new IllegalArgumentException("entry " + index + " overlaps the header");
+	    }
+	    long end = skipLengthPrefixed(pos,length) + Integer.BYTES;
+	    if (index < n){
+		end = skipLengthPrefixed(end + 1,length);
+	    }
+	    checkWithin(end,length);
+	}
+    }
+
+    /* the position after the bytes of length given by the short at pos,
+       relative to base */
+
+    private long skipLengthPrefixed(long pos,int length){
+	checkWithin(pos + Short.BYTES,length);
+	short fieldLength = buffer.getShort(base + (int) pos);
+	if (fieldLength < 0){
+	    throw new IllegalArgumentException("negative field length at " + pos);
+	}
+	long end = pos + Short.BYTES + fieldLength;
+	checkWithin(end,length);
+	return end;
+    }
+
+    private static void checkWithin(long end,int length){
+	if (end > length){
+	    throw new IllegalArgumentException("field ends at " + end + " beyond the length " + length);
+	}
+    }
+
+    /**
+     * a view of the transaction stored in {@code bytes}
+     */
+
+    public static TransactionView wrap(byte[] bytes){
+	return new TransactionView(ByteBuffer.wrap(bytes),0);
+    }
+
+    /* check a count or length fits in the short of the layout */
+
+    private static int checkShort(int value,String what){
+	if (value > Short.MAX_VALUE){
+	    throw new IllegalArgumentException(what + " " + value + " exceeds " + Short.MAX_VALUE);
+	}
+	return value;
+    }
+
+    /**
+     * the number of bytes needed to store {@code tx}; throws an
+     *   IllegalArgumentException if it has more than Short.MAX_VALUE inputs
+     *   or outputs, or a key or signature longer than that
+     */
+
+    public static int encodedLength(Transaction tx){
+	int n = checkShort(tx.toTxInputs().size(),"number of inputs");
+	int m = checkShort(tx.toTxOutputs().toList().size(),"number of outputs");
+	long length = HEADER + (long) Integer.BYTES * (n + m);
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    length += 2 * Short.BYTES + Integer.BYTES + 1
+		+ checkShort(txInput.getSender().getEncoded().length,"key length")
+		+ checkShort(txInput.getSignature().length,"signature length");
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    length += Short.BYTES + Integer.BYTES
+		+ checkShort(txOutput.getRecipient().getEncoded().length,"key length");
+	}
+	if (length > Integer.MAX_VALUE){
+	    throw new IllegalArgumentException("transaction of " + length + " bytes is too large");
+	}
+	return (int) length;
+    }
+
+    /**
+     * store {@code tx} in {@code buffer} at its current position,
+     *   advancing the position by encodedLength(tx); throws an
+     *   IllegalArgumentException as encodedLength for a transaction which
+     *   does not fit the layout, before writing anything
+     */
+
+    public static void encode(Transaction tx,ByteBuffer buffer){
+	int start = buffer.position();
+	int n = tx.toTxInputs().size();
+	int m = tx.toTxOutputs().toList().size();
+	buffer.putInt(encodedLength(tx));
+	buffer.put(VERSION);
+	buffer.putShort((short) n);
+	buffer.putShort((short) m);
+	int offsetTable = buffer.position();
+	buffer.position(offsetTable + Integer.BYTES * (n + m));
+	int i = 0;
+	for (TxInput txInput : tx.toTxInputs().toList()){
+	    buffer.putInt(offsetTable + Integer.BYTES * i++,buffer.position() - start);
+	    byte[] key = txInput.getSender().getEncoded();
+	    buffer.putShort((short) key.length);
+	    buffer.put(key);
+	    buffer.putInt(txInput.getAmount());
+	    buffer.put(txInput.getMessageVersion());
+	    buffer.putShort((short) txInput.getSignature().length);
+	    buffer.put(txInput.getSignature());
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    buffer.putInt(offsetTable + Integer.BYTES * i++,buffer.position() - start);
+	    byte[] key = txOutput.getRecipient().getEncoded();
+	    buffer.putShort((short) key.length);
+	    buffer.put(key);
+	    buffer.putInt(txOutput.getAmount());
+	}
+    }
+
+    /**
+     * the bytes of {@code tx} in the layout of TransactionView
+     */
+
+    public static byte[] toBytes(Transaction tx){
+	ByteBuffer buffer = ByteBuffer.allocate(encodedLength(tx));
+	encode(tx,buffer);
+	return buffer.array();
+    }
+
+    /**
+     * a view of {@code tx}, stored in a new heap buffer
+     */
+
+    public static TransactionView of(Transaction tx){
+	return wrap(toBytes(tx));
+    }
+
+    /* ---------------- accessors ---------------- */
+
+    /** the number of bytes of the transaction */
+
+    public int getLength(){
+	return buffer.getInt(base);
+    }
+
+    /** the number of inputs */
+
+    public int getInputCount(){
+	return buffer.getShort(base + Integer.BYTES + 1);
+    }
+
+    /** the number of outputs */
+
+    public int getOutputCount(){
+	return buffer.getShort(base + Integer.BYTES + 1 + Short.BYTES);
+    }
+
+    /* absolute position of input i or output getInputCount() + i */
+
+    private int entry(int index){
+	return base + buffer.getInt(base + HEADER + Integer.BYTES * index);
+    }
+
+    private int input(int i){
+	if (i < 0 || i >= getInputCount()){
+	    throw new IndexOutOfBoundsException("input " + i);
+	}
+	return entry(i);
+    }
+
+    private int output(int i){
+	if (i < 0 || i >= getOutputCount()){
+	    throw new IndexOutOfBoundsException("output " + i);
+	}
+	return entry(getInputCount() + i);
+    }
+
+    /* the bytes of length given by the short at position pos */
+
+    private byte[] lengthPrefixed(int pos){
+	byte[] result = new byte[buffer.getShort(pos)];
+	for (int k = 0; k < result.length; k++){
+	    result[k] = buffer.get(pos + Short.BYTES + k);
+	}
+	return result;
+    }
+
+    /* position of the amount of the entry at pos */
+
+    private int amountPosition(int pos){
+	return pos + Short.BYTES + buffer.getShort(pos);
+    }
+
+    /** the encoded public key of the sender of input i */
+
+    public byte[] getSenderEncoded(int i){
+	return lengthPrefixed(input(i));
+    }
+
+    /** the public key of the sender of input i */
+
+    public PublicKey getSender(int i){
+	return KeyUtils.decodePublicKey(getSenderEncoded(i));
+    }
+
+    /** the amount of input i */
+
+    public int getInputAmount(int i){
+	return buffer.getInt(amountPosition(input(i)));
+    }
+
+    /** the version of the message signed by input i, see TxInput */
+
+    public byte getMessageVersion(int i){
+	return buffer.get(amountPosition(input(i)) + Integer.BYTES);
+    }
+
+    /** the signature of input i */
+
+    public byte[] getSignature(int i){
+	return lengthPrefixed(amountPosition(input(i)) + Integer.BYTES + 1);
+    }
+
+    /** the encoded public key of the recipient of output i */
+
+    public byte[] getRecipientEncoded(int i){
+	return lengthPrefixed(output(i));
+    }
+
+    /** the public key of the recipient of output i */
+
+    public PublicKey getRecipient(int i){
+	return KeyUtils.decodePublicKey(getRecipientEncoded(i));
+    }
+
+    /** the amount of output i */
+
+    public int getOutputAmount(int i){
+	return buffer.getInt(amountPosition(output(i)));
+    }
+
+    /** the sum of the amounts of the inputs */
+
+    public long getInputSum(){
+	long result = 0;
+	for (int i = 0; i < getInputCount(); i++){
+	    result += getInputAmount(i);
+	}
+	return result;
+    }
+
+    /** the sum of the amounts of the outputs */
+
+    public long getOutputSum(){
+	long result = 0;
+	for (int i = 0; i < getOutputCount(); i++){
+	    result += getOutputAmount(i);
+	}
+	return result;
+    }
+
+    /**
+     * copy the bytes of the transaction to {@code target} at its current
+     *   position, advancing the position by getLength()
+     */
+
+    public void copyTo(ByteBuffer target){
+	ByteBuffer source = buffer.duplicate();
+	source.limit(base + getLength());
+	source.position(base);
+	target.put(source);
+    }
+
+    /* ---------------- checks ---------------- */
+
+    /**
+     * check the sum of inputs is >= the sum of outputs,
+     *   as Transaction.checkTransactionAmountsValid
+     */
+
+    public boolean checkTransactionAmountsValid(){
+	return getInputSum() >= getOutputSum();
+    }
+
+    /* copies length bytes at pos of the buffer into the message */
+
+    private void copy(int pos,int length,ByteBuffer message){
+	for (int k = 0; k < length; k++){
+	    message.put(buffer.get(pos + k));
+	}
+    }
+
+    /**
+     * the message signed by input i, the same bytes as
+     *   TxOutputList.getMessageToSign(sender,amount,version) of the corresponding Transaction
+     */
+
+    public byte[] getMessageToSign(int i){
+	int in = input(i);
+	if (getMessageVersion(i) == TxInput.MESSAGE_V2){
+	    int m = getOutputCount();
+	    ByteBuffer message = ByteBuffer.allocate(1 + Integer.BYTES + (m + 1) * (Hash.SIZE + Integer.BYTES));
+	    message.put(TxInput.MESSAGE_V2).put(Hash.of(getSenderEncoded(i)).toBytes())
+		.putInt(getInputAmount(i)).putInt(m);
+	    for (int j = 0; j < m; j++){
+		message.put(Hash.of(getRecipientEncoded(j)).toBytes()).putInt(getOutputAmount(j));
+	    }
+	    return message.array();
+	}
+	int length = buffer.getShort(in) + Integer.BYTES;
+	for (int j = 0; j < getOutputCount(); j++){
+	    length += buffer.getShort(output(j)) + Integer.BYTES;
+	}
+	ByteBuffer message = ByteBuffer.allocate(length);
+	copy(in + Short.BYTES,buffer.getShort(in) + Integer.BYTES,message);
+	for (int j = 0; j < getOutputCount(); j++){
+	    int out = output(j);
+	    copy(out + Short.BYTES,buffer.getShort(out) + Integer.BYTES,message);
+	}
+	return message.array();
+    }
+
+    /**
+     * check all signatures are valid, as Transaction.checkSignaturesValid
+     */
+
+    public boolean checkSignaturesValid(){
+	for (int i = 0; i < getInputCount(); i++){
+	    PublicKey sender;
+	    try {
+		sender = getSender(i);
+	    } catch (IllegalArgumentException e) {
+		return false;
+	    }
+	    if (!Crypto.verifySignature(sender,getMessageToSign(i),getSignature(i))){
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * the amounts to be deducted per sender, as TxInputList.toAccountBalance
+     */
+
+    public Map<PublicKey,Integer> getDebits(){
+	HashMap<PublicKey,Integer> result = new HashMap<PublicKey,Integer>();
+	for (int i = 0; i < getInputCount(); i++){
+	    result.merge(getSender(i),getInputAmount(i),Integer::sum);
+	}
+	return result;
+    }
+
+    /**
+     * the id of the transaction, equal to getTxId() of the corresponding Transaction
+     */
+
+    public Hash getTxId(){
+	MessageDigest md = Hash.newDigest();
+	md.update(KeyUtils.integer2ByteArray(getInputCount()));
+	for (int i = 0; i < getInputCount(); i++){
+	    byte[] key = getSenderEncoded(i);
+	    md.update(KeyUtils.integer2ByteArray(key.length));
+	    md.update(key);
+	    md.update(KeyUtils.integer2ByteArray(getInputAmount(i)));
+	    md.update(getMessageVersion(i));
+	    byte[] signature = getSignature(i);
+	    md.update(KeyUtils.integer2ByteArray(signature.length));
+	    md.update(signature);
+	}
+	md.update(KeyUtils.integer2ByteArray(getOutputCount()));
+	for (int i = 0; i < getOutputCount(); i++){
+	    byte[] key = getRecipientEncoded(i);
+	    md.update(KeyUtils.integer2ByteArray(key.length));
+	    md.update(key);
+	    md.update(KeyUtils.integer2ByteArray(getOutputAmount(i)));
+	}
+	return new Hash(md.digest());
+    }
+
+    /**
+     * the transaction as object graph
+     */
+
+    public Transaction toTransaction(){
+	TxInputList txInputs = new TxInputList();
+	for (int i = 0; i < getInputCount(); i++){
+	    txInputs.addEntry(new TxInput(getSender(i),getInputAmount(i),getSignature(i),getMessageVersion(i)));
+	}
+	TxOutputList txOutputs = new TxOutputList();
+	for (int i = 0; i < getOutputCount(); i++){
+	    txOutputs.addEntry(getRecipient(i),getOutputAmount(i));
+	}
+	return new Transaction(txInputs,txOutputs);
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	TxOutputList txol = new TxOutputList(pubKeyB,10,pubKeyC,15);
+	Transaction tx = new Transaction(new TxInputList(pubKeyA,20,pubKeyB,5,txol,wallet),txol);
+
+	TransactionView view = TransactionView.of(tx);
+	System.out.println("Transaction stored in " + view.getLength() + " bytes");
+	System.out.println("Inputs " + view.getInputCount() + ", outputs " + view.getOutputCount()
+			   + " (expected 2, 2)");
+	System.out.println("Sum of inputs " + view.getInputSum() + ", sum of outputs "
+			   + view.getOutputSum() + " (expected 25, 25)");
+	System.out.println("Signatures valid (expected true) = " + view.checkSignaturesValid());
+	System.out.println("Same id as transaction (expected true) = " + view.getTxId().equals(tx.getTxId()));
+	System.out.println("Converted back equals transaction (expected true) = "
+			   + view.toTransaction().equals(tx));
+
+	/* the same transaction in a direct buffer after some other data */
+	ByteBuffer direct = ByteBuffer.allocateDirect(100 + view.getLength());
+	direct.position(100);
+	encode(tx,direct);
+	TransactionView directView = new TransactionView(direct,100);
+	System.out.println("View in direct buffer has same id (expected true) = "
+			   + directView.getTxId().equals(tx.getTxId()));
+
+	byte[] bytes = toBytes(tx);
+	int lastOutputAmount = bytes.length - Integer.BYTES;
+	bytes[lastOutputAmount + 3] = 16;
+	System.out.println("After changing the last output to 16 signatures valid (expected false) = "
+			   + TransactionView.wrap(bytes).checkSignaturesValid()
+			   + ", amounts valid (expected false) = "
+			   + TransactionView.wrap(bytes).checkTransactionAmountsValid());
+
+	TxInputList many = new TxInputList();
+	for (int k = 0; k <= Short.MAX_VALUE; k++){
+	    many.addEntry(new TxInput(pubKeyA,0,new byte[0]));
+	}
+	try {
+	    toBytes(new Transaction(many,new TxOutputList()));
+	    System.out.println("Transaction with 32768 inputs rejected (expected true) = false");
+	} catch (IllegalArgumentException e) {
+	    System.out.println("Transaction with 32768 inputs rejected (expected true) = true");
+	}
+
+	String[] corruptions = new String[]{ "negative key length", "offset beyond the length", "length beyond the buffer"};
+	for (int c = 0; c < corruptions.length; c++){
+	    byte[] corrupt = toBytes(tx);
+	    ByteBuffer b = ByteBuffer.wrap(corrupt);
+	    int firstInput = b.getInt(HEADER);
+	    if (c == 0){
+		b.putShort(firstInput,(short) -1);
+	    } else if (c == 1){
+		b.putInt(HEADER,corrupt.length + 100);
+	    } else {
+		b.putInt(0,corrupt.length + 1);
+	    }
+	    try {
+		TransactionView.wrap(corrupt);
+		System.out.println("View with " + corruptions[c] + " rejected (expected true) = false");
+	    } catch (IllegalArgumentException e) {
+		System.out.println("View with " + corruptions[c] + " rejected (expected true) = true");
+	    }
+	}
+
+	AccountBalance accountBalance = new AccountBalance();
+	accountBalance.addAccount(pubKeyA,20);
+	accountBalance.addAccount(pubKeyB,5);
+	System.out.println("Valid w.r.t. accountBalance (expected true) = "
+			   + accountBalance.checkTransactionValid(view));
+	accountBalance.processTransaction(view);
+	System.out.println("After processing balances Alice " + accountBalance.getBalance(pubKeyA)
+			   + ", Bob " + accountBalance.getBalance(pubKeyB)
+			   + ", Carol " + accountBalance.getBalance(pubKeyC) + " (expected 0, 10, 15)");
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	TransactionView.test();
+    }
+}
@@ -14,6 +14,13 @@ import java.util.Arrays;
 
 public class TxInput{
 
+    /** version of the signed message containing the full encodings of the keys,
+	see TxOutputList.getMessageToSign */
+    public static final byte MESSAGE_V1 = 1;
+
+    /** version of the signed message containing fingerprints of the keys */
+    public static final byte MESSAGE_V2 = 2;
+
     /** The sender */
     private PublicKey sender;
 
@@ -23,6 +30,9 @@ public class TxInput{
 
     /** The signature produced to check validity */
     private byte[] signature;
+
+    /** The version of the message signed */
+    private byte messageVersion = MESSAGE_V1;
     
 
     /** 
@@ -35,6 +45,16 @@ public class TxInput{
 	this.signature = Arrays.copyOf(signature,signature.length);	
     }
 
+    /** 
+     * Create TxInput from sender, amount, and a signature of a message of
+     *   version {@code messageVersion}
+     */
+
+    public TxInput(PublicKey sender,int amount,byte[] signature,byte messageVersion){
+	this(sender,amount,signature);
+	this.messageVersion = messageVersion;
+    }
+
 
     /** 
      * If we have a Wallet covering the sender
@@ -66,6 +86,17 @@ public class TxInput{
     };
 
 
+    /*  as before but signing the message of version {@code messageVersion} */
+    
+    public TxInput(PublicKey sender,int amount, TxOutputList txOutputList,Wallet wallet,byte messageVersion)
+    	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	this.amount = amount;
+	this.sender = sender;
+	this.signature = wallet.getSignature(this.sender,amount,txOutputList,messageVersion);
+	this.messageVersion = messageVersion;
+    };
+
+
 
     /** 
      * Get the sender 
@@ -93,11 +124,19 @@ public class TxInput{
     }
 
     /** 
-     * Get the  signature
+     * Get the  signature, a copy so that the TxInput cannot be changed
      */        
 
     public byte[] getSignature() {
-	return signature;
+	return signature.clone();
+    }
+
+    /** 
+     * Get the version of the message signed, MESSAGE_V1 or MESSAGE_V2
+     */        
+
+    public byte getMessageVersion() {
+	return messageVersion;
     }
 
     /** Create the corresponding element of TxInputUnsigned
@@ -125,7 +164,7 @@ public class TxInput{
     **/
 
     public boolean checkSignature(TxOutputList txol){
-        return this.toTxInputUnsigned().checkSignature(txol, this.getSignature());
+        return this.toTxInputUnsigned().checkSignature(txol, this.getSignature(), messageVersion);
     }
 
 
@@ -150,6 +189,25 @@ public class TxInput{
 	print("Sender: "," Amount:  ",pubKeyMap);
     }
 
+    /**
+     * Two TxInputs are equal if they have the same sender, amount and signature
+     */
+
+    @Override
+    public boolean equals(Object other){
+	if (!(other instanceof TxInput)){
+	    return false;
+	}
+	TxInput o = (TxInput) other;
+	return amount == o.amount && messageVersion == o.messageVersion
+	    && sender.equals(o.sender) && Arrays.equals(signature,o.signature);
+    }
+
+    @Override
+    public int hashCode(){
+	return 31 * (31 * sender.hashCode() + amount) + Arrays.hashCode(signature);
+    }
+
     /** 
      * Test cases
      */            
@@ -3,6 +3,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.List;
 
 /** TxInputList
  *  defines a list of TxInputs  of a  transaction
@@ -70,6 +71,15 @@ public class TxInputList{
 	txInputList =  new ArrayList<TxInput>();
     }
 
+    /** 
+      * constructor constructing a list from given txInputs,
+          for instance the result of Wallet.signAll
+      */
+    
+    public TxInputList(List<TxInput> txInputs){
+	txInputList = new ArrayList<TxInput>(txInputs);
+    }
+
     /** 
       * constructor constructing a list containing one entry
           consisting of a sender, an amount, and a signature
@@ -254,6 +264,20 @@ public class TxInputList{
 	print("Sender: "," value:  ",pubKeyMap);
     }
 
+    /**
+     * Two TxInputLists are equal if they have equal entries in the same order
+     */
+
+    @Override
+    public boolean equals(Object other){
+	return (other instanceof TxInputList) && txInputList.equals(((TxInputList) other).txInputList);
+    }
+
+    @Override
+    public int hashCode(){
+	return txInputList.hashCode();
+    }
+
     /** 
      * Generic Test cases, providing a headline
      *    printing out the TxInputList
@@ -109,6 +109,15 @@ public class TxInputUnsigned{
 	return Crypto.verifySignature(sender,getMessageToSign(txol), signature);
     }
 
+    /* as before for a message of the given version, see TxInput */
+
+    public boolean checkSignature(TxOutputList txol,byte[] signature,byte version){
+	if (version == TxInput.MESSAGE_V1){
+	    return checkSignature(txol,signature);
+	}
+	return Crypto.verifySignature(sender,txol.getMessageToSign(sender,amount,version), signature);
+    }
+
 
 
     /** 
@@ -71,6 +71,24 @@ public class TxOutput{
 	print("Recipient: "," value:  ",pubKeyMap);
     }
 
+    /**
+     * Two TxOutputs are equal if they have the same recipient and amount
+     */
+
+    @Override
+    public boolean equals(Object other){
+	if (!(other instanceof TxOutput)){
+	    return false;
+	}
+	TxOutput o = (TxOutput) other;
+	return amount == o.amount && recipient.equals(o.recipient);
+    }
+
+    @Override
+    public int hashCode(){
+	return 31 * recipient.hashCode() + amount;
+    }
+
     /** 
      * Test cases
      */            
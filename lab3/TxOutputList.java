@@ -127,6 +127,37 @@ public class TxOutputList{
      */
     
     public byte[] getMessageToSign(PublicKey sender, int amount){
+	return getMessageToSign(sender,amount,TxInput.MESSAGE_V1);
+    }
+
+    /** 
+     * Create the message to be signed in the given version (see TxInput):
+     *
+     *   MESSAGE_V1 contains the full encodings of the public keys as above,
+     *   MESSAGE_V2 starts with the byte 2 and contains instead of each key
+     *     its fingerprint, followed by the number of outputs before the outputs.
+     *
+     *  A fingerprint determines the key as well as the key itself, since
+     *    finding another key with the same SHA-256 hash is infeasible,
+     *    but it has 32 bytes instead of about 300.
+     */
+    
+    public byte[] getMessageToSign(PublicKey sender, int amount, byte version){
+	if (version == TxInput.MESSAGE_V2){
+	    SigData sigData = new SigData();
+	    sigData.addByte(TxInput.MESSAGE_V2);
+	    sigData.addFingerprint(sender);
+	    sigData.addInteger(amount);
+	    sigData.addInteger(txOutputList.size());
+	    for (TxOutput txOutput : txOutputList) {
+		sigData.addFingerprint(txOutput.getRecipient());
+		sigData.addInteger(txOutput.getAmount());
+	    }
+	    return sigData.toArray();
+	}
+	if (version != TxInput.MESSAGE_V1){
+	    throw new IllegalArgumentException("unknown message version " + version);
+	}
 	SigData sigData = new SigData();
 	sigData.addPublicKey(sender);
 	sigData.addInteger(amount);
@@ -158,6 +189,20 @@ public class TxOutputList{
 	print("Recipient: "," value:  ",pubKeyMap);
     }
 
+    /**
+     * Two TxOutputLists are equal if they have equal entries in the same order
+     */
+
+    @Override
+    public boolean equals(Object other){
+	return (other instanceof TxOutputList) && txOutputList.equals(((TxOutputList) other).txOutputList);
+    }
+
+    @Override
+    public int hashCode(){
+	return txOutputList.hashCode();
+    }
+
     /** 
      * Generic Test cases, providing a headline
      *    printing out the TxOutputList
@@ -0,0 +1,44 @@
+import java.util.Arrays;
+
+
+/** UTXOInput
+ *   one input of a transaction in the UTXO model.
+ *
+ *   Instead of a sender and an amount it refers to an unspent output
+ *   by its OutPoint; the amount and the owner are those of the output.
+ *   The signature has to be made by the owner of the output.
+ */
+
+public class UTXOInput {
+
+    /** The output which is spent */
+    private OutPoint outPoint;
+
+    /** The signature of the owner of the output */
+    private byte[] signature;
+
+    /**
+     * Create UTXOInput from an OutPoint and a signature
+     */
+
+    public UTXOInput(OutPoint outPoint,byte[] signature){
+	this.outPoint = outPoint;
+	this.signature = Arrays.copyOf(signature,signature.length);
+    }
+
+    /**
+     * Get the OutPoint
+     */
+
+    public OutPoint getOutPoint(){
+	return outPoint;
+    }
+
+    /**
+     * Get the signature
+     */
+
+    public byte[] getSignature(){
+	return signature;
+    }
+}
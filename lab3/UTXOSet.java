@@ -0,0 +1,308 @@
+import java.security.PublicKey;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+
+/**
+ *   UTXOSet defines the state of the ledger in the UTXO model of bitcoins,
+ *   as an alternative to the account model of AccountBalance.
+ *
+ *   The state is the set of unspent transaction outputs, each stored
+ *   under its OutPoint (txId, index) in a HashMap.
+ *   A transaction spends outputs completely, so checking an input is a
+ *   single lookup and there is no need to aggregate the inputs per sender
+ *   as in AccountBalance.checkTxInputListCanBeDeducted.
+ */
+
+public class UTXOSet {
+
+    /** the unspent outputs indexed by their OutPoint */
+    private HashMap<OutPoint,TxOutput> utxos;
+
+    /**
+     * Creates an empty UTXOSet
+     */
+
+    public UTXOSet(){
+	utxos = new HashMap<OutPoint,TxOutput>();
+    }
+
+    /**
+     * add an unspent output
+     */
+
+    public void addUTXO(OutPoint outPoint,TxOutput txOutput){
+	utxos.put(outPoint,txOutput);
+    }
+
+    /**
+     * remove an output, after it has been spent
+     */
+
+    public void removeUTXO(OutPoint outPoint){
+	utxos.remove(outPoint);
+    }
+
+    /**
+     * @return true if {@code outPoint} refers to an unspent output
+     */
+
+    public boolean hasUTXO(OutPoint outPoint){
+	return utxos.containsKey(outPoint);
+    }
+
+    /**
+     * @return the unspent output for {@code outPoint}, or null if there is none
+     */
+
+    public TxOutput getUTXO(OutPoint outPoint){
+	return utxos.get(outPoint);
+    }
+
+    /**
+     * the number of unspent outputs
+     */
+
+    public int size(){
+	return utxos.size();
+    }
+
+    /**
+     * sum of all unspent outputs owned by {@code publicKey}
+     *
+     *   this needs to look at all unspent outputs and is only meant for
+     *   printing and testing.
+     */
+
+    public int getBalance(PublicKey publicKey){
+	int result = 0;
+	for (TxOutput txOutput : utxos.values()){
+	    if (txOutput.getRecipient().equals(publicKey)){
+		result += txOutput.getAmount();
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * add all outputs of a transaction without checking its inputs.
+     *   This is used for the initial (coinbase) transactions creating money.
+     */
+
+    public void addTransactionOutputs(UTXOTransaction tx){
+	Hash txId = tx.getTxId();
+	ArrayList<TxOutput> txOutputs = tx.toTxOutputs().toList();
+	for (int i = 0; i < txOutputs.size(); i++){
+	    addUTXO(new OutPoint(txId,i),txOutputs.get(i));
+	}
+    }
+
+    /**
+     * check the signatures and amounts of a transaction, where the spent
+     *   outputs are looked up using {@code lookup}.
+     *
+     *   returns false if an output is not found or spent twice in tx
+     */
+
+    private static boolean checkInputsValid(UTXOTransaction tx,HashMap<OutPoint,TxOutput> lookup,
+					    HashMap<OutPoint,TxOutput> blockOutputs){
+	HashSet<OutPoint> spent = new HashSet<OutPoint>();
+	long sum = 0;
+	for (UTXOInput input : tx.getInputs()){
+	    OutPoint outPoint = input.getOutPoint();
+	    if (!spent.add(outPoint)){
+		return false;
+	    }
+	    TxOutput spentOutput = lookup.get(outPoint);
+	    if (spentOutput == null && blockOutputs != null){
+		spentOutput = blockOutputs.get(outPoint);
+	    }
+	    if (spentOutput == null){
+		return false;
+	    }
+	    if (!Crypto.verifySignature(spentOutput.getRecipient(),
+					tx.getMessageToSign(outPoint),
+					input.getSignature())){
+		return false;
+	    }
+	    sum += spentOutput.getAmount();
+	}
+	for (TxOutput txOutput : tx.toTxOutputs().toList()){
+	    if (txOutput.getAmount() < 0){
+		return false;
+	    }
+	}
+	return sum >= tx.toTxOutputs().toSum();
+    }
+
+    /**
+     * Check a transaction is valid:
+     *   every input refers to an unspent output and is used only once,
+     *   every input is signed by the owner of the output,
+     *   and the sum of the outputs is at most the sum of the spent outputs.
+     *
+     *   This costs one lookup per input.
+     */
+
+    public boolean checkTransactionValid(UTXOTransaction tx){
+	return checkInputsValid(tx,utxos,null);
+    }
+
+    /**
+     * Process a transaction by removing the spent outputs and adding the
+     *   new outputs.
+     *
+     *   requires that the transaction is valid.
+     */
+
+    public void processTransaction(UTXOTransaction tx){
+	for (UTXOInput input : tx.getInputs()){
+	    removeUTXO(input.getOutPoint());
+	}
+	addTransactionOutputs(tx);
+    }
+
+    /**
+     * collects the outputs created by the transactions of a block
+     */
+
+    private static HashMap<OutPoint,TxOutput> blockOutputs(List<UTXOTransaction> block){
+	HashMap<OutPoint,TxOutput> result = new HashMap<OutPoint,TxOutput>();
+	for (UTXOTransaction tx : block){
+	    Hash txId = tx.getTxId();
+	    ArrayList<TxOutput> txOutputs = tx.toTxOutputs().toList();
+	    for (int i = 0; i < txOutputs.size(); i++){
+		result.put(new OutPoint(txId,i),txOutputs.get(i));
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * Check a block of transactions is valid.
+     *
+     *   Inputs may spend outputs of the UTXOSet or of other transactions
+     *   in the block, and the result does not depend on the order of the
+     *   transactions in the block. Since no output may be spent twice in
+     *   the block, the transactions can be checked independently,
+     *   which is done in parallel.
+     */
+
+    public boolean checkBlockValid(List<UTXOTransaction> block){
+	HashMap<OutPoint,TxOutput> created = blockOutputs(block);
+	HashSet<OutPoint> spent = new HashSet<OutPoint>();
+	for (UTXOTransaction tx : block){
+	    for (UTXOInput input : tx.getInputs()){
+		if (!spent.add(input.getOutPoint())){
+		    return false;
+		}
+	    }
+	}
+	return block.parallelStream().allMatch(tx -> checkInputsValid(tx,utxos,created));
+    }
+
+    /**
+     * Process a block of transactions,
+     *   requires that the block is valid.
+     */
+
+    public void processBlock(List<UTXOTransaction> block){
+	for (UTXOTransaction tx : block){
+	    addTransactionOutputs(tx);
+	}
+	for (UTXOTransaction tx : block){
+	    for (UTXOInput input : tx.getInputs()){
+		removeUTXO(input.getOutPoint());
+	    }
+	}
+    }
+
+    /**
+     * Prints the balance of each user in the PublicKeyMap
+     */
+
+    public void print(PublicKeyMap pubKeyMap){
+	for (String user : pubKeyMap.getUsers()){
+	    System.out.println("The balance for " + user + " is "
+			       + getBalance(pubKeyMap.getPublicKey(user)));
+	}
+    }
+
+
+    /**
+     * Test cases
+     */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKeyMap pubKeyMap = wallet.toPublicKeyMap();
+	PublicKey pubKeyA = pubKeyMap.getPublicKey("Alice");
+	PublicKey pubKeyB = pubKeyMap.getPublicKey("Bob");
+	PublicKey pubKeyC = pubKeyMap.getPublicKey("Carol");
+
+	UTXOSet utxoSet = new UTXOSet();
+	UTXOTransaction genesis = new UTXOTransaction(new TxOutputList(pubKeyA,30,pubKeyB,10));
+	utxoSet.addTransactionOutputs(genesis);
+	System.out.println("Genesis: Alice 30, Bob 10");
+	utxoSet.print(pubKeyMap);
+
+	UTXOTransaction tx1 = new UTXOTransaction(new TxOutputList(pubKeyC,20,pubKeyA,10));
+	tx1.addInput(genesis.getOutPoint(0),pubKeyA,wallet);
+	System.out.println();
+	System.out.println("tx1: Alice spends 30 to Carol 20 and Alice 10");
+	System.out.println("Is valid (expected true) = " + utxoSet.checkTransactionValid(tx1));
+
+	UTXOTransaction forged = new UTXOTransaction(new TxOutputList(pubKeyC,10));
+	forged.addInput(genesis.getOutPoint(1),tx1.getInputs().get(0).getSignature());
+	System.out.println("Bob's output with Alice's signature is valid (expected false) = "
+			   + utxoSet.checkTransactionValid(forged));
+
+	UTXOTransaction tooMuch = new UTXOTransaction(new TxOutputList(pubKeyC,11));
+	tooMuch.addInput(genesis.getOutPoint(1),pubKeyB,wallet);
+	System.out.println("Bob spends 10 as 11 is valid (expected false) = "
+			   + utxoSet.checkTransactionValid(tooMuch));
+
+	utxoSet.processTransaction(tx1);
+	System.out.println("After processing tx1:");
+	utxoSet.print(pubKeyMap);
+	System.out.println("tx1 again is valid (expected false) = " + utxoSet.checkTransactionValid(tx1));
+
+	/* a block where tx3 spends an output of tx2, listed in reverse order */
+	UTXOTransaction tx2 = new UTXOTransaction(new TxOutputList(pubKeyA,15,pubKeyB,5));
+	tx2.addInput(tx1.getOutPoint(0),pubKeyC,wallet);
+	UTXOTransaction tx3 = new UTXOTransaction(new TxOutputList(pubKeyC,15));
+	tx3.addInput(tx2.getOutPoint(0),pubKeyA,wallet);
+	tx3.addInput(genesis.getOutPoint(1),pubKeyB,wallet);
+	ArrayList<UTXOTransaction> block = new ArrayList<UTXOTransaction>();
+	block.add(tx3);
+	block.add(tx2);
+	System.out.println();
+	System.out.println("Block [tx3, tx2] is valid (expected true) = " + utxoSet.checkBlockValid(block));
+	ArrayList<UTXOTransaction> doubleSpend = new ArrayList<UTXOTransaction>(block);
+	UTXOTransaction tx4 = new UTXOTransaction(new TxOutputList(pubKeyA,10));
+	tx4.addInput(genesis.getOutPoint(1),pubKeyB,wallet);
+	doubleSpend.add(tx4);
+	System.out.println("Block spending Bob's output twice is valid (expected false) = "
+			   + utxoSet.checkBlockValid(doubleSpend));
+	utxoSet.processBlock(block);
+	System.out.println("After processing the block (expected Alice 10, Bob 5, Carol 15):");
+	utxoSet.print(pubKeyMap);
+	System.out.println("Number of unspent outputs (expected 3) = " + utxoSet.size());
+    }
+
+
+    /**
+     * main function running test cases
+     */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	UTXOSet.test();
+    }
+}
@@ -0,0 +1,129 @@
+import java.security.PublicKey;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+
+
+/**   UTXOTransaction
+ *    a transaction in the unspent transaction output (UTXO) model,
+ *    consisting of a list of UTXOInputs, each spending one earlier output,
+ *    and a list of txOutputs.
+ *
+ *    The outputs of the transaction are referred to by the OutPoints
+ *      (getTxId(), i) for i the index of the output.
+ */
+
+public class UTXOTransaction {
+
+    /** The list of inputs */
+    private ArrayList<UTXOInput> inputs;
+
+    /** The list of txOutputs */
+    private TxOutputList txOutputs;
+
+
+    /**
+     * Creates a new transaction with given outputs and no inputs yet.
+     *
+     *  Inputs sign the outputs, so the outputs need to be fixed
+     *    before inputs are added.
+     */
+
+    public UTXOTransaction(TxOutputList txOutputs){
+	this.inputs = new ArrayList<UTXOInput>();
+	this.txOutputs = txOutputs;
+    }
+
+    /**
+     * add an input given by an OutPoint and a signature
+     */
+
+    public void addInput(OutPoint outPoint,byte[] signature){
+	inputs.add(new UTXOInput(outPoint,signature));
+    }
+
+    /**
+     * add an input spending {@code outPoint} owned by {@code owner},
+     *   which is signed using the wallet
+     */
+
+    public void addInput(OutPoint outPoint,PublicKey owner,Wallet wallet)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	addInput(outPoint,wallet.signMessage(getMessageToSign(outPoint),wallet.getKeyName(owner)));
+    }
+
+    /**
+     * return the list of inputs
+     */
+
+    public ArrayList<UTXOInput> getInputs(){
+	return inputs;
+    }
+
+    /**
+     * return the list of txOutputs
+     */
+
+    public TxOutputList toTxOutputs(){
+	return txOutputs;
+    }
+
+    /**
+     * the OutPoint referring to output number {@code index} of this transaction
+     */
+
+    public OutPoint getOutPoint(int index){
+	return new OutPoint(getTxId(),index);
+    }
+
+    /**
+     * Create the message to be signed for spending {@code outPoint}:
+     *   the OutPoint followed by all outputs, similar to
+     *   TxOutputList.getMessageToSign
+     */
+
+    public byte[] getMessageToSign(OutPoint outPoint){
+	SigData sigData = new SigData();
+	sigData.addByteArray(outPoint.toBytes());
+	for (TxOutput txOutput : txOutputs.toList()) {
+	    sigData.addPublicKey(txOutput.getRecipient());
+	    sigData.addInteger(txOutput.getAmount());
+	}
+	return sigData.toArray();
+    }
+
+    /**
+     * The id of the transaction, the hash of all OutPoints spent and
+     *   all outputs.
+     *
+     *   Signatures are not included, so that changing the encoding of a
+     *   signature cannot change the id of the transaction.
+     */
+
+    public Hash getTxId(){
+	SigData sigData = new SigData();
+	sigData.addInteger(inputs.size());
+	for (UTXOInput input : inputs){
+	    sigData.addByteArray(input.getOutPoint().toBytes());
+	}
+	sigData.addInteger(txOutputs.toList().size());
+	for (TxOutput txOutput : txOutputs.toList()) {
+	    sigData.addPublicKey(txOutput.getRecipient());
+	    sigData.addInteger(txOutput.getAmount());
+	}
+	return Hash.of(sigData.toArray());
+    }
+
+    /**
+     * print the transaction
+     */
+
+    public void print(PublicKeyMap pubKeyMap) {
+	System.out.println("Transaction " + getTxId().toShortString());
+	for (UTXOInput input : inputs){
+	    System.out.println("Spends: " + input.getOutPoint());
+	}
+	toTxOutputs().print("User: "," receives ",pubKeyMap);
+    }
+}
@@ -1,20 +1,33 @@
-import java.util.HashMap;
+import java.util.Map;
 import java.security.PublicKey;
 import java.security.PrivateKey;
+import java.security.Signature;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.InvalidKeyException;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**  A Wallet is a map from keyNames (which are strings) to private keys and public keys
  **/
 
 public class Wallet {
 
-    /* the map determing the private key for every keyName */
+    /* number of requests signed by one task in signAll */
+    private static final int SIGN_BATCH_SIZE = 64;
+
+    /* the map determing the private key for every keyName,
+       a persistent map so that it can be handed out without copying it */
     
-    private HashMap<String,PrivateKey> keyName2PrivateKey;
+    private PersistentHashMap<String,PrivateKey> keyName2PrivateKey;
 
     /* the map determing the public Keys */
     private PublicKeyMap  publicKeyMap;
@@ -23,46 +36,47 @@ public class Wallet {
     /* Constructor for the empty Wallet */
     
     public Wallet(){
-	this.keyName2PrivateKey = new HashMap<String,PrivateKey> ();
+	this.keyName2PrivateKey = PersistentHashMap.empty();
 	this.publicKeyMap = new PublicKeyMap();
     }	
 
     /* Constructor for the Wallet constructed from hashmaps */    
 
-    public Wallet(HashMap<String,PrivateKey> keyName2PrivateKey,
-		  HashMap<String,PublicKey> keyName2PublicKey,
-		  HashMap<PublicKey,String> publicKey2KeyName) {       
-	this.keyName2PrivateKey = new HashMap<String,PrivateKey> (keyName2PrivateKey);
+    public Wallet(Map<String,PrivateKey> keyName2PrivateKey,
+		  Map<String,PublicKey> keyName2PublicKey,
+		  Map<PublicKey,String> publicKey2KeyName) {       
+	this.keyName2PrivateKey = PersistentHashMap.copyOf(keyName2PrivateKey);
 	this.publicKeyMap = new PublicKeyMap(keyName2PublicKey,publicKey2KeyName);
     }
 
     /* adds a key given by a name, and a private and public key */
 
     public void addKey(String keyName,PrivateKey privateKey, PublicKey publicKey){
-	keyName2PrivateKey.put(keyName,privateKey);
+	keyName2PrivateKey = keyName2PrivateKey.plus(keyName,privateKey);
 	publicKeyMap.addKey(keyName,publicKey);
     }
 
-    /* returns the publicKeyMap */
+    /* returns the publicKeyMap, a copy sharing the underlying maps */
 
     public PublicKeyMap toPublicKeyMap(){
 	return new PublicKeyMap(publicKeyMap);
     }
 
 
-    /* returns the map from names to private keys  */
+    /* returns the map from names to private keys  
+       (an immutable snapshot, as the following maps) */
     
-    public HashMap<String,PrivateKey> getKeyName2PrivateKey(){
-	return new HashMap<String,PrivateKey>(keyName2PrivateKey);
+    public Map<String,PrivateKey> getKeyName2PrivateKey(){
+	return keyName2PrivateKey;
     }
 
     /* returns the map from names to public keys  */    
-    public HashMap<String,PublicKey> getKeyName2PublicKey(){
+    public Map<String,PublicKey> getKeyName2PublicKey(){
 	return publicKeyMap.getUser2PublicKey();
     }
 
     /* returns the map from public keys to names  */    
-    public HashMap<PublicKey,String> publicKey2KeyName(){
+    public Map<PublicKey,String> publicKey2KeyName(){
 	return publicKeyMap.publicKey2User();	
     }    
 
@@ -123,4 +137,143 @@ public class Wallet {
 	return signMessage(txol.getMessageToSign(sender,amount),getKeyName(sender));
 	    }
 
+    /* as before, signing the message of the given version (see TxInput) */
+
+    public byte[] getSignature(PublicKey sender, int amount,TxOutputList txol,byte version)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	return signMessage(txol.getMessageToSign(sender,amount,version),getKeyName(sender));
+	    }
+
+
+    /* 
+         Sign many inputs at once, returning the signed TxInputs in the
+         order of the requests.
+
+         The requests are grouped by sender and cut into batches which are
+         signed in parallel by the tasks of {@code executor}. Each batch
+         reuses a Signature object per private key (see Crypto.signCached),
+         and since requests of the same sender are in the same batch they
+         mostly use the same Signature object. The Signature objects are
+         dropped with the batch, so no private key stays reachable after
+         signAll returns.
+    */
+
+    public ArrayList<TxInput> signAll(List<SignRequest> requests,ExecutorService executor)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	/* the indices of the requests, grouped by sender */
+	HashMap<PublicKey,ArrayList<Integer>> bySender = new HashMap<PublicKey,ArrayList<Integer>>();
+	for (int i = 0; i < requests.size(); i++){
+	    bySender.computeIfAbsent(requests.get(i).getSender(),k -> new ArrayList<Integer>()).add(i);
+	}
+	int[] order = new int[requests.size()];
+	int pos = 0;
+	for (ArrayList<Integer> indices : bySender.values()){
+	    for (int index : indices){
+		order[pos++] = index;
+	    }
+	}
+
+	TxInput[] result = new TxInput[requests.size()];
+	ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+	for (int start = 0; start < order.length; start += SIGN_BATCH_SIZE){
+	    int from = start;
+	    int to = Math.min(order.length,start + SIGN_BATCH_SIZE);
+	    Callable<Void> batch = () -> {
+		HashMap<PrivateKey,Signature> signers = new HashMap<PrivateKey,Signature>();
+		for (int k = from; k < to; k++){
+		    SignRequest request = requests.get(order[k]);
+		    byte[] message = request.getTxOutputList()
+			.getMessageToSign(request.getSender(),request.getAmount());
+		    byte[] signature = Crypto.signCached(signers,
+							 getPrivateKey(getKeyName(request.getSender())),
+							 message);
+		    result[order[k]] = new TxInput(request.getSender(),request.getAmount(),signature);
+		}
+		return null;
+	    };
+	    futures.add(executor.submit(batch));
+	}
+	try {
+	    for (Future<Void> future : futures){
+		future.get();
+	    }
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) cause;
+	    if (cause instanceof SignatureException) throw (SignatureException) cause;
+	    if (cause instanceof InvalidKeyException) throw (InvalidKeyException) cause;
+	    throw new IllegalStateException("signing failed",cause);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("interrupted while signing",e);
+	} finally {
+	    for (Future<Void> future : futures){
+		future.cancel(true);
+	    }
+	}
+	ArrayList<TxInput> txInputs = new ArrayList<TxInput>(result.length);
+	for (TxInput txInput : result){
+	    txInputs.add(txInput);
+	}
+	return txInputs;
+    }
+
+    /* as before, using the common ForkJoinPool */
+
+    public ArrayList<TxInput> signAll(List<SignRequest> requests)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	return signAll(requests,ForkJoinPool.commonPool());
+    }
+
+
+    /* 
+         Test cases
+    */
+
+    public static void test()
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet wallet = SampleWallet.generate(new String[]{ "Alice", "Bob", "Carol"});
+	PublicKey pubKeyA = wallet.getPublicKey("Alice");
+	PublicKey pubKeyB = wallet.getPublicKey("Bob");
+	PublicKey pubKeyC = wallet.getPublicKey("Carol");
+	ArrayList<SignRequest> requests = new ArrayList<SignRequest>();
+	for (int i = 0; i < 1000; i++){
+	    PublicKey sender = (i % 3 == 0) ? pubKeyA : (i % 3 == 1) ? pubKeyB : pubKeyC;
+	    requests.add(new SignRequest(sender,i,new TxOutputList(pubKeyC,i)));
+	}
+
+	long start = System.nanoTime();
+	for (SignRequest request : requests){
+	    wallet.getSignature(request.getSender(),request.getAmount(),request.getTxOutputList());
+	}
+	long sequentialMillis = (System.nanoTime() - start) / 1000000;
+
+	ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	start = System.nanoTime();
+	ArrayList<TxInput> signed = wallet.signAll(requests,executor);
+	long parallelMillis = (System.nanoTime() - start) / 1000000;
+	executor.shutdown();
+
+	boolean allValid = true;
+	for (int i = 0; i < requests.size(); i++){
+	    TxInput txInput = signed.get(i);
+	    allValid &= txInput.getSender().equals(requests.get(i).getSender())
+		&& txInput.getAmount() == i
+		&& txInput.checkSignature(requests.get(i).getTxOutputList());
+	}
+	System.out.println("Signed " + requests.size() + " inputs sequentially in " + sequentialMillis
+			   + "ms, with signAll in " + parallelMillis + "ms");
+	System.out.println("All signatures valid and in order (expected true) = " + allValid);
+    }
+
+
+    /* 
+         main function running test cases
+    */
+
+    public static void main(String[] args)
+	throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+	Wallet.test();
+    }
+
 }    